@@ -0,0 +1,365 @@
+/*
+ * This source file is part of NScript, released under BSD-modern.
+ *
+ * Copyright (C) 2000-2001 Enrique Campos-Nanez
+ * Copyright (C) 2012 Stefano Sanfilippo
+ *
+ * See README.* at top level for copying, contacts, history and notes.
+ */
+package org.esseks.nscript;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Opens the files of models and scripts, compressed with gzip or not. A file
+ * is read as compressed if it starts with the gzip magic bytes, whatever its
+ * name; it is written compressed if its name ends with ".gz".
+ *
+ * Compression runs on a thread of its own: the thread writing to the stream
+ * only fills buffers and hands them over, so that producing the text (e.g.
+ * translating the model to Tcl) and compressing it overlap.
+ */
+public final class CompressedStreams extends Object {
+
+    /**
+     * The extension of the compressed files.
+     */
+    public static final String EXTENSION = ".gz";
+    /**
+     * The size of the buffers handed over to the compressing thread, and of
+     * the buffers of the streams.
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+    /**
+     * How many buffers may wait to be compressed before the writer blocks.
+     */
+    private static final int QUEUE_SIZE = 8;
+    /**
+     * The first two bytes of a gzip file.
+     */
+    private static final int GZIP_MAGIC_0 = 0x1f;
+    private static final int GZIP_MAGIC_1 = 0x8b;
+    /**
+     * The compression level, from Deflater.BEST_SPEED to
+     * Deflater.BEST_COMPRESSION. Can be set with the system property
+     * "nscript.compression.level".
+     */
+    private static volatile int level = CompressedStreams.initialLevel();
+
+    private CompressedStreams() {
+    }
+
+    /**
+     * Returns the compression level used for the files written from now on.
+     *
+     * @return the level, from 1 (fastest) to 9 (smallest files).
+     */
+    public static int getLevel() {
+        return CompressedStreams.level;
+    }
+
+    /**
+     * Sets the compression level used for the files written from now on.
+     * Level 1 compresses several times faster than level 9, at the cost of
+     * files about a third larger.
+     *
+     * @param inLevel the level, from 1 (fastest) to 9 (smallest files).
+     * @return true if the level was set, false if it is out of range.
+     */
+    public static boolean setLevel(int inLevel) {
+        if ((inLevel < Deflater.BEST_SPEED) || (inLevel > Deflater.BEST_COMPRESSION)) {
+            return false;
+        }
+        CompressedStreams.level = inLevel;
+        return true;
+    }
+
+    private static int initialLevel() {
+        Integer l = Integer.getInteger("nscript.compression.level");
+        if ((l == null) || (l < Deflater.BEST_SPEED) || (l > Deflater.BEST_COMPRESSION)) {
+            // The default of zlib: close to the best ratio, several times faster
+            return 6;
+        }
+        return l;
+    }
+
+    /**
+     * Tells if a file will be written compressed.
+     *
+     * @param f the file.
+     * @return true if the name of the file ends with ".gz".
+     */
+    public static boolean isCompressedName(File f) {
+        return f.getName().endsWith(CompressedStreams.EXTENSION);
+    }
+
+    /**
+     * Tells if a file is compressed, by looking at its first bytes.
+     *
+     * @param f the file.
+     * @return true if the file starts with the gzip magic bytes.
+     * @throws IOException if the file cannot be read.
+     */
+    public static boolean isCompressed(File f) throws IOException {
+        InputStream in = new FileInputStream(f);
+        try {
+            return (in.read() == GZIP_MAGIC_0) && (in.read() == GZIP_MAGIC_1);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Opens a file for reading, decompressing it if it starts with the gzip
+     * magic bytes. The stream is buffered.
+     *
+     * @param f the file.
+     * @return the content of the file.
+     * @throws IOException if the file cannot be opened.
+     */
+    public static InputStream openInput(File f) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(new FileInputStream(f), BUFFER_SIZE);
+        try {
+            in.mark(2);
+            boolean compressed = (in.read() == GZIP_MAGIC_0) && (in.read() == GZIP_MAGIC_1);
+            in.reset();
+            return compressed ? new GZIPInputStream(in, BUFFER_SIZE) : in;
+        } catch (IOException ioe) {
+            in.close();
+            throw ioe;
+        }
+    }
+
+    /**
+     * Opens a file for writing, compressing it if its name ends with ".gz".
+     * The compressed stream must be closed for the file to be complete: close
+     * waits until everything written is compressed and stored, and reports
+     * the errors of the compressing thread.
+     *
+     * @param f the file.
+     * @return the stream to write the content of the file to.
+     * @throws IOException if the file cannot be created.
+     */
+    public static OutputStream openOutput(File f) throws IOException {
+        FileOutputStream out = new FileOutputStream(f);
+        if (!CompressedStreams.isCompressedName(f)) {
+            return out;
+        }
+        try {
+            return new PipedCompressor(new LeveledGZIPOutputStream(out, CompressedStreams.level), f.getName());
+        } catch (IOException ioe) {
+            out.close();
+            throw ioe;
+        }
+    }
+
+    /**
+     * A GZIPOutputStream with a given compression level.
+     */
+    private static class LeveledGZIPOutputStream extends GZIPOutputStream {
+
+        LeveledGZIPOutputStream(OutputStream out, int inLevel) throws IOException {
+            super(out, BUFFER_SIZE);
+            this.def.setLevel(inLevel);
+        }
+    }
+
+    /**
+     * Collects what is written in buffers, and hands them over to a thread
+     * that writes them to a compressed stream.
+     */
+    private static class PipedCompressor extends OutputStream implements Runnable {
+
+        /**
+         * Marks the end of the data in the queue.
+         */
+        private static final byte[] END = new byte[0];
+        /**
+         * The buffers waiting to be compressed.
+         */
+        private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(QUEUE_SIZE);
+        /**
+         * The compressed stream, used only by the compressing thread.
+         */
+        private final OutputStream target;
+        private final Thread thread;
+        /**
+         * The buffer being filled, and how much of it is filled.
+         */
+        private byte[] buffer = new byte[BUFFER_SIZE];
+        private int count;
+        private boolean closed;
+        /**
+         * The first error of the compressing thread, if any.
+         */
+        private volatile IOException failure;
+
+        PipedCompressor(OutputStream inTarget, String name) {
+            this.target = inTarget;
+            this.thread = new Thread(this, "Compressing " + name);
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (this.count == this.buffer.length) {
+                this.handOver();
+            }
+            this.buffer[this.count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if ((off < 0) || (len < 0) || (off + len > b.length) || (off + len < 0)) {
+                throw new IndexOutOfBoundsException();
+            }
+            while (len > 0) {
+                if (this.count == this.buffer.length) {
+                    this.handOver();
+                }
+                int n = Math.min(len, this.buffer.length - this.count);
+                System.arraycopy(b, off, this.buffer, this.count, n);
+                this.count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        /**
+         * Hands over the data written so far. The compressor does not flush
+         * the compressed stream, which would make it larger.
+         */
+        @Override
+        public void flush() throws IOException {
+            if (this.count > 0) {
+                this.handOver();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            IOException error = null;
+            try {
+                this.flush();
+            } catch (IOException ioe) {
+                error = ioe;
+            }
+            // The end is queued even after a failure, and even if this thread
+            // is interrupted: the compressing thread drops the buffers left,
+            // so there is always room for it, and then closes the target
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    this.queue.put(END);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            while (true) {
+                try {
+                    this.thread.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (this.failure != null) {
+                throw this.failure;
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+
+        private void handOver() throws IOException {
+            if (this.closed) {
+                throw new IOException("Stream closed");
+            }
+            this.put((this.count == this.buffer.length)
+                    ? this.buffer
+                    : Arrays.copyOf(this.buffer, this.count));
+            this.buffer = new byte[BUFFER_SIZE];
+            this.count = 0;
+        }
+
+        private void put(byte[] b) throws IOException {
+            if (this.failure != null) {
+                throw this.failure;
+            }
+            try {
+                this.queue.put(b);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(e.toString());
+            }
+        }
+
+        /**
+         * Compresses the buffers handed over, until the end is marked. After
+         * an error, the buffers are just dropped, so that the writer never
+         * waits for ever.
+         */
+        @Override
+        public void run() {
+            try {
+                for (byte[] b = this.take(); b != END; b = this.take()) {
+                    if (this.failure == null) {
+                        try {
+                            this.target.write(b);
+                        } catch (IOException ioe) {
+                            this.failure = ioe;
+                        }
+                    }
+                }
+            } finally {
+                try {
+                    this.target.close();
+                } catch (IOException ioe) {
+                    if (this.failure == null) {
+                        this.failure = ioe;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Waits for a buffer. The thread is not interrupted by NScript; if it
+         * is, the data is dropped and the writer is told when it closes.
+         */
+        private byte[] take() {
+            while (true) {
+                try {
+                    return this.queue.take();
+                } catch (InterruptedException e) {
+                    if (this.failure == null) {
+                        this.failure = new InterruptedIOException(e.toString());
+                    }
+                }
+            }
+        }
+    }
+    private static final Logger LOG = Logger.getLogger(CompressedStreams.class.getName());
+}
@@ -88,13 +88,7 @@ public class DMControl extends KeyAdapter
      * @return
      */
     public DMObject modelIsHit(Dimension r, Point p) {
-        int i;
-        for (i = 0; i < this.M.getSize(); i++) {
-            if (this.M.getObjectAt(i).isHit(r, p)) {
-                return this.M.getObjectAt(i);
-            }
-        }
-        return null;
+        return this.M.getObjectHit(r, p);
     }
 
     /**
@@ -103,15 +97,7 @@ public class DMControl extends KeyAdapter
      * @return int the number of objects selected.
      */
     public int getSelectedCount() {
-        int i, count;
-
-        count = 0;
-        for (i = 0; i < this.M.getSize(); i++) {
-            if (this.M.getObjectAt(i).isSelected()) {
-                count++;
-            }
-        }
-        return count;
+        return this.M.getSelectedCount();
     }
 
     /**
@@ -123,32 +109,14 @@ public class DMControl extends KeyAdapter
      * otherwise.
      */
     public DMObject getIthSelected(int index) {
-        int i, count;
-
-        count = 1;
-
-        for (i = 0; i < this.M.getSize(); i++) {
-            if (this.M.getObjectAt(i).isSelected()) {
-                if (count == index) {
-                    return this.M.getObjectAt(i);
-                } else {
-                    count++;
-                }
-            }
-        }
-        // Not found
-        return null;
+        return this.M.getSelectedAt(index - 1);
     }
 
     /**
      * Clears the whole selection.
      */
     public void unselectAll() {
-        int i;
-
-        for (i = 0; i < this.M.getSize(); i++) {
-            this.M.getObjectAt(i).unselect();
-        }
+        this.M.unselectAll();
     }
 
     /**
@@ -197,12 +165,12 @@ public class DMControl extends KeyAdapter
                         this.unselectAll();
                     }
                 }
-                this.M.updateAllViews(false);
+                this.V.repaint();
                 break;
 
             case DMModel.ICON_MODE:
                 this.M.addSimpleObject(this.V.getBounds().getSize(), me.getPoint(), true);
-                this.M.updateAllViews(false);
+                this.V.repaint();
                 break;
 
             case DMModel.RELATION_MODE:
@@ -240,6 +208,7 @@ public class DMControl extends KeyAdapter
                 if ((e != null) && e.isSelected()) { // We have a hit
                     this.action = DMControl.MOVING;
                     this.start = me.getPoint();
+                    this.M.beginEdit();
                 } else {
                     if (!shift) {
                         this.unselectAll();
@@ -333,35 +302,32 @@ public class DMControl extends KeyAdapter
                 break;
 
             case (DMControl.SELECTING):
-                for (i = 0; i < this.M.getSize(); i++) {
-                    if (this.M.getObjectAt(i).isContained(this.V.getBounds().getSize(), this.start, me.getPoint())) {
-                        if (shift) {
-                            this.M.getObjectAt(i).toggleSelect();
-                        } else {
-                            this.M.getObjectAt(i).select();
-                        }
+                for (DMObject o : this.M.getObjectsIn(this.V.getBounds().getSize(), this.start, me.getPoint())) {
+                    if (shift) {
+                        o.toggleSelect();
+                    } else {
+                        o.select();
                     }
                 }
-                this.M.updateAllViews(false);
+                this.V.repaint();
                 break;
 
             case (DMControl.MOVING):
                 Dimension r = new Dimension((int) (me.getPoint().getX() - this.start.getX()),
                         (int) (me.getPoint().getY() - this.start.getY()));
-                for (i = 0; i < this.M.getSize(); i++) {
-                    if (this.M.getObjectAt(i).isSelected()) {
-                        this.M.getObjectAt(i).moveBy(this.V.getBounds().getSize(), r);
-                    }
-                    this.M.setDirty(true);
+                for (i = 0; i < this.M.getSelectedCount(); i++) {
+                    this.M.getSelectedAt(i).moveBy(this.V.getBounds().getSize(), r);
                 }
-                this.M.updateAllViews(false);
+                this.M.setDirty(true);
+                this.M.endEdit();
+                this.V.repaint();
                 break;
 
             case (DMControl.LINKING):
                 if (this.action == DMControl.LINKING) {
                     if (e != null) {
                         this.M.addRelationObject(this.startO, e, true);
-                        this.M.updateAllViews(false);
+                        this.V.repaint();
                     } else {
                         this.V.repaint();
                     }
@@ -399,12 +365,10 @@ public class DMControl extends KeyAdapter
         if (this.action == DMControl.MOVING) {
             r = new Dimension((int) (me.getPoint().getX() - this.start.getX()),
                     (int) (me.getPoint().getY() - this.start.getY()));
-            for (i = 0; i < this.M.getSize(); i++) {
-                if (this.M.getObjectAt(i).isSelected()) {
-                    this.M.getObjectAt(i).moveBy(this.V.getBounds().getSize(), r);
-                }
+            for (i = 0; i < this.M.getSelectedCount(); i++) {
+                this.M.getSelectedAt(i).moveBy(this.V.getBounds().getSize(), r);
             }
-            this.M.updateAllViews(false);
+            this.V.repaint();
             this.start = me.getPoint();
         } else {
             this.end = me.getPoint();
@@ -9,7 +9,10 @@
 package org.esseks.nscript;
 
 import java.awt.Dimension;
+import java.awt.FontMetrics;
 import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.List;
 
 /**
  * Defines an interface to be implemented by objects that want to be controlled
@@ -64,8 +67,9 @@ public interface DMModel {
      * To be called after modifying the model, so that all views dependent on it
      * render the model correctly.
      *
-     * @param onTheFly if true, do not update properties table
-     *                 (for progressive table update).
+     * @param onTheFly if true, do not update properties table nor the list of
+     *                 objects (for progressive table update, or for changes
+     *                 that only move objects around).
      */
     public void updateAllViews(boolean onTheFly);
 
@@ -86,11 +90,74 @@ public interface DMModel {
      */
     public DMObject getObjectAt(int index);
 
+    /**
+     * Get the object hit by a mouse click. If more objects are hit, the one
+     * stored first is returned.
+     *
+     * @param r the size of the view.
+     * @param p the location of the mouse.
+     * @return the object hit, or null if none.
+     */
+    public DMObject getObjectHit(Dimension r, Point p);
+
+    /**
+     * Get the objects contained in a rectangle.
+     *
+     * @param r the size of the view.
+     * @param p1 a corner of the rectangle.
+     * @param p2 the opposite corner of the rectangle.
+     * @return the objects contained.
+     */
+    public List<DMObject> getObjectsIn(Dimension r, Point p1, Point p2);
+
+    /**
+     * Get the objects that may be visible in a region of the view, in the
+     * order they are drawn.
+     *
+     * @param r the size of the view.
+     * @param clip the region being drawn, or null for the whole view.
+     * @param labels the metrics of the font used to draw the labels.
+     * @return the objects to draw.
+     */
+    public List<DMObject> getObjectsToDraw(Dimension r, Rectangle clip, FontMetrics labels);
+
+    /**
+     * Get the number of objects currently selected.
+     *
+     * @return the number of selected objects.
+     */
+    public int getSelectedCount();
+
+    /**
+     * Get a selected object, in the order the objects were selected.
+     *
+     * @param index the position of the object in the selection.
+     * @return the desired object if index is in the correct range, null
+     * otherwise.
+     */
+    public DMObject getSelectedAt(int index);
+
+    /**
+     * Clear the whole selection.
+     */
+    public void unselectAll();
+
     /**
      * Remove currently selected objects.
      */
     public void removeSelected();
 
+    /**
+     * Mark the start of a gesture, such as dragging objects around, whose
+     * changes are to be undone as a single step.
+     */
+    public void beginEdit();
+
+    /**
+     * Mark the end of a gesture started with beginEdit.
+     */
+    public void endEdit();
+
     /**
      * Raise a flag if the model has been modified and requires saving.
      *
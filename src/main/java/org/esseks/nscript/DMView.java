@@ -12,6 +12,9 @@ import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
 import java.util.logging.Logger;
 import javax.swing.JPanel;
 
@@ -70,18 +73,22 @@ public class DMView extends JPanel {
     public void paint(Graphics g) {
         super.paint(g);
         Dimension r;
-        int i;
 
         // Set the font, and obtain the context information so that each
         // of the objects can draw themselves.
         g.setFont(new Font("Helvetica", Font.PLAIN, 9));
+        // Entities turn antialiasing on when drawn: turn it on here, so that
+        // the objects look the same whichever is drawn first
+        ((Graphics2D) g).setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                RenderingHints.VALUE_ANTIALIAS_ON);
         // LOG.info("Starting paint...");
         r = this.getBounds().getSize();
 
-        // Call each of the objects in the model, and tell them to draw
-        // themselves on the screen.
-        for (i = 0; i < this.M.getSize(); i++) {
-            this.M.getObjectAt(i).drawSelf(g, r);
+        // Call each of the objects that may be visible in the region being
+        // painted, and tell them to draw themselves on the screen.
+        Rectangle clip = g.getClipBounds();
+        for (DMObject o : this.M.getObjectsToDraw(r, clip, g.getFontMetrics())) {
+            o.drawSelf(g, r);
         }
         // LOG.info("Ending paint...");
 
@@ -0,0 +1,199 @@
+/*
+ * This source file is part of NScript, released under BSD-modern.
+ *
+ * Copyright (C) 2000-2001 Enrique Campos-Nanez
+ * Copyright (C) 2012 Stefano Sanfilippo
+ *
+ * See README.* at top level for copying, contacts, history and notes.
+ */
+package org.esseks.nscript;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Stores the positions of entities in dense arrays, one per coordinate, so
+ * that geometric queries over many entities (hit tests, rectangle selection)
+ * run as tight loops over primitive arrays instead of visiting every object.
+ *
+ * Each entity owns a slot, identified by an integer id. Ids of removed entities
+ * are reused. Coordinates are in the [0,1] interval, as in NSEntity.
+ */
+public class GeometryStore extends Object implements Serializable {
+
+    /**
+     *      */
+    private static final long serialVersionUID = 42L;
+    /**
+     * The x coordinate of each slot.
+     */
+    private double[] xs;
+    /**
+     * The y coordinate of each slot.
+     */
+    private double[] ys;
+    /**
+     * The entity owning each slot, or null for free slots.
+     */
+    private NSEntity[] owners;
+    /**
+     * The number of slots in use, including free ones below it.
+     */
+    private int top;
+    /**
+     * The ids of free slots below top.
+     */
+    private int[] free;
+    /**
+     * The number of ids in free.
+     */
+    private int freeCount;
+
+    /**
+     * Creates an empty store.
+     *
+     * @param capacity the number of slots to allocate initially.
+     */
+    public GeometryStore(int capacity) {
+        capacity = Math.max(capacity, 1);
+        this.xs = new double[capacity];
+        this.ys = new double[capacity];
+        this.owners = new NSEntity[capacity];
+        this.free = new int[0];
+    }
+
+    /**
+     * Allocates a slot for an entity.
+     *
+     * @param owner the entity.
+     * @param x the x coordinate.
+     * @param y the y coordinate.
+     * @return the id of the slot.
+     */
+    public int add(NSEntity owner, double x, double y) {
+        int id;
+        if (this.freeCount > 0) {
+            id = this.free[--this.freeCount];
+        } else {
+            if (this.top == this.xs.length) {
+                int capacity = this.xs.length * 2;
+                this.xs = Arrays.copyOf(this.xs, capacity);
+                this.ys = Arrays.copyOf(this.ys, capacity);
+                this.owners = Arrays.copyOf(this.owners, capacity);
+            }
+            id = this.top++;
+        }
+        this.xs[id] = x;
+        this.ys[id] = y;
+        this.owners[id] = owner;
+        return id;
+    }
+
+    /**
+     * Releases a slot, so that it can be reused.
+     *
+     * @param id the id of the slot.
+     */
+    public void remove(int id) {
+        this.owners[id] = null;
+        if (id == this.top - 1) {
+            this.top--;
+            return;
+        }
+        if (this.freeCount == this.free.length) {
+            this.free = Arrays.copyOf(this.free, Math.max(4, this.free.length * 2));
+        }
+        this.free[this.freeCount++] = id;
+    }
+
+    /**
+     * Returns the x coordinate of a slot.
+     *
+     * @param id the id of the slot.
+     * @return the x coordinate.
+     */
+    public double getX(int id) {
+        return this.xs[id];
+    }
+
+    /**
+     * Returns the y coordinate of a slot.
+     *
+     * @param id the id of the slot.
+     * @return the y coordinate.
+     */
+    public double getY(int id) {
+        return this.ys[id];
+    }
+
+    /**
+     * Sets the x coordinate of a slot.
+     *
+     * @param id the id of the slot.
+     * @param x the new x coordinate.
+     */
+    public void setX(int id, double x) {
+        this.xs[id] = x;
+    }
+
+    /**
+     * Sets the y coordinate of a slot.
+     *
+     * @param id the id of the slot.
+     * @param y the new y coordinate.
+     */
+    public void setY(int id, double y) {
+        this.ys[id] = y;
+    }
+
+    /**
+     * Moves a slot by the given amount.
+     *
+     * @param id the id of the slot.
+     * @param dx the translation along x.
+     * @param dy the translation along y.
+     */
+    public void translate(int id, double dx, double dy) {
+        this.xs[id] += dx;
+        this.ys[id] += dy;
+    }
+
+    /**
+     * Finds the entities closer than a given distance to a point.
+     *
+     * @param x the x coordinate of the point.
+     * @param y the y coordinate of the point.
+     * @param radius the distance.
+     * @param out the list where the entities found are added.
+     */
+    public void collectHits(double x, double y, double radius, List<NSEntity> out) {
+        double r2 = radius * radius;
+        for (int i = 0; i < this.top; i++) {
+            double dx = this.xs[i] - x;
+            double dy = this.ys[i] - y;
+            if ((((dx * dx) + (dy * dy)) < r2) && (this.owners[i] != null)) {
+                out.add(this.owners[i]);
+            }
+        }
+    }
+
+    /**
+     * Finds the entities strictly inside a rectangle.
+     *
+     * @param minX the left side of the rectangle.
+     * @param minY the top side of the rectangle.
+     * @param maxX the right side of the rectangle.
+     * @param maxY the bottom side of the rectangle.
+     * @param out the list where the entities found are added.
+     */
+    public void collectContained(double minX, double minY, double maxX, double maxY, List<NSEntity> out) {
+        for (int i = 0; i < this.top; i++) {
+            double x = this.xs[i];
+            double y = this.ys[i];
+            if ((x > minX) && (x < maxX) && (y > minY) && (y < maxY) && (this.owners[i] != null)) {
+                out.add(this.owners[i]);
+            }
+        }
+    }
+}
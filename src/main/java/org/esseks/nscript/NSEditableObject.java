@@ -38,6 +38,17 @@ public class NSEditableObject extends NSObject implements DMObject {
         super(inSnippet, inName);
     }
 
+    /**
+     * Creates a copy of this object, to be completed by freeze. The copy is
+     * not selected.
+     *
+     * @return the new object.
+     */
+    @Override
+    NSObject newCopy() {
+        return new NSEditableObject(this.getSnippet(), this.getName());
+    }
+
     /**
      * True if the object is selected for edition, false otherwise.
      *
@@ -54,7 +65,9 @@ public class NSEditableObject extends NSObject implements DMObject {
      */
     @Override
     public void select() {
-        this.selected = true;
+        if (!this.selected) {
+            this.toggleSelect();
+        }
     }
 
     /**
@@ -63,7 +76,9 @@ public class NSEditableObject extends NSObject implements DMObject {
      */
     @Override
     public void unselect() {
-        this.selected = false;
+        if (this.selected) {
+            this.toggleSelect();
+        }
     }
 
     /**
@@ -72,7 +87,15 @@ public class NSEditableObject extends NSObject implements DMObject {
      */
     @Override
     public void toggleSelect() {
-        this.selected = !this.selected;
+        NSWorld w = this.lockWorld();
+        try {
+            this.selected = !this.selected;
+            if (this.getWorld() != null) {
+                this.getWorld().selectionChanged(this, this.selected);
+            }
+        } finally {
+            NSObject.unlockWorld(w);
+        }
     }
 
     /**
@@ -0,0 +1,152 @@
+/*
+ * This source file is part of NScript, released under BSD-modern.
+ *
+ * Copyright (C) 2000-2001 Enrique Campos-Nanez
+ * Copyright (C) 2012 Stefano Sanfilippo
+ *
+ * See README.* at top level for copying, contacts, history and notes.
+ */
+package org.esseks.nscript;
+
+import java.util.logging.Logger;
+
+/**
+ * One of the elements generated by an object indexed by an array: the i-th
+ * TCP session of an array of 100, named like in the Tcl script, e.g.
+ * "tcp(5)". Elements are not stored anywhere: an NSElement is just a handle,
+ * created on demand by NSWorld.getElement or NSWorld.getElements, so that the
+ * elements of a large array can be visited without materializing them.
+ *
+ * An element has the attributes of its object, unless it is given values of
+ * its own (see setAttribute). Only such customized elements take memory.
+ */
+public final class NSElement extends Object {
+
+    /**
+     * The object indexed by the array.
+     */
+    private final NSObject object;
+    /**
+     * The 0-based index of the element in the array.
+     */
+    private final int index;
+
+    /**
+     * Creates a handle. Called by NSWorld, which checks the index.
+     *
+     * @param inObject the object indexed by the array.
+     * @param inIndex the index of the element.
+     */
+    NSElement(NSObject inObject, int inIndex) {
+        this.object = inObject;
+        this.index = inIndex;
+    }
+
+    /**
+     * Returns the object that generates this element.
+     *
+     * @return the object indexed by the array.
+     */
+    public NSObject getObject() {
+        return this.object;
+    }
+
+    /**
+     * Returns the position of this element in the array.
+     *
+     * @return the 0-based index.
+     */
+    public int getIndex() {
+        return this.index;
+    }
+
+    /**
+     * Returns the name of this element, as used in the Tcl script.
+     *
+     * @return the name of the object followed by the index in parentheses.
+     */
+    public String getName() {
+        return this.object.getName() + "(" + this.index + ")";
+    }
+
+    /**
+     * Returns the value of an attribute: the value given to this element, or
+     * else the value of the object.
+     *
+     * @param inAttrIndex the attribute index.
+     * @return a String with the value of the attribute.
+     */
+    public String getAttribute(int inAttrIndex) {
+        return this.object.getElementAttribute(this.index, inAttrIndex);
+    }
+
+    /**
+     * Returns the value of an attribute given its name.
+     *
+     * @param attrName the name of the attribute, as defined by the snippet.
+     * @return a String with the value of the attribute, if the snippet defines
+     * it, and an empty String otherwise.
+     */
+    public String getAttribute(String attrName) {
+        int i = this.object.getSnippet().indexOf(attrName);
+        return (i < 0) ? "" : this.getAttribute(i);
+    }
+
+    /**
+     * Gives this element a value of its own for an attribute. See
+     * NSObject.setElementAttribute.
+     *
+     * @param inAttrIndex the attribute index.
+     * @param inNewValue the new value, or null to take the value of the
+     * object again.
+     */
+    public void setAttribute(int inAttrIndex, String inNewValue) {
+        this.object.setElementAttribute(this.index, inAttrIndex, inNewValue);
+    }
+
+    /**
+     * Gives this element a value of its own for an attribute, given its name.
+     *
+     * @param attrName the name of the attribute, as defined by the snippet.
+     * @param inNewValue the new value, or null.
+     * @return true if the attribute was set, false if the snippet does not
+     * define it.
+     */
+    public boolean setAttribute(String attrName, String inNewValue) {
+        int i = this.object.getSnippet().indexOf(attrName);
+        if (i < 0) {
+            return false;
+        }
+        this.setAttribute(i, inNewValue);
+        return true;
+    }
+
+    /**
+     * Tells if this element has values of its own.
+     *
+     * @return true if the element is customized.
+     */
+    public boolean isCustomized() {
+        return this.object.isElementCustomized(this.index);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof NSElement)) {
+            return false;
+        }
+        NSElement e = (NSElement) other;
+        return (e.object == this.object) && (e.index == this.index);
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(this.object) * 31 + this.index;
+    }
+
+    @Override
+    public String toString() {
+        return this.getName();
+    }
+    private static final Logger LOG = Logger.getLogger(NSElement.class.getName());
+}
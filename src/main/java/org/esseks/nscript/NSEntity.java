@@ -34,15 +34,19 @@ public class NSEntity extends NSEditableObject {
      *      */
     public static final long serialVersionUID = 42L;
     /**
-     * The x coordinate of the position of the object. x is in the [0,1]
-     * interval.
+     * The store holding the position of the object, which is the one of its
+     * world, or null while the object is not part of a world. Coordinates are
+     * in the [0,1] interval.
      */
-    private double x;
+    private GeometryStore geometry;
     /**
-     * The y coordinate of the position of the object. y is in the [0,1]
-     * interval.
+     * The id of the slot of the object in geometry.
      */
-    private double y;
+    private int geometryId;
+    /**
+     * The position of the object while it has no store.
+     */
+    private double x, y;
     /**
      * Constant representing the NODE shape.
      */
@@ -71,6 +75,11 @@ public class NSEntity extends NSEditableObject {
      * The size of the icon under a scale of 1:1
      */
     public static final int SIZE = 16;             // Size under scale = 1.0
+    /**
+     * The distance from the center of the icon within which the object is hit
+     * by the mouse, in the [0,1] scale.
+     */
+    static final double HIT_RADIUS = (double) NSEntity.SIZE / NSEntity.NOMINAL_WIDTH / 2;
 
     /**
      * Basic constructor that calls the father's contructor, and initializes the
@@ -84,8 +93,8 @@ public class NSEntity extends NSEditableObject {
     public NSEntity(TclSnippet inSnippet, String inName, double inX, double inY) {
         super(inSnippet, inName);
 
-        this.setX(inX);
-        this.setY(inY);
+        this.x = inX;
+        this.y = inY;
         this.setPrecedence();
     }
     
@@ -118,7 +127,11 @@ public class NSEntity extends NSEditableObject {
      * Sets the x coordinate position of the object.
      */
     private void setX(double inX) {
-        this.x = inX;
+        if (this.geometry == null) {
+            this.x = inX;
+        } else {
+            this.geometry.setX(this.geometryId, inX);
+        }
     }
     
     /**
@@ -127,7 +140,7 @@ public class NSEntity extends NSEditableObject {
      * @return the x position as a double in [0,1].
      */
     public double getX() {
-        return this.x;
+        return (this.geometry == null) ? this.x : this.geometry.getX(this.geometryId);
     }
 
     /**
@@ -136,7 +149,11 @@ public class NSEntity extends NSEditableObject {
      * @param inY the new position.
      */
     private void setY(double inY) {
-        this.y = inY;
+        if (this.geometry == null) {
+            this.y = inY;
+        } else {
+            this.geometry.setY(this.geometryId, inY);
+        }
     }
 
     /**
@@ -145,7 +162,37 @@ public class NSEntity extends NSEditableObject {
      * @return the y position as a double in [0,1].
      */
     public double getY() {
-        return this.y;
+        return (this.geometry == null) ? this.y : this.geometry.getY(this.geometryId);
+    }
+
+    /**
+     * Creates a copy of this entity at the same position, to be completed by
+     * freeze.
+     *
+     * @return the new entity.
+     */
+    @Override
+    NSObject newCopy() {
+        return new NSEntity(this.getSnippet(), this.getName(), this.getX(), this.getY());
+    }
+
+    /**
+     * Moves the position of the object to another store. Called by NSWorld
+     * when the object is added to or removed from a world.
+     *
+     * @param store the new store, or null to keep the position in the object.
+     */
+    void setGeometry(GeometryStore store) {
+        if (this.geometry != null) {
+            this.x = this.getX();
+            this.y = this.getY();
+            this.geometry.remove(this.geometryId);
+            this.geometry = null;
+        }
+        if (store != null) {
+            this.geometryId = store.add(this, this.x, this.y);
+            this.geometry = store;
+        }
     }
     
     /**
@@ -213,8 +260,8 @@ public class NSEntity extends NSEditableObject {
 
         // Transform the position of the object from the interval [0,1]
         // using the height and width of the view pane.
-        int dx = (int) Math.round(r.width * this.x);
-        int dy = (int) Math.round(r.height * this.y);
+        int dx = (int) Math.round(r.width * this.getX());
+        int dy = (int) Math.round(r.height * this.getY());
         // Calculate the size of the element according to the scale.
         int size = (NSEntity.SIZE * r.width) / NSEntity.NOMINAL_WIDTH;
         int size2 = size / 2;
@@ -319,7 +366,7 @@ public class NSEntity extends NSEditableObject {
      */
     @Override
     public boolean isHit(Dimension r, Point p) {
-        double inX, inY, distance, size2 = (double) NSEntity.SIZE / NSEntity.NOMINAL_WIDTH / 2;
+        double inX, inY, distance, size2 = NSEntity.HIT_RADIUS;
 
         inX = p.getX() / r.width;
         inY = p.getY() / r.height;
@@ -387,8 +434,58 @@ public class NSEntity extends NSEditableObject {
         dx = (double) byWhat.width / r.width;
         dy = (double) byWhat.height / r.height;
 
-        this.setX(this.getX() + dx);
-        this.setY(this.getY() + dy);
+        this.translate(dx, dy);
+    }
+
+    /**
+     * Moves the position of the object by the given amount, in the [0,1]
+     * coordinates of the model.
+     *
+     * @param dx the translation along x.
+     * @param dy the translation along y.
+     */
+    void translate(double dx, double dy) {
+        NSWorld w = this.lockWorld();
+        try {
+            double oldX = this.getX();
+            double oldY = this.getY();
+            if (this.geometry == null) {
+                this.x += dx;
+                this.y += dy;
+            } else {
+                this.geometry.translate(this.geometryId, dx, dy);
+            }
+            this.discardFrozen();
+            if (w != null) {
+                w.objectMoved(this);
+                if (w.getUndoRecorder() != null) {
+                    w.getUndoRecorder().moved(this, oldX, oldY);
+                }
+            }
+        } finally {
+            NSObject.unlockWorld(w);
+        }
+    }
+
+    /**
+     * Puts the object at the given position, in the [0,1] coordinates of the
+     * model. Used to undo and redo moves.
+     *
+     * @param inX the new x position.
+     * @param inY the new y position.
+     */
+    void moveTo(double inX, double inY) {
+        NSWorld w = this.lockWorld();
+        try {
+            this.setX(inX);
+            this.setY(inY);
+            this.discardFrozen();
+            if (w != null) {
+                w.objectMoved(this);
+            }
+        } finally {
+            NSObject.unlockWorld(w);
+        }
     }
 
     /**
@@ -400,7 +497,7 @@ public class NSEntity extends NSEditableObject {
     @Override
     public String toString() {
         String s = super.toString();
-        s += Double.toString(this.x) + "\n" + Double.toString(this.y) + "\n";
+        s += Double.toString(this.getX()) + "\n" + Double.toString(this.getY()) + "\n";
 
         return s;
     }
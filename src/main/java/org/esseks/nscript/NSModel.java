@@ -10,10 +10,25 @@
 package org.esseks.nscript;
 
 import java.awt.Dimension;
+import java.awt.FontMetrics;
 import java.awt.Point;
-import java.util.Iterator;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
+import javax.swing.event.EventListenerList;
 
 /**
  * Holds the current simulation script information. Inherits the object storing
@@ -53,6 +68,61 @@ public class NSModel extends NSWorld implements DMModel {
      * file.
      */
     private boolean isDirty;
+    /**
+     * Generates the Tcl view in background.
+     */
+    private TclViewUpdater tclUpdater;
+    /**
+     * The number of nested batches in progress, see beginBatch.
+     */
+    private int batchDepth;
+    /**
+     * True if the views were asked to update during the current batch.
+     */
+    private boolean batchRefresh;
+    /**
+     * The listeners informed of the changes to the model.
+     */
+    private transient EventListenerList listeners;
+    /**
+     * The changes made during the current batch, delivered when it ends. Null
+     * outside batches.
+     */
+    private transient PendingEvents pending;
+    /**
+     * The history of the changes, for undo and redo.
+     */
+    private transient NSUndoManager undoManager;
+    /**
+     * The kinds of events, see fire.
+     */
+    private static final int ADDED = 0;
+    private static final int REMOVED = 1;
+    private static final int CHANGED = 2;
+    private static final int MOVED = 3;
+    private static final int SELECTION = 4;
+    private static final int ARRAYS = 5;
+    /**
+     * Estimated length of the Tcl code for an object, used to size buffers.
+     */
+    static final int TCL_LINE_SIZE = 64;
+    /**
+     * Number of objects exported between two calls to the task monitor.
+     */
+    private static final int MONITOR_INTERVAL = 256;
+    /**
+     * Number of objects translated in parallel before being written out, so
+     * that memory use does not grow with the size of the model.
+     */
+    private static final int PARALLEL_WINDOW = 1 << 16;
+    /**
+     * Number of objects translated by a single task of a parallel export.
+     */
+    private static final int PARALLEL_BLOCK = 512;
+    /**
+     * The pool used by parallel exports, created on first use.
+     */
+    private static ForkJoinPool exportPool;
 
     /**
      * The onlye constructor for this class of objects. Takes an initial
@@ -66,6 +136,8 @@ public class NSModel extends NSWorld implements DMModel {
         super(inEnv);
         this.toolBox = inTBar;
         this.isDirty = false;
+        this.undoManager = new NSUndoManager(this);
+        this.setUndoRecorder(this.undoManager);
     }
 
     /**
@@ -79,8 +151,33 @@ public class NSModel extends NSWorld implements DMModel {
     public void setViews(DMView inEView, JTextArea inTclView, SObjectBrowser inObjectPanel, NSWorldView inWorldView) {
         this.editView = inEView;
         this.tclView = inTclView;
+        this.tclUpdater = new TclViewUpdater(this, inTclView);
         this.objectPanel = inObjectPanel;
         this.worldView = inWorldView;
+        this.addModelListener(new ViewUpdater());
+    }
+
+    /**
+     * Registers a listener to be informed of the changes to the model.
+     *
+     * @param l the listener.
+     */
+    public void addModelListener(NSModelListener l) {
+        if (this.listeners == null) {
+            this.listeners = new EventListenerList();
+        }
+        this.listeners.add(NSModelListener.class, l);
+    }
+
+    /**
+     * Unregisters a listener added by addModelListener.
+     *
+     * @param l the listener.
+     */
+    public void removeModelListener(NSModelListener l) {
+        if (this.listeners != null) {
+            this.listeners.remove(NSModelListener.class, l);
+        }
     }
 
     /**
@@ -133,17 +230,11 @@ public class NSModel extends NSWorld implements DMModel {
 
         this.isDirty = true;
         // Get a new unique generic name
-        int i = -1;
-        do {
-            i++;
-            newName = s.getName() + i;
-        } while (!this.isValidName(newName));
+        newName = this.generateName(s.getName());
 
         o = new NSEntity(s, newName, x, y);
         s.instantiateNSObject(o);
         this.addObject(o);
-        this.tclView.setText(this.toTcl());
-        this.worldView.updateList();
     }
 
     /**
@@ -156,8 +247,6 @@ public class NSModel extends NSWorld implements DMModel {
      */
     @Override
     public void addRelationObject(DMObject oFrom, DMObject oTo, boolean unSelectOthers) {
-        String newName;
-        int i;
         TclSnippet s = this.toolBox.getSelectedSnippet();
         NSRelation o;
 
@@ -172,23 +261,15 @@ public class NSModel extends NSWorld implements DMModel {
             return;
         }
 
-        this.isDirty = true;
-        i = -1;
-        do {
-            i++;
-            newName = s.getName() + i;
-        } while (!this.isValidName(newName));
-
         if (((NSEntity) oFrom).getSnippet().getBase().equals(s.getFromBase())
                 && ((NSEntity) oTo).getSnippet().getBase().equals(s.getToBase())) {
             if (oFrom == oTo) {
                 return;
             }
-            o = new NSRelation(s, newName, (NSEntity) oFrom, (NSEntity) oTo);
+            this.isDirty = true;
+            o = new NSRelation(s, this.generateName(s.getName()), (NSEntity) oFrom, (NSEntity) oTo);
             s.instantiateNSObject(o);
             this.addObject(o);
-            this.tclView.setText(this.toTcl());
-            this.worldView.updateList();
         }
     }
 
@@ -198,31 +279,291 @@ public class NSModel extends NSWorld implements DMModel {
      */
     @Override
     public void updateAllViews(boolean onTheFly) {
+        if (this.batchDepth > 0) {
+            this.batchRefresh = true;
+            return;
+        }
         this.editView.repaint();
-        this.tclView.setText(this.toTcl());
-        this.worldView.updateList();
-        
+        this.updateTclView();
+
         if (!onTheFly) {
+            this.worldView.updateList();
             this.objectPanel.selectionChanged();
         }
     }
 
     /**
-     * Verifies if an object of a given type exists.
+     * Requests the Tcl view to be brought up to date. The Tcl code is
+     * generated in background, see TclViewUpdater.
+     */
+    private void updateTclView() {
+        if (this.batchDepth > 0) {
+            this.batchRefresh = true;
+        } else if (this.tclUpdater != null) {
+            this.tclUpdater.update();
+        }
+    }
+
+    /**
+     * Requests the list of objects to be rebuilt.
+     */
+    private void updateList() {
+        if (this.batchDepth > 0) {
+            this.batchRefresh = true;
+        } else {
+            this.worldView.updateList();
+        }
+    }
+
+    /**
+     * Starts a batch of changes: until the matching endBatch, requests to
+     * update the views are only recorded, and the changes are undone as a
+     * single step. Batches can be nested. Prefer batch(Runnable) where
+     * possible.
+     */
+    public void beginBatch() {
+        if (this.batchDepth++ == 0) {
+            this.pending = new PendingEvents();
+        }
+        this.undoManager.beginStep();
+    }
+
+    /**
+     * Ends a batch of changes started by beginBatch. When the outermost batch
+     * ends, the views are updated once if any change requested it.
+     */
+    public void endBatch() {
+        if (this.batchDepth == 0) {
+            return;
+        }
+        this.batchDepth--;
+        this.undoManager.endStep();
+        if (this.batchDepth > 0) {
+            return;
+        }
+        PendingEvents p = this.pending;
+        this.pending = null;
+        p.fire(this);
+        if (this.batchRefresh) {
+            this.batchRefresh = false;
+            this.updateAllViews(false);
+        }
+    }
+
+    /**
+     * Returns the history of the changes made to the model.
      *
-     * @return true if such object exists, false otherwise.
+     * @return the undo manager.
      */
-    boolean objectOfClassExists(String theClass) {
-        NSObject o;
-        int i;
+    public NSUndoManager getUndoManager() {
+        return this.undoManager;
+    }
+
+    /**
+     * Starts a gesture: its changes are undone as a single step. Unlike a
+     * batch, the views are updated while the gesture goes on.
+     */
+    @Override
+    public void beginEdit() {
+        this.undoManager.beginStep();
+    }
 
-        for (i = 0; i < this.getSize(); i++) {
-            o = (NSObject) this.getObjectAt(i);
-            if (o.getSnippet().getName().equals(theClass)) {
-                return true;
+    /**
+     * Ends a gesture started by beginEdit.
+     */
+    @Override
+    public void endEdit() {
+        this.undoManager.endStep();
+    }
+
+    /**
+     * Runs a batch of changes, such as addObjects, removeObjects or
+     * setAttribute on many objects, updating the views once at the end
+     * instead of after each change.
+     *
+     * @param changes the changes to run.
+     */
+    public void batch(Runnable changes) {
+        this.beginBatch();
+        try {
+            changes.run();
+        } finally {
+            this.endBatch();
+        }
+    }
+
+    /**
+     * Adds many objects to the model, see NSWorld.addObjects. The views are
+     * updated once.
+     *
+     * @param newObjects the objects to be stored.
+     * @return the number of objects stored.
+     */
+    @Override
+    public int addObjects(Collection<? extends NSObject> newObjects) {
+        int n = super.addObjects(newObjects);
+        if (n > 0) {
+            this.isDirty = true;
+        }
+        return n;
+    }
+
+    /**
+     * Removes many objects from the model, see NSWorld.removeObjects. The
+     * views are updated once.
+     *
+     * @param objects the objects to remove.
+     * @return the number of objects removed.
+     */
+    @Override
+    public int removeObjects(Collection<? extends NSObject> objects) {
+        int n = super.removeObjects(objects);
+        if (n > 0) {
+            this.isDirty = true;
+        }
+        return n;
+    }
+
+    /**
+     * Sets the value of an attribute on many objects, see
+     * NSWorld.setAttribute. The views are updated once.
+     *
+     * @param objects the objects to edit.
+     * @param attrName the name of the attribute.
+     * @param inNewValue the new value.
+     * @return the number of objects whose snippet defines the attribute.
+     */
+    @Override
+    public int setAttribute(Collection<? extends NSObject> objects, String attrName, String inNewValue) {
+        this.beginBatch();
+        try {
+            int n = super.setAttribute(objects, attrName, inNewValue);
+            if (n > 0) {
+                this.isDirty = true;
+            }
+            return n;
+        } finally {
+            this.endBatch();
+        }
+    }
+
+    /**
+     * Unselects all the objects, informing the listeners once.
+     */
+    @Override
+    public void unselectAll() {
+        this.beginBatch();
+        try {
+            super.unselectAll();
+        } finally {
+            this.endBatch();
+        }
+    }
+
+    @Override
+    void objectsAdded(List<NSObject> objects) {
+        if (this.pending != null) {
+            this.pending.added(objects);
+        } else {
+            this.fire(ADDED, objects, null);
+        }
+    }
+
+    @Override
+    void objectsRemoved(List<NSObject> objects) {
+        if (this.pending != null) {
+            this.pending.removed(objects);
+        } else {
+            this.fire(REMOVED, objects, null);
+        }
+    }
+
+    @Override
+    void attributeChanged(NSObject o, String attrName) {
+        if (this.pending != null) {
+            this.pending.changed(o, attrName);
+        } else {
+            this.fire(CHANGED, Collections.singletonList(o), attrName);
+        }
+    }
+
+    @Override
+    void objectMoved(NSObject o) {
+        if (this.pending != null) {
+            this.pending.moved.add(o);
+        } else {
+            this.fire(MOVED, Collections.singletonList(o), null);
+        }
+    }
+
+    @Override
+    void selectionToggled(NSObject o) {
+        if (this.pending != null) {
+            this.pending.selection.add(o);
+        } else {
+            this.fire(SELECTION, Collections.singletonList(o), null);
+        }
+    }
+
+    @Override
+    void arraysChanged() {
+        if (this.pending != null) {
+            this.pending.arrays = true;
+        } else {
+            this.fire(ARRAYS, Collections.<NSObject>emptyList(), null);
+        }
+    }
+
+    /**
+     * Delivers an event to the listeners.
+     *
+     * @param kind which listener method to call.
+     * @param objects the objects affected.
+     * @param attrName the attribute changed, for CHANGED events.
+     */
+    private void fire(int kind, List<NSObject> objects, String attrName) {
+        if (this.listeners == null) {
+            // Still being constructed, or nobody is listening
+            return;
+        }
+        NSModelListener[] ls = this.listeners.getListeners(NSModelListener.class);
+        if (ls.length == 0) {
+            return;
+        }
+        NSModelEvent e = new NSModelEvent(this, objects, attrName);
+        for (NSModelListener l : ls) {
+            switch (kind) {
+                case ADDED:
+                    l.objectsAdded(e);
+                    break;
+                case REMOVED:
+                    l.objectsRemoved(e);
+                    break;
+                case CHANGED:
+                    l.attributeChanged(e);
+                    break;
+                case MOVED:
+                    l.objectsMoved(e);
+                    break;
+                case SELECTION:
+                    l.selectionChanged(e);
+                    break;
+                case ARRAYS:
+                    l.arraysChanged(e);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unexpected event kind.");
             }
         }
-        return false;
+    }
+
+    /**
+     * Verifies if an object of a given type exists.
+     *
+     * @return true if such object exists, false otherwise.
+     */
+    boolean objectOfClassExists(String theClass) {
+        return this.countOf(theClass) > 0;
     }
 
     /**
@@ -231,22 +572,7 @@ public class NSModel extends NSWorld implements DMModel {
      * @return true if such a relation exists, false otherise.
      */
     boolean relationOfClassExists(DMObject dmo, String theClass) {
-        NSObject o, O;
-        NSRelation or;
-        int i;
-
-        O = (NSObject) dmo;
-        for (i = 0; i < this.getSize(); i++) {
-            o = (NSObject) this.getObjectAt(i);
-            if (o.getSnippet().isRelation()) {
-                or = (NSRelation) o;
-                if (((or.getFrom() == O) && or.getSnippet().getName().equals(theClass))
-                        || ((or.getTo() == O) && or.getSnippet().getName().equals(theClass))) {
-                    return true;
-                }
-            }
-        }
-        return false;
+        return this.hasRelation((NSObject) dmo, theClass);
     }
 
     /**
@@ -274,39 +600,153 @@ public class NSModel extends NSWorld implements DMModel {
     }
 
     /**
-     * Removes the currently selected objects.
+     * Gets the object hit by a mouse click. Entities are tested against the
+     * geometry store; relations one by one.
+     *
+     * @param r the size of the view.
+     * @param p the location of the mouse.
+     * @return the object hit that is stored first, or null if none.
      */
     @Override
-    public void removeSelected() {
-        int i;
-        NSEditableObject o;
-        NSRelation or;
-
-        // First, select also arcs attached to a entity to be deleted
-        for (i = 0; i < this.getSize(); i++) {
-            o = (NSEditableObject) this.getObjectAt(i);
-            if (o.getSnippet().isRelation()) {
-                or = (NSRelation) o;
-                if (or.getFrom().isSelected() || or.getTo().isSelected()) {
-                    or.select();
-                }
+    public DMObject getObjectHit(Dimension r, Point p) {
+        NSObject hit = null;
+        List<NSEntity> entities = new ArrayList<NSEntity>();
+        List<NSRelation> relations = new ArrayList<NSRelation>();
+
+        this.getGeometry().collectHits(p.getX() / r.width, p.getY() / r.height,
+                NSEntity.HIT_RADIUS, entities);
+        for (NSEntity e : entities) {
+            hit = this.firstInOrder(hit, e);
+        }
+        this.collectRelations(relations);
+        for (NSRelation or : relations) {
+            if (or.isHit(r, p)) {
+                hit = this.firstInOrder(hit, or);
             }
         }
+        return (DMObject) hit;
+    }
 
-        this.editView.repaint();
+    /**
+     * Gets the objects contained in a rectangle: the entities inside it, found
+     * through the geometry store, and the relations between them.
+     *
+     * @param r the size of the view.
+     * @param p1 a corner of the rectangle.
+     * @param p2 the opposite corner of the rectangle.
+     * @return the objects contained.
+     */
+    @Override
+    public List<DMObject> getObjectsIn(Dimension r, Point p1, Point p2) {
+        double x1 = p1.getX() / r.width, y1 = p1.getY() / r.height;
+        double x2 = p2.getX() / r.width, y2 = p2.getY() / r.height;
+        List<NSEntity> entities = new ArrayList<NSEntity>();
+        List<DMObject> found = new ArrayList<DMObject>();
 
-        Iterator<NSObject> iter = this.getObjectsIterator();
+        this.getGeometry().collectContained(Math.min(x1, x2), Math.min(y1, y2),
+                Math.max(x1, x2), Math.max(y1, y2), entities);
+        Set<NSEntity> inside = Collections.newSetFromMap(new IdentityHashMap<NSEntity, Boolean>());
+        inside.addAll(entities);
+        found.addAll(entities);
+        for (NSEntity e : entities) {
+            for (NSRelation or : this.getRelationsFrom(e, null)) {
+                if (inside.contains(or.getTo())) {
+                    found.add(or);
+                }
+            }
+        }
+        return found;
+    }
 
-        iter.next();
-        while (iter.hasNext()) {
-            o = (NSEditableObject) iter.next();
-            if (o.isSelected()) {
-                this.isDirty = true;
-                iter.remove();
+    /**
+     * Gets the objects that may be visible in a region of the view. The
+     * entities are found through the geometry store, in the band of the region
+     * and to its left, where only those whose label reaches the region are
+     * kept; relations are kept if the box around their ends meets the region.
+     *
+     * @param r the size of the view.
+     * @param clip the region being drawn, or null for the whole view.
+     * @param labels the metrics of the font used to draw the labels.
+     * @return the objects to draw, in the order they are stored.
+     */
+    @Override
+    public List<DMObject> getObjectsToDraw(Dimension r, Rectangle clip, FontMetrics labels) {
+        List<DMObject> found = new ArrayList<DMObject>();
+        if ((clip == null) || clip.contains(0, 0, r.width, r.height)
+                || (r.width <= 0) || (r.height <= 0)) {
+            for (int i = 0; i < this.getSize(); i++) {
+                found.add(this.getObjectAt(i));
+            }
+            return found;
+        }
+        // Room for an icon, its shadow and the height of its label
+        int size = (NSEntity.SIZE * r.width) / NSEntity.NOMINAL_WIDTH;
+        int margin = size + 2 + labels.getHeight();
+        List<NSEntity> entities = new ArrayList<NSEntity>();
+        List<NSRelation> relations = new ArrayList<NSRelation>();
+        List<NSObject> visible = new ArrayList<NSObject>();
+
+        this.getGeometry().collectContained(Double.NEGATIVE_INFINITY,
+                (double) (clip.y - margin) / r.height,
+                (double) (clip.x + clip.width + margin) / r.width,
+                (double) (clip.y + clip.height + margin) / r.height, entities);
+        for (NSEntity e : entities) {
+            int dx = (int) Math.round(r.width * e.getX());
+            if ((dx + margin >= clip.x)
+                    || (dx + size + labels.stringWidth(e.getName()) >= clip.x)) {
+                visible.add(e);
             }
         }
+        this.collectRelations(relations);
+        for (NSRelation or : relations) {
+            int x1 = (int) Math.round(r.width * or.getFrom().getX());
+            int y1 = (int) Math.round(r.height * or.getFrom().getY());
+            int x2 = (int) Math.round(r.width * or.getTo().getX());
+            int y2 = (int) Math.round(r.height * or.getTo().getY());
+            int m = size + (2 * or.getSnippet().getLineWidth()) + 2;
+            if ((Math.max(x1, x2) + m >= clip.x) && (Math.min(x1, x2) - m <= clip.x + clip.width)
+                    && (Math.max(y1, y2) + m >= clip.y) && (Math.min(y1, y2) - m <= clip.y + clip.height)) {
+                visible.add(or);
+            }
+        }
+        this.sortInOrder(visible);
+        for (NSObject o : visible) {
+            found.add((DMObject) o);
+        }
+        return found;
+    }
+
+    /**
+     * Gets a selected object, in the order the objects were selected.
+     *
+     * @param index the position of the object in the selection.
+     * @return the object if index is in the correct range, null otherwise.
+     */
+    @Override
+    public DMObject getSelectedAt(int index) {
+        return (DMObject) (this.getSelected(index));
+    }
+
+    /**
+     * Removes the currently selected objects.
+     */
+    @Override
+    public void removeSelected() {
+        this.beginBatch();
+        try {
+            // First, select also arcs attached to a entity to be deleted
+            for (NSObject o : this.getSelection()) {
+                if (!o.getSnippet().isRelation()) {
+                    for (NSRelation or : this.getRelationsOf(o)) {
+                        or.select();
+                    }
+                }
+            }
 
-        this.updateAllViews(false);
+            this.removeObjects(this.getSelection());
+        } finally {
+            this.endBatch();
+        }
     }
 
     /**
@@ -317,17 +757,17 @@ public class NSModel extends NSWorld implements DMModel {
         // Clean
         this.clearArrays();
 
-        Iterator<NSObject> iter = this.getObjectsIterator();
-
-        iter.next();
-        while (iter.hasNext()) {
-            iter.next();
-            iter.remove();
+        this.beginBatch();
+        try {
+            super.removeObjects(Arrays.asList(this.toObjectArray()));
+            this.resetNameCounters();
+            ((NSObject) this.getObjectAt(0)).getSnippet().instantiateNSObject((NSObject) this.getObjectAt(0));
+            ((NSObject) this.getObjectAt(0)).setName("ns");
+            this.updateAllViews(false);
+        } finally {
+            this.endBatch();
         }
-
-        ((NSObject) this.getObjectAt(0)).getSnippet().instantiateNSObject((NSObject) this.getObjectAt(0));
-        ((NSObject) this.getObjectAt(0)).setName("ns");
-        this.updateAllViews(false);
+        this.undoManager.discardAllEdits();
         this.setDirty(false);
     }
 
@@ -338,18 +778,210 @@ public class NSModel extends NSWorld implements DMModel {
      * @return a String containing the Tcl script of the model.
      */
     public String toTcl() {
-        StringBuilder s = new StringBuilder(this.getSize() + 1);
+        StringBuilder s = new StringBuilder(this.getSize() * TCL_LINE_SIZE);
         this.orderObjects();
-        
-        for (int i = 0; i < this.getSize(); i++) {
-            NSObject ob = (NSObject) this.getObjectAt(i);
-            s.append(ob.getSnippet().toTcl(this, ob, '#')).append('\n');
+        try {
+            this.writeTcl(s, null);
+        } catch (IOException ioe) {
+            // Appending to a StringBuilder never fails
+            LOG.log(Level.SEVERE, "{0}", ioe.toString());
         }
-
-        s.append("$").append(((NSObject) this.getObjectAt(0)).getName()).append(" run");
         return s.toString();
     }
 
+    /**
+     * Writes the Tcl representation of the current model to a stream. Objects
+     * are translated one at a time into a reused buffer, so that the memory
+     * required does not depend on the size of the model. Objects are written
+     * in the order they are stored: call orderObjects() first.
+     *
+     * @param out the destination of the script, typically a buffered Writer.
+     * @param monitor receives progress reports and can cancel the export. May
+     * be null.
+     * @return true if the whole script was written, false if the export was
+     * cancelled.
+     * @throws IOException if writing to the destination fails.
+     */
+    public boolean writeTcl(Appendable out, TaskMonitor monitor) throws IOException {
+        return writeTcl(this, this.ordered(), out, monitor);
+    }
+
+    /**
+     * Writes the Tcl representation of some objects to a stream, as
+     * writeTcl(Appendable, TaskMonitor) does for a whole model.
+     *
+     * @param w the model, or a snapshot of it.
+     * @param objects the objects, in order. The first one is the environment.
+     * @param out the destination of the script.
+     * @param monitor receives progress reports and can cancel the export. May
+     * be null.
+     * @return true if the whole script was written, false if the export was
+     * cancelled.
+     * @throws IOException if writing to the destination fails.
+     */
+    static boolean writeTcl(TclContext w, NSObject[] objects, Appendable out, TaskMonitor monitor) throws IOException {
+        StringBuilder s = new StringBuilder(TCL_LINE_SIZE * 16);
+        int count = objects.length;
+
+        for (int i = 0; i < count; i++) {
+            if ((monitor != null) && (i % MONITOR_INTERVAL == 0)) {
+                if (monitor.isCancelled()) {
+                    return false;
+                }
+                monitor.progress(i, count);
+            }
+            NSObject ob = objects[i];
+            String cached = ob.getCachedTcl();
+            if (cached != null) {
+                out.append(cached).append('\n');
+            } else {
+                s.setLength(0);
+                ob.getSnippet().appendTcl(s, w, ob, TclTemplate.SEPARATOR);
+                out.append(s).append('\n');
+            }
+        }
+
+        out.append("$").append(objects[0].getName()).append(" run");
+        if (monitor != null) {
+            monitor.progress(count, count);
+        }
+        return true;
+    }
+
+    /**
+     * Writes the Tcl representation of the current model to a stream,
+     * translating the objects in parallel. The model is split in windows of
+     * objects. Each window is translated by a fork/join pool in blocks, and
+     * the blocks are written in order, so that the result is the same as
+     * writeTcl(). The model must not be modified during the export. Objects
+     * are written in the order they are stored: call orderObjects() first.
+     *
+     * @param out the destination of the script, typically a buffered Writer.
+     * @param monitor receives progress reports and can cancel the export. May
+     * be null.
+     * @return true if the whole script was written, false if the export was
+     * cancelled.
+     * @throws IOException if writing to the destination fails.
+     */
+    public boolean writeTclParallel(Appendable out, TaskMonitor monitor) throws IOException {
+        return writeTclParallel(this, this.ordered(), out, monitor);
+    }
+
+    /**
+     * Writes the Tcl representation of some objects to a stream, translating
+     * them in parallel, as writeTclParallel(Appendable, TaskMonitor) does for
+     * a whole model.
+     *
+     * @param w the model, or a snapshot of it.
+     * @param objects the objects, in order. The first one is the environment.
+     * @param out the destination of the script.
+     * @param monitor receives progress reports and can cancel the export. May
+     * be null.
+     * @return true if the whole script was written, false if the export was
+     * cancelled.
+     * @throws IOException if writing to the destination fails.
+     */
+    static boolean writeTclParallel(TclContext w, NSObject[] objects, Appendable out, TaskMonitor monitor) throws IOException {
+        String[] blocks = new String[(PARALLEL_WINDOW + PARALLEL_BLOCK - 1) / PARALLEL_BLOCK];
+        ForkJoinPool pool = getExportPool();
+
+        for (int start = 0; start < objects.length; start += PARALLEL_WINDOW) {
+            if (monitor != null) {
+                if (monitor.isCancelled()) {
+                    return false;
+                }
+                monitor.progress(start, objects.length);
+            }
+            int end = Math.min(start + PARALLEL_WINDOW, objects.length);
+            pool.invoke(new TclBlocks(w, objects, blocks, start, start, end));
+            for (int b = 0; b < (end - start + PARALLEL_BLOCK - 1) / PARALLEL_BLOCK; b++) {
+                out.append(blocks[b]);
+                blocks[b] = null;
+            }
+        }
+
+        out.append("$").append(objects[0].getName()).append(" run");
+        if (monitor != null) {
+            monitor.progress(objects.length, objects.length);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the pool used by parallel exports, creating it if needed.
+     *
+     * @return the pool.
+     */
+    private static synchronized ForkJoinPool getExportPool() {
+        if (exportPool == null) {
+            exportPool = new ForkJoinPool();
+        }
+        return exportPool;
+    }
+
+    /**
+     * Translates a range of objects of a window, splitting it in blocks of
+     * PARALLEL_BLOCK objects. The code of each block is stored at its index in
+     * the window.
+     */
+    private static class TclBlocks extends RecursiveAction {
+
+        static final long serialVersionUID = 42L;
+        /**
+         * The model being translated, or a snapshot of it.
+         */
+        private final TclContext w;
+        /**
+         * All the objects of the model, in order.
+         */
+        private final NSObject[] objects;
+        /**
+         * Receives the code of each block of the window.
+         */
+        private final String[] blocks;
+        /**
+         * The first object of the window.
+         */
+        private final int window;
+        /**
+         * The range of objects to translate, always starting at a block
+         * boundary.
+         */
+        private final int lo, hi;
+
+        TclBlocks(TclContext inW, NSObject[] inObjects, String[] inBlocks, int inWindow, int inLo, int inHi) {
+            this.w = inW;
+            this.objects = inObjects;
+            this.blocks = inBlocks;
+            this.window = inWindow;
+            this.lo = inLo;
+            this.hi = inHi;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.hi - this.lo <= PARALLEL_BLOCK) {
+                StringBuilder s = new StringBuilder((this.hi - this.lo) * TCL_LINE_SIZE);
+                for (int i = this.lo; i < this.hi; i++) {
+                    NSObject ob = this.objects[i];
+                    String cached = ob.getCachedTcl();
+                    if (cached != null) {
+                        s.append(cached);
+                    } else {
+                        ob.getSnippet().appendTcl(s, this.w, ob, TclTemplate.SEPARATOR);
+                    }
+                    s.append('\n');
+                }
+                this.blocks[(this.lo - this.window) / PARALLEL_BLOCK] = s.toString();
+                return;
+            }
+            int blocksInRange = (this.hi - this.lo + PARALLEL_BLOCK - 1) / PARALLEL_BLOCK;
+            int mid = this.lo + (blocksInRange / 2) * PARALLEL_BLOCK;
+            invokeAll(new TclBlocks(this.w, this.objects, this.blocks, this.window, this.lo, mid),
+                    new TclBlocks(this.w, this.objects, this.blocks, this.window, mid, this.hi));
+        }
+    }
+
     /**
      * Represents the current simulation model as a string. This representation
      * is used to store the model on disk.
@@ -390,5 +1022,178 @@ public class NSModel extends NSWorld implements DMModel {
     public void setDirty(boolean dirtyState) {
         this.isDirty = dirtyState;
     }
+
+    /**
+     * The changes made during a batch, merged so that each listener method is
+     * called at most once when the batch ends.
+     */
+    private static class PendingEvents {
+
+        /**
+         * The objects added, and not removed afterwards.
+         */
+        final LinkedHashSet<NSObject> added = new LinkedHashSet<NSObject>();
+        /**
+         * The objects removed, that were part of the model before the batch.
+         */
+        final LinkedHashSet<NSObject> removed = new LinkedHashSet<NSObject>();
+        /**
+         * The objects whose attributes changed.
+         */
+        final LinkedHashSet<NSObject> changed = new LinkedHashSet<NSObject>();
+        /**
+         * The attribute changed, if the same for all the changes.
+         */
+        String attribute;
+        /**
+         * True if different attributes changed.
+         */
+        boolean mixed;
+        /**
+         * The objects moved.
+         */
+        final LinkedHashSet<NSObject> moved = new LinkedHashSet<NSObject>();
+        /**
+         * The objects whose selection state changed.
+         */
+        final LinkedHashSet<NSObject> selection = new LinkedHashSet<NSObject>();
+        /**
+         * True if the arrays changed.
+         */
+        boolean arrays;
+
+        void added(List<NSObject> objects) {
+            this.added.addAll(objects);
+        }
+
+        void removed(List<NSObject> objects) {
+            for (NSObject o : objects) {
+                if (!this.added.remove(o)) {
+                    this.removed.add(o);
+                }
+                this.changed.remove(o);
+                this.moved.remove(o);
+            }
+        }
+
+        void changed(NSObject o, String attrName) {
+            if (this.changed.isEmpty()) {
+                this.attribute = attrName;
+            } else if ((attrName == null) ? (this.attribute != null) : !attrName.equals(this.attribute)) {
+                this.mixed = true;
+            }
+            this.changed.add(o);
+        }
+
+        /**
+         * Delivers the merged events.
+         */
+        void fire(NSModel m) {
+            if (!this.removed.isEmpty()) {
+                m.fire(REMOVED, new ArrayList<NSObject>(this.removed), null);
+            }
+            if (!this.added.isEmpty()) {
+                m.fire(ADDED, new ArrayList<NSObject>(this.added), null);
+            }
+            if (!this.changed.isEmpty()) {
+                m.fire(CHANGED, new ArrayList<NSObject>(this.changed), this.mixed ? null : this.attribute);
+            }
+            if (!this.moved.isEmpty()) {
+                m.fire(MOVED, new ArrayList<NSObject>(this.moved), null);
+            }
+            if (!this.selection.isEmpty()) {
+                m.fire(SELECTION, new ArrayList<NSObject>(this.selection), null);
+            }
+            if (this.arrays) {
+                m.fire(ARRAYS, Collections.<NSObject>emptyList(), null);
+            }
+        }
+    }
+
+    /**
+     * Updates the views of the model with the changes that affect each of
+     * them. The object browser and the list of objects are refreshed once
+     * for a burst of changes; repaints and the Tcl view coalesce on their
+     * own.
+     */
+    private class ViewUpdater extends NSModelAdapter {
+
+        /**
+         * True if the list of objects has to be refreshed.
+         */
+        private boolean listPending;
+        /**
+         * True if the object browser has to be refreshed.
+         */
+        private boolean browserPending;
+
+        @Override
+        public void objectsAdded(NSModelEvent e) {
+            NSModel.this.editView.repaint();
+            NSModel.this.updateTclView();
+            this.refreshList();
+        }
+
+        @Override
+        public void objectsRemoved(NSModelEvent e) {
+            NSModel.this.editView.repaint();
+            NSModel.this.updateTclView();
+            this.refreshList();
+        }
+
+        @Override
+        public void attributeChanged(NSModelEvent e) {
+            NSModel.this.editView.repaint();
+            NSModel.this.updateTclView();
+            if (NSModelEvent.NAME.equals(e.getAttribute())) {
+                this.refreshList();
+            }
+        }
+
+        @Override
+        public void objectsMoved(NSModelEvent e) {
+            NSModel.this.editView.repaint();
+        }
+
+        @Override
+        public void selectionChanged(NSModelEvent e) {
+            NSModel.this.editView.repaint();
+            this.refreshBrowser();
+        }
+
+        @Override
+        public void arraysChanged(NSModelEvent e) {
+            NSModel.this.updateTclView();
+            this.refreshBrowser();
+        }
+
+        private void refreshList() {
+            if (this.listPending) {
+                return;
+            }
+            this.listPending = true;
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    ViewUpdater.this.listPending = false;
+                    NSModel.this.updateList();
+                }
+            });
+        }
+
+        private void refreshBrowser() {
+            if (this.browserPending) {
+                return;
+            }
+            this.browserPending = true;
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    ViewUpdater.this.browserPending = false;
+                    NSModel.this.objectPanel.selectionChanged();
+                }
+            });
+        }
+    }
     private static final Logger LOG = Logger.getLogger(NSModel.class.getName());
 }
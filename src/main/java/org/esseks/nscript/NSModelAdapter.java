@@ -0,0 +1,43 @@
+/*
+ * This source file is part of NScript, released under BSD-modern.
+ *
+ * Copyright (C) 2000-2001 Enrique Campos-Nanez
+ * Copyright (C) 2012 Stefano Sanfilippo
+ *
+ * See README.* at top level for copying, contacts, history and notes.
+ */
+package org.esseks.nscript;
+
+import java.util.logging.Logger;
+
+/**
+ * An NSModelListener that ignores all the events, to be extended by listeners
+ * interested only in some of them.
+ */
+public class NSModelAdapter extends Object implements NSModelListener {
+
+    @Override
+    public void objectsAdded(NSModelEvent e) {
+    }
+
+    @Override
+    public void objectsRemoved(NSModelEvent e) {
+    }
+
+    @Override
+    public void attributeChanged(NSModelEvent e) {
+    }
+
+    @Override
+    public void objectsMoved(NSModelEvent e) {
+    }
+
+    @Override
+    public void selectionChanged(NSModelEvent e) {
+    }
+
+    @Override
+    public void arraysChanged(NSModelEvent e) {
+    }
+    private static final Logger LOG = Logger.getLogger(NSModelAdapter.class.getName());
+}
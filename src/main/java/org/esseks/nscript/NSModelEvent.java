@@ -0,0 +1,85 @@
+/*
+ * This source file is part of NScript, released under BSD-modern.
+ *
+ * Copyright (C) 2000-2001 Enrique Campos-Nanez
+ * Copyright (C) 2012 Stefano Sanfilippo
+ *
+ * See README.* at top level for copying, contacts, history and notes.
+ */
+package org.esseks.nscript;
+
+import java.util.Collections;
+import java.util.EventObject;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Describes a change to a simulation model, see NSModelListener.
+ */
+public class NSModelEvent extends EventObject {
+
+    /**
+     *      */
+    private static final long serialVersionUID = 42L;
+    /**
+     * The attribute reported by attributeChanged when the name of the objects
+     * changed.
+     */
+    public static final String NAME = "name";
+    /**
+     * The attribute reported by attributeChanged when the array index of the
+     * objects changed.
+     */
+    public static final String ARRAY_INDEX = "arrayIndex";
+    /**
+     * The objects affected by the change.
+     */
+    private final List<NSObject> objects;
+    /**
+     * The attribute that changed, or null.
+     */
+    private final String attribute;
+
+    /**
+     * Creates an event.
+     *
+     * @param source the model that changed.
+     * @param inObjects the objects affected by the change.
+     * @param inAttribute the attribute that changed, or null if the change is
+     * not about a single attribute.
+     */
+    public NSModelEvent(NSModel source, List<NSObject> inObjects, String inAttribute) {
+        super(source);
+        this.objects = Collections.unmodifiableList(inObjects);
+        this.attribute = inAttribute;
+    }
+
+    /**
+     * Returns the model that changed.
+     *
+     * @return the model.
+     */
+    public NSModel getModel() {
+        return (NSModel) this.getSource();
+    }
+
+    /**
+     * Returns the objects affected by the change.
+     *
+     * @return an unmodifiable list, empty for arraysChanged.
+     */
+    public List<NSObject> getObjects() {
+        return this.objects;
+    }
+
+    /**
+     * Returns the attribute that changed, for attributeChanged events.
+     *
+     * @return the name of the attribute as defined by the snippet, NAME,
+     * ARRAY_INDEX, or null if several attributes changed.
+     */
+    public String getAttribute() {
+        return this.attribute;
+    }
+    private static final Logger LOG = Logger.getLogger(NSModelEvent.class.getName());
+}
@@ -0,0 +1,65 @@
+/*
+ * This source file is part of NScript, released under BSD-modern.
+ *
+ * Copyright (C) 2000-2001 Enrique Campos-Nanez
+ * Copyright (C) 2012 Stefano Sanfilippo
+ *
+ * See README.* at top level for copying, contacts, history and notes.
+ */
+package org.esseks.nscript;
+
+import java.util.EventListener;
+
+/**
+ * Receives the changes made to a simulation model, so that a view can update
+ * only what changed. Events are delivered in the thread making the change
+ * (normally the event dispatch thread). Inside a batch (see NSModel.batch)
+ * they are collected, and delivered once when the batch ends.
+ *
+ * @see NSModelAdapter
+ */
+public interface NSModelListener extends EventListener {
+
+    /**
+     * Called after objects are added to the model.
+     *
+     * @param e the objects added.
+     */
+    public void objectsAdded(NSModelEvent e);
+
+    /**
+     * Called after objects are removed from the model.
+     *
+     * @param e the objects removed.
+     */
+    public void objectsRemoved(NSModelEvent e);
+
+    /**
+     * Called after an attribute, the name or the array index of some objects
+     * changed.
+     *
+     * @param e the objects changed, and which attribute.
+     */
+    public void attributeChanged(NSModelEvent e);
+
+    /**
+     * Called after entities are moved.
+     *
+     * @param e the objects moved.
+     */
+    public void objectsMoved(NSModelEvent e);
+
+    /**
+     * Called after objects are selected or unselected.
+     *
+     * @param e the objects whose selection state changed.
+     */
+    public void selectionChanged(NSModelEvent e);
+
+    /**
+     * Called after index arrays are added, removed or edited.
+     *
+     * @param e an event with no objects.
+     */
+    public void arraysChanged(NSModelEvent e);
+}
@@ -10,8 +10,12 @@ package org.esseks.nscript;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -34,9 +38,23 @@ public class NSObject extends Object implements Serializable, Comparable<NSObjec
      */
     private String name;
     /**
-     * Attributes of the current object.
+     * The number of attributes of the current object. Zero until the object is
+     * instantiated by its snippet.
      */
-    private ArrayList<String> attributes;
+    private int attributeCount;
+    /**
+     * The codes (see ValueDictionary) of the attributes that differ from the
+     * defaults of the snippet, or DEFAULT where the default applies. The array
+     * itself is null until an attribute is set to a value other than its
+     * default, so that objects keeping their defaults share the values of the
+     * snippet. Codes are canonical only within the running program, so they
+     * are encoded again when read (see readObject).
+     */
+    private transient String[] overrides;
+    /**
+     * Marks the attributes in overrides that keep the default value.
+     */
+    private static final String DEFAULT = null;
     /**
      * An object can be indexed by an array. arrayIndex stores a reference to
      * this array, or -1 if no array is in use.
@@ -47,6 +65,45 @@ public class NSObject extends Object implements Serializable, Comparable<NSObjec
      * Precedence to print neatly the tcl script
      */
     private int precedence;
+    /**
+     * The world (model) this object is stored in, or null if the object is
+     * not part of a model yet. Changes that affect the Tcl code of other
+     * objects are reported to it.
+     */
+    private NSWorld world;
+    /**
+     * The Tcl code generated for this object, or null if it has to be
+     * generated again.
+     */
+    private transient String tcl;
+    /**
+     * The order in which this object was added to its world, used to sort
+     * objects that compare as equal.
+     */
+    private long sequence = -1;
+    /**
+     * The frozen copy of this object (see freeze), or null if the object
+     * changed since it was last frozen.
+     */
+    private transient NSObject frozen;
+    /**
+     * True if overrides may be shared with a frozen copy, so that it has to
+     * be copied before being modified.
+     */
+    private transient boolean overridesShared;
+    /**
+     * The attributes given to single elements of the array indexing this
+     * object (see NSElement), by index of the element, laid out as in
+     * overrides. Only customized elements are here, so that the elements of
+     * a large array take no memory of their own. Null if no element is
+     * customized.
+     */
+    private transient HashMap<Integer, String[]> elementOverrides;
+    /**
+     * True if elementOverrides may be shared with a frozen copy, so that it
+     * has to be copied before being modified.
+     */
+    private transient boolean elementsShared;
 
     /**
      * Only constructor that requires a name and a class definition (Snippet).
@@ -58,7 +115,6 @@ public class NSObject extends Object implements Serializable, Comparable<NSObjec
         this.snippet = inSnippet;
 
         // Initialize the objects data structure
-        this.attributes = new ArrayList<String>();
         this.arrayIndex = -1;
         this.name = inName;
     }
@@ -88,7 +144,21 @@ public class NSObject extends Object implements Serializable, Comparable<NSObjec
      * 11 is for any other Entity
      */
     protected void setPrecedence(int v){
-        this.precedence = v;
+        NSWorld w = this.lockWorld();
+        try {
+            if (this.precedence == v) {
+                return;
+            }
+            if (this.world != null) {
+                this.world.orderKeyChanging(this);
+            }
+            this.precedence = v;
+            if (this.world != null) {
+                this.world.orderKeyChanged(this);
+            }
+        } finally {
+            NSObject.unlockWorld(w);
+        }
     }
     
     /**
@@ -106,7 +176,25 @@ public class NSObject extends Object implements Serializable, Comparable<NSObjec
      * @param inName the new name for the object.
      */
     public void setName(String inName) {
-        this.name = inName;
+        NSWorld w = this.lockWorld();
+        try {
+            String oldName = this.name;
+            if (this.world != null) {
+                this.world.orderKeyChanging(this);
+            }
+            this.name = inName;
+            this.invalidateTcl();
+            if (this.world != null) {
+                this.world.orderKeyChanged(this);
+                this.world.objectRenamed(this);
+                this.world.attributeChanged(this, NSModelEvent.NAME);
+                if (this.world.getUndoRecorder() != null) {
+                    this.world.getUndoRecorder().renamed(this, oldName, inName);
+                }
+            }
+        } finally {
+            NSObject.unlockWorld(w);
+        }
     }
 
     /**
@@ -134,7 +222,31 @@ public class NSObject extends Object implements Serializable, Comparable<NSObjec
      * @param newArrayIndex the (new) number of the array that indices.
      */
     public void setArrayIndex(int newArrayIndex) {
-        this.arrayIndex = newArrayIndex;
+        NSWorld w = this.lockWorld();
+        try {
+            if (this.arrayIndex != newArrayIndex) {
+                int oldArrayIndex = this.arrayIndex;
+                this.arrayIndex = newArrayIndex;
+                this.arrayIndexChanged();
+                if ((this.world != null) && (this.world.getUndoRecorder() != null)) {
+                    this.world.getUndoRecorder().arrayIndexSet(this, oldArrayIndex, newArrayIndex);
+                }
+            }
+        } finally {
+            NSObject.unlockWorld(w);
+        }
+    }
+
+    /**
+     * Invalidates the Tcl code that depends on the array index of this object:
+     * its own, and that of the relations attached to it.
+     */
+    private void arrayIndexChanged() {
+        this.invalidateTcl();
+        if (this.world != null) {
+            this.world.invalidateRelationsOf(this);
+            this.world.attributeChanged(this, NSModelEvent.ARRAY_INDEX);
+        }
     }
 
     /**
@@ -143,7 +255,59 @@ public class NSObject extends Object implements Serializable, Comparable<NSObjec
      * @return the array index.
      */
     public int getAttributeCount() {
-        return this.attributes.size();
+        return this.attributeCount;
+    }
+
+    /**
+     * Resets all the attributes to the defaults of the snippet. Called by
+     * TclSnippet.instantiateNSObject.
+     *
+     * @param count the number of attributes defined by the snippet.
+     */
+    void resetAttributes(int count) {
+        NSWorld w = this.lockWorld();
+        try {
+            int oldCount = this.attributeCount;
+            String[] oldOverrides = this.overrides;
+            this.restoreAttributes(count, null);
+            if ((this.world != null) && (this.world.getUndoRecorder() != null)) {
+                this.world.getUndoRecorder().attributesReset(this, oldCount, oldOverrides, count);
+            }
+        } finally {
+            NSObject.unlockWorld(w);
+        }
+    }
+
+    /**
+     * Replaces all the attributes, as saved before a call to resetAttributes.
+     * Used to undo it.
+     *
+     * @param count the number of attributes.
+     * @param savedOverrides the overridden codes, or null; not copied.
+     */
+    void restoreAttributes(int count, String[] savedOverrides) {
+        NSWorld w = this.lockWorld();
+        try {
+            this.attributeCount = count;
+            this.overrides = savedOverrides;
+            // Saved before a reset, possibly while shared with a frozen copy
+            this.overridesShared = (savedOverrides != null);
+            this.invalidateTcl();
+            if (this.world == null) {
+                return;
+            }
+            if (this.world.getEnvironment() == this) {
+                for (int i = 0; i < count; i++) {
+                    TclAttribute a = this.snippet.getAttribute(i);
+                    if (a != null) {
+                        this.world.environmentChanged(a.getName());
+                    }
+                }
+            }
+            this.world.attributeChanged(this, null);
+        } finally {
+            NSObject.unlockWorld(w);
+        }
     }
 
     /**
@@ -155,10 +319,17 @@ public class NSObject extends Object implements Serializable, Comparable<NSObjec
      * @param aig the index that was erased.
      */
     public void arrayIndexGone(int aig) {
-        if (this.arrayIndex > aig) {
-            this.arrayIndex--;
-        } else if (this.arrayIndex == aig) {
-            this.arrayIndex = -1;
+        NSWorld w = this.lockWorld();
+        try {
+            if (this.arrayIndex > aig) {
+                this.arrayIndex--;
+                this.arrayIndexChanged();
+            } else if (this.arrayIndex == aig) {
+                this.arrayIndex = -1;
+                this.arrayIndexChanged();
+            }
+        } finally {
+            NSObject.unlockWorld(w);
         }
     }
 
@@ -169,10 +340,29 @@ public class NSObject extends Object implements Serializable, Comparable<NSObjec
      * @param inNewValue a String containing the new value.
      */
     public void setAttribute(int inAttrIndex, String inNewValue) {
-        if (inAttrIndex >= this.attributes.size()) {
-            this.attributes.add(inAttrIndex, inNewValue);
-        } else {
-            this.attributes.set(inAttrIndex, inNewValue);
+        NSWorld w = this.lockWorld();
+        try {
+            NSUndoManager undo = (this.world == null) ? null : this.world.getUndoRecorder();
+            String oldCode = (undo == null) ? ValueDictionary.EMPTY : this.getAttributeCode(inAttrIndex);
+            if (inAttrIndex >= this.attributeCount) {
+                this.attributeCount = inAttrIndex + 1;
+            }
+            this.setAttributeCode(inAttrIndex,
+                    (inNewValue == null) ? DEFAULT : ValueDictionary.encode(inNewValue));
+            this.invalidateTcl();
+            if (this.world == null) {
+                return;
+            }
+            TclAttribute a = this.snippet.getAttribute(inAttrIndex);
+            if ((a != null) && (this.world.getEnvironment() == this)) {
+                this.world.environmentChanged(a.getName());
+            }
+            this.world.attributeChanged(this, (a == null) ? null : a.getName());
+            if (undo != null) {
+                undo.attributeSet(this, inAttrIndex, oldCode, this.getAttributeCode(inAttrIndex));
+            }
+        } finally {
+            NSObject.unlockWorld(w);
         }
     }
 
@@ -184,13 +374,443 @@ public class NSObject extends Object implements Serializable, Comparable<NSObjec
      * and an empty String otherwise.
      */
     public String getAttribute(int inAttrIndex) {
-        if (inAttrIndex >= this.attributes.size()) {
-            return "";
-        } else {
-            return this.attributes.get(inAttrIndex);
+        return this.getAttributeCode(inAttrIndex);
+    }
+
+    /**
+     * Sets the code of an attribute of an object that is not part of a world
+     * yet, e.g. while reading a model: nothing is recorded or reported.
+     *
+     * @param inAttrIndex the attribute index.
+     * @param code the code of the value in ValueDictionary.
+     */
+    void loadAttributeCode(int inAttrIndex, String code) {
+        if (inAttrIndex >= this.attributeCount) {
+            this.attributeCount = inAttrIndex + 1;
+        }
+        this.setAttributeCode(inAttrIndex, code);
+    }
+
+    /**
+     * Returns the code of the value of the attribute stored at a given
+     * position. Two attributes have the same value if and only if they have
+     * the same code, i.e. the same String instance.
+     *
+     * @param inAttrIndex the attribute index.
+     * @return the code of the value in ValueDictionary.
+     */
+    String getAttributeCode(int inAttrIndex) {
+        if (inAttrIndex >= this.attributeCount) {
+            return ValueDictionary.EMPTY;
         }
+        String[] o = this.overrides;
+        if ((o != null) && (inAttrIndex < o.length) && (o[inAttrIndex] != DEFAULT)) {
+            return o[inAttrIndex];
+        }
+        return this.snippet.getDefaultCode(inAttrIndex);
+    }
+
+    /**
+     * Stores the code of an attribute, allocating the overrides only if the
+     * value differs from the default.
+     *
+     * @param inAttrIndex the attribute index, below attributeCount.
+     * @param code the code of the value, or DEFAULT.
+     */
+    private void setAttributeCode(int inAttrIndex, String code) {
+        if (this.overridesShared) {
+            if (this.overrides != null) {
+                this.overrides = this.overrides.clone();
+            }
+            this.overridesShared = false;
+        }
+        if ((code == DEFAULT) || (code == this.snippet.getDefaultCode(inAttrIndex))) {
+            if ((this.overrides != null) && (inAttrIndex < this.overrides.length)) {
+                this.overrides[inAttrIndex] = DEFAULT;
+            }
+            return;
+        }
+        if (this.overrides == null) {
+            this.overrides = new String[Math.max(this.attributeCount, this.snippet.getAttributeCount())];
+        } else if (inAttrIndex >= this.overrides.length) {
+            this.overrides = Arrays.copyOf(this.overrides, this.attributeCount);
+        }
+        this.overrides[inAttrIndex] = code;
     }
     
+    /**
+     * Returns the value of an attribute given its name.
+     *
+     * @param attrName the name of the attribute, as defined by the snippet.
+     * @return a String with the value of the attribute, if the snippet defines
+     * it, and an empty String otherwise.
+     */
+    public String getAttribute(String attrName) {
+        int i = this.snippet.indexOf(attrName);
+        return (i < 0) ? "" : this.getAttribute(i);
+    }
+
+    /**
+     * Sets the value of an attribute given its name.
+     *
+     * @param attrName the name of the attribute, as defined by the snippet.
+     * @param inNewValue a String containing the new value.
+     * @return true if the attribute was set, false if the snippet does not
+     * define it.
+     */
+    public boolean setAttribute(String attrName, String inNewValue) {
+        int i = this.snippet.indexOf(attrName);
+        if (i < 0) {
+            return false;
+        }
+        this.setAttribute(i, inNewValue);
+        return true;
+    }
+
+    /**
+     * Returns the value of an attribute of an element of the array indexing
+     * this object: the value given to the element, or else the value of the
+     * object.
+     *
+     * @param element the 0-based index of the element.
+     * @param inAttrIndex the attribute index.
+     * @return a String with the value of the attribute, if the index is valid,
+     * and an empty String otherwise.
+     */
+    public String getElementAttribute(int element, int inAttrIndex) {
+        String code = this.getElementOverride(element, inAttrIndex);
+        return (code == DEFAULT) ? this.getAttributeCode(inAttrIndex) : code;
+    }
+
+    /**
+     * Returns the code of the value given to an attribute of an element.
+     *
+     * @return the code, or DEFAULT if the element takes the value of the
+     * object.
+     */
+    private String getElementOverride(int element, int inAttrIndex) {
+        HashMap<Integer, String[]> m = this.elementOverrides;
+        if ((m != null) && (inAttrIndex < this.attributeCount)) {
+            String[] codes = m.get(element);
+            if ((codes != null) && (inAttrIndex < codes.length)) {
+                return codes[inAttrIndex];
+            }
+        }
+        return DEFAULT;
+    }
+
+    /**
+     * Gives an element of the array indexing this object a value of its own
+     * for an attribute. The value is not part of the Tcl code, nor of the
+     * saved model: it is meant for tools that analyze the elements one by
+     * one.
+     *
+     * @param element the 0-based index of the element.
+     * @param inAttrIndex the attribute index, below getAttributeCount().
+     * @param inNewValue the new value, or null to take the value of the
+     * object again.
+     */
+    public void setElementAttribute(int element, int inAttrIndex, String inNewValue) {
+        if ((element < 0) || (inAttrIndex < 0) || (inAttrIndex >= this.attributeCount)) {
+            return;
+        }
+        NSWorld w = this.lockWorld();
+        try {
+            String oldCode = this.getElementOverride(element, inAttrIndex);
+            String code = (inNewValue == null) ? DEFAULT : ValueDictionary.encode(inNewValue);
+            if (code == oldCode) {
+                return;
+            }
+            this.setElementOverride(element, inAttrIndex, code);
+            this.discardFrozen();
+            if (w != null) {
+                TclAttribute a = this.snippet.getAttribute(inAttrIndex);
+                w.attributeChanged(this, (a == null) ? null : a.getName());
+                if (w.getUndoRecorder() != null) {
+                    w.getUndoRecorder().elementAttributeSet(this, element, inAttrIndex,
+                            oldCode,
+                            inNewValue);
+                }
+            }
+        } finally {
+            NSObject.unlockWorld(w);
+        }
+    }
+
+    /**
+     * Stores the code given to an attribute of an element, dropping the
+     * element when none of its attributes has a value of its own. The arrays
+     * of codes are copied before being modified, since they may be shared
+     * with a frozen copy.
+     */
+    private void setElementOverride(int element, int inAttrIndex, String code) {
+        if (this.elementsShared) {
+            if (this.elementOverrides != null) {
+                this.elementOverrides = new HashMap<Integer, String[]>(this.elementOverrides);
+            }
+            this.elementsShared = false;
+        }
+        if (this.elementOverrides == null) {
+            this.elementOverrides = new HashMap<Integer, String[]>();
+        }
+        String[] codes = this.elementOverrides.get(element);
+        if (codes == null) {
+            codes = new String[this.attributeCount];
+        } else {
+            codes = Arrays.copyOf(codes, Math.max(codes.length, this.attributeCount));
+        }
+        codes[inAttrIndex] = code;
+        for (String c : codes) {
+            if (c != DEFAULT) {
+                this.elementOverrides.put(element, codes);
+                return;
+            }
+        }
+        this.elementOverrides.remove(element);
+        if (this.elementOverrides.isEmpty()) {
+            this.elementOverrides = null;
+        }
+    }
+
+    /**
+     * Tells if an element of the array indexing this object has values of its
+     * own.
+     *
+     * @param element the 0-based index of the element.
+     * @return true if the element is customized.
+     */
+    public boolean isElementCustomized(int element) {
+        HashMap<Integer, String[]> m = this.elementOverrides;
+        return (m != null) && m.containsKey(element);
+    }
+
+    /**
+     * Returns the indices of the elements that have values of their own.
+     *
+     * @return the indices, in increasing order.
+     */
+    public int[] getCustomizedElements() {
+        HashMap<Integer, String[]> m = this.elementOverrides;
+        if (m == null) {
+            return new int[0];
+        }
+        int[] a = new int[m.size()];
+        int i = 0;
+        for (Integer e : m.keySet()) {
+            a[i++] = e;
+        }
+        Arrays.sort(a);
+        return a;
+    }
+
+    /**
+     * Returns the world this object is stored in.
+     *
+     * @return the world, or null if the object is not part of a model.
+     */
+    NSWorld getWorld() {
+        return this.world;
+    }
+
+    /**
+     * Acquires the write lock of the world of this object before a change, if
+     * the world is concurrent (see NSWorld.setConcurrent). Must be followed by
+     * a call to unlockWorld, in a finally block.
+     *
+     * @return the world, or null if the object is not part of one.
+     */
+    NSWorld lockWorld() {
+        NSWorld w = this.world;
+        if (w != null) {
+            w.beginWrite();
+        }
+        return w;
+    }
+
+    /**
+     * Releases the write lock acquired by lockWorld.
+     *
+     * @param w the world returned by lockWorld.
+     */
+    static void unlockWorld(NSWorld w) {
+        if (w != null) {
+            w.endWrite();
+        }
+    }
+
+    /**
+     * Sets the world this object is stored in. Called by NSWorld only.
+     *
+     * @param w the world, or null when the object is removed.
+     */
+    void setWorld(NSWorld w) {
+        this.world = w;
+    }
+
+    /**
+     * Returns the sequence number given to this object by its world.
+     *
+     * @return the sequence number, or a negative number if the object is not
+     * stored in a world.
+     */
+    long getSequence() {
+        return this.sequence;
+    }
+
+    /**
+     * Sets the sequence number of this object. Called by NSWorld only.
+     *
+     * @param seq the sequence number.
+     */
+    void setSequence(long seq) {
+        this.sequence = seq;
+    }
+
+    /**
+     * Marks this object as no longer stored in a world. The sequence number it
+     * had is remembered, encoded as a negative value, so that undoing the
+     * removal can put the object back in its place.
+     */
+    void clearSequence() {
+        if (this.sequence >= 0) {
+            this.sequence = -2 - this.sequence;
+        }
+    }
+
+    /**
+     * Returns the sequence number of this object, or the one it had when it
+     * was last removed from its world.
+     *
+     * @return the sequence number, or -1 if the object was never stored.
+     */
+    long getLastSequence() {
+        return (this.sequence >= -1) ? this.sequence : (-2 - this.sequence);
+    }
+
+    /**
+     * Returns the Tcl code for this object, generating it only if the object
+     * (or anything its code depends on) changed since the last call.
+     *
+     * @param w a reference to the simulation model.
+     * @return the Tcl code for the object.
+     */
+    public String getTcl(NSWorld w) {
+        String t = this.tcl;
+        if (t == null) {
+            t = this.snippet.toTcl(w, this, TclTemplate.SEPARATOR);
+            this.tcl = t;
+        }
+        return t;
+    }
+
+    /**
+     * Returns the cached Tcl code for this object, without generating it.
+     *
+     * @return the Tcl code, or null if it is not cached.
+     */
+    public String getCachedTcl() {
+        return this.tcl;
+    }
+
+    /**
+     * Stores Tcl code generated elsewhere, e.g. in a background thread, as the
+     * cached code for this object. The caller is responsible for making sure
+     * that the object did not change in the meantime.
+     *
+     * @param code the Tcl code for the object.
+     */
+    void setCachedTcl(String code) {
+        this.tcl = code;
+    }
+
+    /**
+     * Discards the cached Tcl code, and reports the object as changed to its
+     * world. Called whenever something the Tcl code depends on changes.
+     */
+    public void invalidateTcl() {
+        this.tcl = null;
+        this.frozen = null;
+        if (this.world != null) {
+            this.world.tclInvalidated(this);
+        }
+    }
+
+    /**
+     * Discards the frozen copy of this object, after a change that does not
+     * affect its Tcl code, such as a move.
+     */
+    void discardFrozen() {
+        this.frozen = null;
+        if (this.world != null) {
+            this.world.discardSnapshot();
+        }
+    }
+
+    /**
+     * Returns a frozen copy of this object: a copy that is not part of any
+     * world and is never modified, so that it can be read from any thread.
+     * The copy shares the name and the attribute values of the object, which
+     * copies them before changing them. It is returned again until the object
+     * changes, so that the snapshots of a model share the objects that did
+     * not change between them (see NSWorld.snapshot). Must be called from the
+     * thread that edits the model.
+     *
+     * @return the frozen copy.
+     */
+    NSObject freeze() {
+        NSObject f = this.frozen;
+        if (f == null) {
+            f = this.newCopy();
+            f.attributeCount = this.attributeCount;
+            f.arrayIndex = this.arrayIndex;
+            f.precedence = this.precedence;
+            f.tcl = this.tcl;
+            if (this.overrides != null) {
+                f.overrides = this.overrides;
+                f.overridesShared = true;
+                this.overridesShared = true;
+            }
+            if (this.elementOverrides != null) {
+                f.elementOverrides = this.elementOverrides;
+                f.elementsShared = true;
+                this.elementsShared = true;
+            }
+            this.snippet.prepareFrozen(f);
+            this.frozen = f;
+        }
+        return f;
+    }
+
+    /**
+     * Returns a copy of this object that is not part of any world, with the
+     * same array index, precedence and attribute values. Unlike the frozen
+     * copy, it is made anew each time and may be modified, e.g. to translate
+     * a corrected version of the object; this object is only read. The ends
+     * of a relation are frozen (see newCopy), so relations must be copied
+     * from the thread that edits the model.
+     *
+     * @return the copy.
+     */
+    NSObject detachedCopy() {
+        NSObject c = this.newCopy();
+        c.arrayIndex = this.arrayIndex;
+        c.precedence = this.precedence;
+        for (int i = 0; i < this.attributeCount; i++) {
+            c.loadAttributeCode(i, this.getAttributeCode(i));
+        }
+        return c;
+    }
+
+    /**
+     * Creates an object of the same class, snippet and name as this one, to
+     * be completed by freeze. Overridden by the subclasses that add state.
+     *
+     * @return the new object.
+     */
+    NSObject newCopy() {
+        return new NSObject(this.snippet, this.name);
+    }
+
     /**
      * Compare this object to another according the attribute precedence
      * @param nsobj     object to compare with
@@ -209,14 +829,14 @@ public class NSObject extends Object implements Serializable, Comparable<NSObjec
      */
     @Override
     public String toString() {
-        StringBuilder str = new StringBuilder(this.attributes.size() + 1);
+        StringBuilder str = new StringBuilder(this.attributeCount + 1);
 
         str.append(this.snippet.getName()).append("\n")
                 .append(this.name).append("\n")
                 .append(Integer.toString(this.arrayIndex)).append("\n");
 
-        for (int i = 0; i < this.attributes.size(); i++) {
-            str.append(this.attributes.get(i)).append("\n");
+        for (int i = 0; i < this.attributeCount; i++) {
+            str.append(this.getAttribute(i)).append("\n");
         }
         return str.toString();
     }
@@ -229,7 +849,7 @@ public class NSObject extends Object implements Serializable, Comparable<NSObjec
     public void fromString(BufferedReader br) {
         try {
             this.setArrayIndex(Integer.parseInt(br.readLine()));
-            for (int i = 0; i < this.attributes.size(); i++) {
+            for (int i = 0; i < this.attributeCount; i++) {
                 this.setAttribute(i, br.readLine());
             }
         } catch (IOException ioe) {
@@ -239,5 +859,44 @@ public class NSObject extends Object implements Serializable, Comparable<NSObjec
                     });
         }
     }
+
+    /**
+     * Serializes the values of the attributes.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeObject(this.overrides);
+        out.writeObject(this.elementOverrides);
+    }
+
+    /**
+     * Restores the values of the attributes written by writeObject.
+     */
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        this.overrides = encodeAll((String[]) in.readObject());
+        HashMap<Integer, String[]> elements = (HashMap<Integer, String[]>) in.readObject();
+        if (elements != null) {
+            this.elementOverrides = new HashMap<Integer, String[]>(elements.size() * 2);
+            for (Map.Entry<Integer, String[]> e : elements.entrySet()) {
+                this.elementOverrides.put(e.getKey(), encodeAll(e.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Turns values read from a stream into codes, leaving null for DEFAULT.
+     */
+    private static String[] encodeAll(String[] values) {
+        if (values == null) {
+            return null;
+        }
+        String[] codes = new String[values.length];
+        for (int i = 0; i < values.length; i++) {
+            codes[i] = (values[i] == null) ? DEFAULT : ValueDictionary.encode(values[i]);
+        }
+        return codes;
+    }
     private static final Logger LOG = Logger.getLogger(NSObject.class.getName());
 }
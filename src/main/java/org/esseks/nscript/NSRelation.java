@@ -59,11 +59,27 @@ class NSRelation extends NSEditableObject {
         this.setPrecedence();
     }
     
+    /**
+     * Links the relation to its ends before it is added to a world. Used when
+     * reading a model, where a relation may come before its ends.
+     *
+     * @param inFrom the origin.
+     * @param inTo the destination.
+     */
+    void link(NSEntity inFrom, NSEntity inTo) {
+        this.from = inFrom;
+        this.to = inTo;
+        this.setPrecedence();
+        this.invalidateTcl();
+    }
+
     /**
      * Set the precedence of the object according to the types of entities connected.
      */
     private void setPrecedence(){
-        if (this.isNode2Node())
+        if ((this.from == null) || (this.to == null))   // not linked yet, see fromString
+            super.setPrecedence(10);
+        else if (this.isNode2Node())
             super.setPrecedence(2);
         else if (this.isAgent2Node() || this.isAgent2Agent())
             super.setPrecedence(4);
@@ -138,6 +154,41 @@ class NSRelation extends NSEditableObject {
         return this.to;
     }
 
+    /**
+     * Returns a frozen copy of this relation, linking the frozen copies of its
+     * ends. The copy is made again if an end changed since it was made.
+     *
+     * @return the frozen copy.
+     */
+    @Override
+    NSObject freeze() {
+        NSRelation f = (NSRelation) super.freeze();
+        if ((f.from != freezeEnd(this.from)) || (f.to != freezeEnd(this.to))) {
+            this.discardFrozen();
+            f = (NSRelation) super.freeze();
+        }
+        return f;
+    }
+
+    /**
+     * Creates a copy of this relation between the frozen copies of its ends,
+     * to be completed by freeze.
+     *
+     * @return the new relation.
+     */
+    @Override
+    NSObject newCopy() {
+        return new NSRelation(this.getSnippet(), this.getName(), freezeEnd(this.from), freezeEnd(this.to));
+    }
+
+    /**
+     * Returns the frozen copy of an end of a relation, which may be missing
+     * while the relation is being read.
+     */
+    private static NSEntity freezeEnd(NSEntity e) {
+        return (e == null) ? null : (NSEntity) e.freeze();
+    }
+
     /**
      * A routine where the relation draws itself on the provided graphic context
      * (Graphics), and using the dimension of the current view pane. It uses
@@ -358,15 +409,27 @@ class NSRelation extends NSEditableObject {
      * @param M a reference to the model containing the objects related by it.
      */
     public void fromString(BufferedReader br, NSModel M) {
+        NSWorld w = this.lockWorld();
         try {
             super.fromString(br);
+            // The ends are part of the incidence index of the world
+            if (this.getWorld() != null) {
+                this.getWorld().orderKeyChanging(this);
+            }
             this.from = (NSEntity) M.getObject(br.readLine());
             this.to = (NSEntity) M.getObject(br.readLine());
+            this.setPrecedence();
+            if (this.getWorld() != null) {
+                this.getWorld().orderKeyChanged(this);
+            }
+            this.invalidateTcl();
         } catch (IOException ioe) {
             LOG.log(Level.SEVERE, "{0}{1}", new Object[]{
                         Messages.tr("reading_object_error"),
                         ioe.toString()
                     });
+        } finally {
+            NSObject.unlockWorld(w);
         }
     }
     private static final Logger LOG = Logger.getLogger(NSRelation.class.getName());
@@ -0,0 +1,212 @@
+/*
+ * This source file is part of NScript, released under BSD-modern.
+ *
+ * Copyright (C) 2000-2001 Enrique Campos-Nanez
+ * Copyright (C) 2012 Stefano Sanfilippo
+ *
+ * See README.* at top level for copying, contacts, history and notes.
+ */
+package org.esseks.nscript;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An immutable view of a simulation model, as it was when NSWorld.snapshot()
+ * was called. Can be read from any thread while the model keeps being
+ * edited, e.g. to export it in background.
+ *
+ * The objects of a snapshot are frozen copies of the objects of the model,
+ * shared with the other snapshots of the same model as long as they do not
+ * change. Relations link the frozen copies of their ends. The objects and the
+ * arrays of a snapshot must not be modified.
+ */
+public final class NSSnapshot extends Object implements TclContext {
+
+    /**
+     * The frozen copies of the objects, in the order they are stored. Shared
+     * with the model, which never modifies it.
+     */
+    private final NSObject[] objects;
+    /**
+     * The frozen copy of the environment.
+     */
+    private final NSObject environment;
+    /**
+     * Copies of the arrays.
+     */
+    private final NSArray[] arrays;
+
+    /**
+     * Creates a snapshot. Called by NSWorld.snapshot.
+     *
+     * @param inObjects the frozen copies of the objects, in order; not copied.
+     * @param inEnvironment the frozen copy of the environment.
+     * @param inArrays the arrays of the model, which are copied.
+     */
+    NSSnapshot(NSObject[] inObjects, NSObject inEnvironment, List<NSArray> inArrays) {
+        this.objects = inObjects;
+        this.environment = inEnvironment;
+        this.arrays = new NSArray[inArrays.size()];
+        for (int i = 0; i < this.arrays.length; i++) {
+            NSArray a = inArrays.get(i);
+            this.arrays[i] = new NSArray(a.getName(), a.getSize());
+        }
+    }
+
+    /**
+     * Tells if this snapshot holds the given objects and a copy of the given
+     * arrays, so that it can be returned again by NSWorld.snapshot.
+     *
+     * @param inObjects the frozen copies of the objects.
+     * @param inArrays the arrays of the model.
+     * @return true if the snapshot is up to date.
+     */
+    boolean isSnapshotOf(NSObject[] inObjects, List<NSArray> inArrays) {
+        if ((this.objects != inObjects) || (this.arrays.length != inArrays.size())) {
+            return false;
+        }
+        for (int i = 0; i < this.arrays.length; i++) {
+            NSArray a = inArrays.get(i);
+            if (!this.arrays[i].getName().equals(a.getName())
+                    || (this.arrays[i].getSize() != a.getSize())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the ns environment.
+     *
+     * @return the frozen copy of the environment.
+     */
+    @Override
+    public NSObject getEnvironment() {
+        return this.environment;
+    }
+
+    /**
+     * Returns the number of objects, including the environment.
+     *
+     * @return the number of objects.
+     */
+    public int getObjectsCount() {
+        return this.objects.length;
+    }
+
+    /**
+     * Returns the i-th object, in the order the objects are stored.
+     *
+     * @param inIndex the 0-based position of the object.
+     * @return the frozen copy of the object.
+     */
+    public NSObject getObject(int inIndex) {
+        return this.objects[inIndex];
+    }
+
+    /**
+     * Returns all the objects, in the order they are stored.
+     *
+     * @return an unmodifiable list of the frozen copies of the objects.
+     */
+    public List<NSObject> getObjects() {
+        return Collections.unmodifiableList(Arrays.asList(this.objects));
+    }
+
+    /**
+     * Returns the number of arrays.
+     *
+     * @return the number of arrays.
+     */
+    public int getArrayCount() {
+        return this.arrays.length;
+    }
+
+    /**
+     * Returns the array stored at a given position.
+     *
+     * @param inIndex the 0-based position of the array.
+     * @return the copy of the array, or null if the position is not valid.
+     */
+    @Override
+    public NSArray getArray(int inIndex) {
+        if ((inIndex >= 0) && (inIndex < this.arrays.length)) {
+            return this.arrays[inIndex];
+        }
+        LOG.severe(Messages.tr("array_out_of_bonds"));
+        return null;
+    }
+
+    /**
+     * Creates the Tcl script of the model.
+     *
+     * @return a String containing the Tcl script.
+     */
+    public String toTcl() {
+        StringBuilder s = new StringBuilder(this.objects.length * NSModel.TCL_LINE_SIZE);
+        try {
+            this.writeTcl(s, null);
+        } catch (IOException ioe) {
+            // Appending to a StringBuilder never fails
+            LOG.log(Level.SEVERE, "{0}", ioe.toString());
+        }
+        return s.toString();
+    }
+
+    /**
+     * Writes the Tcl script of the model to a stream. See
+     * NSModel.writeTcl(Appendable, TaskMonitor).
+     *
+     * @param out the destination of the script.
+     * @param monitor receives progress reports and can cancel the export. May
+     * be null.
+     * @return true if the whole script was written, false if the export was
+     * cancelled.
+     * @throws IOException if writing to the destination fails.
+     */
+    public boolean writeTcl(Appendable out, TaskMonitor monitor) throws IOException {
+        return NSModel.writeTcl(this, this.objects, out, monitor);
+    }
+
+    /**
+     * Writes the Tcl script of the model to a stream, translating the objects
+     * in parallel. See NSModel.writeTclParallel(Appendable, TaskMonitor).
+     *
+     * @param out the destination of the script.
+     * @param monitor receives progress reports and can cancel the export. May
+     * be null.
+     * @return true if the whole script was written, false if the export was
+     * cancelled.
+     * @throws IOException if writing to the destination fails.
+     */
+    public boolean writeTclParallel(Appendable out, TaskMonitor monitor) throws IOException {
+        return NSModel.writeTclParallel(this, this.objects, out, monitor);
+    }
+
+    /**
+     * Represents the model as a string, in the format used to store it on
+     * disk. See NSModel.toString.
+     *
+     * @return the representation of the model.
+     */
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder(this.arrays.length + this.objects.length + 1);
+
+        s.append(Integer.toString(this.arrays.length)).append("\n");
+        for (NSArray a : this.arrays) {
+            s.append(a.toString());
+        }
+        s.append(Integer.toString(this.objects.length)).append("\n");
+        for (NSObject o : this.objects) {
+            s.append(o.toString());
+        }
+        return s.toString();
+    }
+    private static final Logger LOG = Logger.getLogger(NSSnapshot.class.getName());
+}
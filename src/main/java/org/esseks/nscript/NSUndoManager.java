@@ -0,0 +1,846 @@
+/*
+ * This source file is part of NScript, released under BSD-modern.
+ *
+ * Copyright (C) 2000-2001 Enrique Campos-Nanez
+ * Copyright (C) 2012 Stefano Sanfilippo
+ *
+ * See README.* at top level for copying, contacts, history and notes.
+ */
+package org.esseks.nscript;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.logging.Logger;
+import javax.swing.SwingUtilities;
+import javax.swing.undo.AbstractUndoableEdit;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+import javax.swing.undo.UndoManager;
+import javax.swing.undo.UndoableEdit;
+
+/**
+ * Records the changes made to a model, so that they can be undone and redone.
+ *
+ * Each change is stored as a small delta holding only what is needed to
+ * revert it (the old value of an attribute, the old position of an entity,
+ * the objects removed), never as a copy of the model. The deltas made by a
+ * single operation form a step: a batch (see NSModel.batch) or a gesture (see
+ * NSModel.beginEdit) is one step, and so is any change made outside them.
+ * Moves of the same entity within a step are merged, so that a drag costs one
+ * pair of positions per moved entity, however long it lasts.
+ *
+ * The oldest steps are discarded when the memory taken by the history goes
+ * beyond a budget. The last step is always kept.
+ *
+ * Changes are recorded only when made in the event dispatch thread, so that
+ * the attributes fixed while generating Tcl code in background are not.
+ */
+public class NSUndoManager extends UndoManager {
+
+    /**
+     *      */
+    private static final long serialVersionUID = 42L;
+    /**
+     * The default memory budget, in bytes.
+     */
+    public static final long DEFAULT_BUDGET = 16L << 20;
+    /**
+     * The estimated size of a delta, in bytes, not counting the objects it
+     * lists.
+     */
+    private static final int DELTA_SIZE = 48;
+    /**
+     * The estimated size of a reference in a list of objects, in bytes.
+     */
+    private static final int REFERENCE_SIZE = 8;
+    /**
+     * The estimated size of the move of an entity, in bytes.
+     */
+    private static final int MOVE_SIZE = 40;
+    /**
+     * The model whose changes are recorded.
+     */
+    private final NSModel model;
+    /**
+     * The memory budget, in bytes.
+     */
+    private long budget;
+    /**
+     * The step being recorded, or null.
+     */
+    private Step current;
+    /**
+     * The number of nested steps opened by beginStep.
+     */
+    private int depth;
+    /**
+     * True while a step is undone or redone, so that its changes are not
+     * recorded again.
+     */
+    private boolean replaying;
+
+    /**
+     * Creates an empty history for a model.
+     *
+     * @param inModel the model whose changes are recorded.
+     */
+    public NSUndoManager(NSModel inModel) {
+        super();
+        this.model = inModel;
+        this.budget = DEFAULT_BUDGET;
+        this.setLimit(1000);
+    }
+
+    /**
+     * Returns the memory budget of the history.
+     *
+     * @return the budget, in bytes.
+     */
+    public long getMemoryBudget() {
+        return this.budget;
+    }
+
+    /**
+     * Changes the memory budget of the history, discarding the oldest steps
+     * if they do not fit any more.
+     *
+     * @param bytes the budget, in bytes.
+     */
+    public synchronized void setMemoryBudget(long bytes) {
+        this.budget = bytes;
+        this.trimToBudget();
+    }
+
+    /**
+     * Estimates the memory taken by the history.
+     *
+     * @return the estimated size of the recorded steps, in bytes.
+     */
+    public synchronized long getMemoryUsed() {
+        long used = 0;
+        for (UndoableEdit e : this.edits) {
+            used += ((Step) e).size;
+        }
+        return used;
+    }
+
+    /**
+     * Starts a step: the changes made until the matching endStep are undone
+     * together. Steps can be nested.
+     */
+    void beginStep() {
+        this.depth++;
+    }
+
+    /**
+     * Ends a step started by beginStep.
+     */
+    void endStep() {
+        if ((this.depth > 0) && (--this.depth == 0)) {
+            this.close();
+        }
+    }
+
+    /**
+     * Undoes the last step. A step still being recorded is closed first.
+     */
+    @Override
+    public synchronized void undo() throws CannotUndoException {
+        this.depth = 0;
+        this.close();
+        super.undo();
+    }
+
+    /**
+     * Redoes the last step undone.
+     */
+    @Override
+    public synchronized void redo() throws CannotRedoException {
+        this.depth = 0;
+        this.close();
+        super.redo();
+    }
+
+    /**
+     * Adds a step to the history, then discards the oldest steps if the
+     * history no longer fits the budget.
+     *
+     * @param anEdit the step.
+     * @return true if the step was added.
+     */
+    @Override
+    public synchronized boolean addEdit(UndoableEdit anEdit) {
+        if (!(anEdit instanceof Step)) {
+            return false;
+        }
+        boolean added = super.addEdit(anEdit);
+        this.trimToBudget();
+        return added;
+    }
+
+    /**
+     * Discards the oldest steps until the history fits the budget, keeping
+     * the last one.
+     */
+    private void trimToBudget() {
+        long used = this.getMemoryUsed();
+        while ((used > this.budget) && (this.edits.size() > 1)) {
+            used -= ((Step) this.edits.get(0)).size;
+            this.trimEdits(0, 0);
+        }
+    }
+
+    /**
+     * Closes the step being recorded, adding it to the history.
+     */
+    private void close() {
+        Step s = this.current;
+        this.current = null;
+        if ((s != null) && !s.isEmpty()) {
+            s.seal();
+            this.addEdit(s);
+        }
+    }
+
+    /**
+     * Returns the step where changes are recorded, or null if changes must
+     * not be recorded now.
+     */
+    private Step recording() {
+        if (this.replaying || !SwingUtilities.isEventDispatchThread()) {
+            return null;
+        }
+        if (this.current == null) {
+            this.current = new Step();
+        }
+        return this.current;
+    }
+
+    /**
+     * Adds a delta to the current step, closing it if it is not part of a
+     * larger one.
+     */
+    private void record(Step s, Delta d) {
+        s.deltas.add(d);
+        s.size += d.size();
+        if (this.depth == 0) {
+            this.close();
+        }
+    }
+
+    /**
+     * Records the change of an attribute.
+     *
+     * @param o the object.
+     * @param index the index of the attribute.
+     * @param oldCode the code of the old value, see ValueDictionary.
+     * @param newCode the code of the new value.
+     */
+    void attributeSet(NSObject o, int index, String oldCode, String newCode) {
+        Step s = this.recording();
+        if ((s == null) || (oldCode == newCode)) {
+            return;
+        }
+        // Typing in the same field keeps only the first old value
+        Delta last = s.last();
+        if ((last instanceof AttributeDelta) && (((AttributeDelta) last).object == o)
+                && (((AttributeDelta) last).index == index)) {
+            ((AttributeDelta) last).newCode = newCode;
+            return;
+        }
+        this.record(s, new AttributeDelta(o, index, oldCode, newCode));
+    }
+
+    /**
+     * Records the change of an attribute of an element of an array, see
+     * NSObject.setElementAttribute.
+     *
+     * @param o the object indexed by the array.
+     * @param element the index of the element.
+     * @param index the index of the attribute.
+     * @param oldValue the old value of the element, or null if it took the
+     * value of the object.
+     * @param newValue the new value, or null.
+     */
+    void elementAttributeSet(NSObject o, int element, int index, String oldValue, String newValue) {
+        Step s = this.recording();
+        if (s != null) {
+            this.record(s, new ElementAttributeDelta(o, element, index, oldValue, newValue));
+        }
+    }
+
+    /**
+     * Records the reset of all the attributes of an object to the defaults.
+     *
+     * @param o the object.
+     * @param oldCount the old number of attributes.
+     * @param oldOverrides the old overrides, not modified afterwards.
+     * @param newCount the new number of attributes.
+     */
+    void attributesReset(NSObject o, int oldCount, String[] oldOverrides, int newCount) {
+        Step s = this.recording();
+        if (s != null) {
+            this.record(s, new ResetDelta(o, oldCount, oldOverrides, newCount));
+        }
+    }
+
+    /**
+     * Records the change of the name of an object.
+     *
+     * @param o the object.
+     * @param oldName the old name.
+     * @param newName the new name.
+     */
+    void renamed(NSObject o, String oldName, String newName) {
+        Step s = this.recording();
+        if (s != null) {
+            this.record(s, new NameDelta(o, oldName, newName));
+        }
+    }
+
+    /**
+     * Records the change of the array index of an object.
+     *
+     * @param o the object.
+     * @param oldIndex the old array index.
+     * @param newIndex the new array index.
+     */
+    void arrayIndexSet(NSObject o, int oldIndex, int newIndex) {
+        Step s = this.recording();
+        if (s != null) {
+            this.record(s, new ArrayIndexDelta(o, oldIndex, newIndex));
+        }
+    }
+
+    /**
+     * Records the translation of an entity. Only the first position of each
+     * entity within a step is kept: the final one is read when the step is
+     * closed.
+     *
+     * @param e the entity.
+     * @param oldX the x position before the translation.
+     * @param oldY the y position before the translation.
+     */
+    void moved(NSEntity e, double oldX, double oldY) {
+        Step s = this.recording();
+        if (s == null) {
+            return;
+        }
+        long before = s.moves.size();
+        s.moves.add(e, oldX, oldY);
+        s.size += s.moves.size() - before;
+        if (this.depth == 0) {
+            this.close();
+        }
+    }
+
+    /**
+     * Records the addition of objects.
+     *
+     * @param objects the objects added.
+     */
+    void added(List<NSObject> objects) {
+        Step s = this.recording();
+        if (s != null) {
+            this.record(s, new MembershipDelta(objects, true));
+        }
+    }
+
+    /**
+     * Records the removal of objects.
+     *
+     * @param objects the objects removed.
+     */
+    void removed(List<NSObject> objects) {
+        Step s = this.recording();
+        if (s != null) {
+            this.record(s, new MembershipDelta(objects, false));
+        }
+    }
+
+    /**
+     * Records the addition of an array at the end of the list.
+     *
+     * @param index the position of the new array.
+     */
+    void arrayAdded(int index) {
+        Step s = this.recording();
+        if (s != null) {
+            this.record(s, new ArrayDelta(ArrayDelta.ADDED, index, this.model.getArray(index), null, null));
+        }
+    }
+
+    /**
+     * Records the removal of an array.
+     *
+     * @param index the position of the array.
+     * @param a the array.
+     * @param users the objects that were indexed by the array.
+     */
+    void arrayRemoved(int index, NSArray a, List<NSObject> users) {
+        Step s = this.recording();
+        if (s != null) {
+            this.record(s, new ArrayDelta(ArrayDelta.REMOVED, index, a, users, null));
+        }
+    }
+
+    /**
+     * Records the change of the name or size of an array.
+     *
+     * @param index the position of the array.
+     * @param oldName the old name.
+     * @param oldSize the old size.
+     */
+    void arrayEdited(int index, String oldName, int oldSize) {
+        Step s = this.recording();
+        if (s != null) {
+            NSArray a = this.model.getArray(index);
+            this.record(s, new ArrayDelta(ArrayDelta.EDITED, index,
+                    new NSArray(oldName, oldSize), null, new NSArray(a.getName(), a.getSize())));
+        }
+    }
+
+    /**
+     * Records the removal of all the arrays. The objects indexed by them are
+     * recorded separately, before this call and within the same step, so that
+     * the arrays are back in place when their indices are restored.
+     *
+     * @param arrays the arrays removed.
+     */
+    void arraysCleared(List<NSArray> arrays) {
+        Step s = this.recording();
+        if (s != null) {
+            this.record(s, new ArrayDelta(ArrayDelta.CLEARED, 0, null, null, null, arrays));
+        }
+    }
+
+    /**
+     * The changes made by an operation, undone and redone together.
+     */
+    private class Step extends AbstractUndoableEdit {
+
+        private static final long serialVersionUID = 42L;
+        /**
+         * The changes, in the order they were made, except moves.
+         */
+        final ArrayList<Delta> deltas = new ArrayList<Delta>();
+        /**
+         * The translations of the entities moved.
+         */
+        final Moves moves = new Moves();
+        /**
+         * The estimated size of the step, in bytes.
+         */
+        long size;
+
+        boolean isEmpty() {
+            return this.deltas.isEmpty() && (this.moves.size() == 0);
+        }
+
+        Delta last() {
+            return this.deltas.isEmpty() ? null : this.deltas.get(this.deltas.size() - 1);
+        }
+
+        /**
+         * Releases the memory only needed while recording.
+         */
+        void seal() {
+            this.deltas.trimToSize();
+            this.moves.seal();
+        }
+
+        @Override
+        public void undo() throws CannotUndoException {
+            super.undo();
+            NSModel m = NSUndoManager.this.model;
+            NSUndoManager.this.replaying = true;
+            m.beginBatch();
+            try {
+                // Moves commute with the other changes
+                this.moves.undo();
+                for (int i = this.deltas.size() - 1; i >= 0; i--) {
+                    this.deltas.get(i).undo(m);
+                }
+            } finally {
+                m.endBatch();
+                NSUndoManager.this.replaying = false;
+            }
+            m.setDirty(true);
+        }
+
+        @Override
+        public void redo() throws CannotRedoException {
+            super.redo();
+            NSModel m = NSUndoManager.this.model;
+            NSUndoManager.this.replaying = true;
+            m.beginBatch();
+            try {
+                for (Delta d : this.deltas) {
+                    d.redo(m);
+                }
+                this.moves.redo();
+            } finally {
+                m.endBatch();
+                NSUndoManager.this.replaying = false;
+            }
+            m.setDirty(true);
+        }
+
+        @Override
+        public void die() {
+            super.die();
+            this.deltas.clear();
+        }
+    }
+
+    /**
+     * The entities moved in a step, with their positions before and after it.
+     * Positions are restored rather than translations reverted, so that undo
+     * and redo bring entities exactly where they were.
+     */
+    private static class Moves {
+
+        /**
+         * The position of each entity in the arrays, while recording.
+         */
+        private IdentityHashMap<NSEntity, Integer> index;
+        private NSEntity[] entities = new NSEntity[0];
+        /**
+         * The positions before the step, as x, y pairs.
+         */
+        private double[] before = new double[0];
+        /**
+         * The positions after the step, as x, y pairs. Filled by seal.
+         */
+        private double[] after;
+        private int count;
+
+        void add(NSEntity e, double x, double y) {
+            if (this.index == null) {
+                this.index = new IdentityHashMap<NSEntity, Integer>();
+            }
+            if (this.index.containsKey(e)) {
+                return;
+            }
+            if (this.count == this.entities.length) {
+                int capacity = Math.max(8, this.count * 2);
+                this.entities = Arrays.copyOf(this.entities, capacity);
+                this.before = Arrays.copyOf(this.before, 2 * capacity);
+            }
+            this.entities[this.count] = e;
+            this.before[2 * this.count] = x;
+            this.before[2 * this.count + 1] = y;
+            this.index.put(e, this.count++);
+        }
+
+        long size() {
+            return (long) this.count * MOVE_SIZE;
+        }
+
+        void seal() {
+            this.index = null;
+            this.entities = Arrays.copyOf(this.entities, this.count);
+            this.before = Arrays.copyOf(this.before, 2 * this.count);
+            this.after = new double[2 * this.count];
+            for (int i = 0; i < this.count; i++) {
+                this.after[2 * i] = this.entities[i].getX();
+                this.after[2 * i + 1] = this.entities[i].getY();
+            }
+        }
+
+        void apply(double[] positions) {
+            for (int i = 0; i < this.count; i++) {
+                this.entities[i].moveTo(positions[2 * i], positions[2 * i + 1]);
+            }
+        }
+
+        void undo() {
+            this.apply(this.before);
+        }
+
+        void redo() {
+            this.apply(this.after);
+        }
+    }
+
+    /**
+     * A change, and how to revert it.
+     */
+    private abstract static class Delta {
+
+        abstract void undo(NSModel m);
+
+        abstract void redo(NSModel m);
+
+        long size() {
+            return DELTA_SIZE;
+        }
+    }
+
+    private static class AttributeDelta extends Delta {
+
+        final NSObject object;
+        final int index;
+        final String oldCode;
+        String newCode;
+
+        AttributeDelta(NSObject o, int i, String oldC, String newC) {
+            this.object = o;
+            this.index = i;
+            this.oldCode = oldC;
+            this.newCode = newC;
+        }
+
+        @Override
+        void undo(NSModel m) {
+            this.object.setAttribute(this.index, this.oldCode);
+        }
+
+        @Override
+        void redo(NSModel m) {
+            this.object.setAttribute(this.index, this.newCode);
+        }
+    }
+
+    private static class ElementAttributeDelta extends Delta {
+
+        final NSObject object;
+        final int element;
+        final int index;
+        final String oldValue;
+        final String newValue;
+
+        ElementAttributeDelta(NSObject o, int e, int i, String oldV, String newV) {
+            this.object = o;
+            this.element = e;
+            this.index = i;
+            this.oldValue = oldV;
+            this.newValue = newV;
+        }
+
+        @Override
+        void undo(NSModel m) {
+            this.object.setElementAttribute(this.element, this.index, this.oldValue);
+        }
+
+        @Override
+        void redo(NSModel m) {
+            this.object.setElementAttribute(this.element, this.index, this.newValue);
+        }
+    }
+
+    private static class ResetDelta extends Delta {
+
+        final NSObject object;
+        final int oldCount;
+        final String[] oldOverrides;
+        final int newCount;
+
+        ResetDelta(NSObject o, int oldC, String[] oldO, int newC) {
+            this.object = o;
+            this.oldCount = oldC;
+            this.oldOverrides = oldO;
+            this.newCount = newC;
+        }
+
+        @Override
+        void undo(NSModel m) {
+            this.object.restoreAttributes(this.oldCount, this.oldOverrides);
+        }
+
+        @Override
+        void redo(NSModel m) {
+            this.object.resetAttributes(this.newCount);
+        }
+
+        @Override
+        long size() {
+            return DELTA_SIZE + ((this.oldOverrides == null) ? 0 : ((long) REFERENCE_SIZE * this.oldOverrides.length));
+        }
+    }
+
+    private static class NameDelta extends Delta {
+
+        final NSObject object;
+        final String oldName;
+        final String newName;
+
+        NameDelta(NSObject o, String oldN, String newN) {
+            this.object = o;
+            this.oldName = oldN;
+            this.newName = newN;
+        }
+
+        @Override
+        void undo(NSModel m) {
+            this.object.setName(this.oldName);
+        }
+
+        @Override
+        void redo(NSModel m) {
+            this.object.setName(this.newName);
+        }
+    }
+
+    private static class ArrayIndexDelta extends Delta {
+
+        final NSObject object;
+        final int oldIndex;
+        final int newIndex;
+
+        ArrayIndexDelta(NSObject o, int oldI, int newI) {
+            this.object = o;
+            this.oldIndex = oldI;
+            this.newIndex = newI;
+        }
+
+        @Override
+        void undo(NSModel m) {
+            this.object.setArrayIndex(this.oldIndex);
+        }
+
+        @Override
+        void redo(NSModel m) {
+            this.object.setArrayIndex(this.newIndex);
+        }
+    }
+
+    private static class MembershipDelta extends Delta {
+
+        final NSObject[] objects;
+        /**
+         * The sequence numbers of the objects, which keep their place in the
+         * storage order when they are added back.
+         */
+        final long[] sequences;
+        final boolean added;
+
+        MembershipDelta(List<NSObject> inObjects, boolean wasAdded) {
+            this.objects = inObjects.toArray(new NSObject[inObjects.size()]);
+            this.sequences = new long[this.objects.length];
+            for (int i = 0; i < this.objects.length; i++) {
+                this.sequences[i] = this.objects[i].getLastSequence();
+            }
+            this.added = wasAdded;
+        }
+
+        @Override
+        void undo(NSModel m) {
+            if (this.added) {
+                m.removeObjects(Arrays.asList(this.objects));
+            } else {
+                this.addBack(m);
+            }
+        }
+
+        @Override
+        void redo(NSModel m) {
+            if (this.added) {
+                this.addBack(m);
+            } else {
+                m.removeObjects(Arrays.asList(this.objects));
+            }
+        }
+
+        private void addBack(NSModel m) {
+            m.addObjects(Arrays.asList(this.objects));
+            for (int i = 0; i < this.objects.length; i++) {
+                m.restoreSequence(this.objects[i], this.sequences[i]);
+            }
+        }
+
+        @Override
+        long size() {
+            return DELTA_SIZE + ((long) (REFERENCE_SIZE + 8) * this.objects.length);
+        }
+    }
+
+    private static class ArrayDelta extends Delta {
+
+        static final int ADDED = 0;
+        static final int REMOVED = 1;
+        static final int EDITED = 2;
+        static final int CLEARED = 3;
+        final int kind;
+        final int index;
+        /**
+         * The array added or removed, or the old name and size of an edited
+         * one.
+         */
+        final NSArray before;
+        /**
+         * The new name and size of an edited array.
+         */
+        final NSArray after;
+        /**
+         * The objects indexed by a removed array.
+         */
+        final NSObject[] users;
+        /**
+         * The arrays removed by a clear.
+         */
+        final NSArray[] cleared;
+
+        ArrayDelta(int k, int i, NSArray b, List<NSObject> u, NSArray a) {
+            this(k, i, b, u, a, null);
+        }
+
+        ArrayDelta(int k, int i, NSArray b, List<NSObject> u, NSArray a, List<NSArray> c) {
+            this.kind = k;
+            this.index = i;
+            this.before = b;
+            this.after = a;
+            this.users = (u == null) ? null : u.toArray(new NSObject[u.size()]);
+            this.cleared = (c == null) ? null : c.toArray(new NSArray[c.size()]);
+        }
+
+        @Override
+        void undo(NSModel m) {
+            switch (this.kind) {
+                case ADDED:
+                    m.removeArray(this.index);
+                    break;
+                case REMOVED:
+                    m.insertArray(this.index, this.before, Arrays.asList(this.users));
+                    break;
+                case EDITED:
+                    m.renameArray(this.index, this.before.getName());
+                    m.resizeArray(this.index, this.before.getSize());
+                    break;
+                default:
+                    for (int i = 0; i < this.cleared.length; i++) {
+                        m.insertArray(i, this.cleared[i], new ArrayList<NSObject>(0));
+                    }
+                    break;
+            }
+        }
+
+        @Override
+        void redo(NSModel m) {
+            switch (this.kind) {
+                case ADDED:
+                    m.insertArray(this.index, this.before, new ArrayList<NSObject>(0));
+                    break;
+                case REMOVED:
+                    m.removeArray(this.index);
+                    break;
+                case EDITED:
+                    m.renameArray(this.index, this.after.getName());
+                    m.resizeArray(this.index, this.after.getSize());
+                    break;
+                default:
+                    m.clearArrays();
+                    break;
+            }
+        }
+
+        @Override
+        long size() {
+            return DELTA_SIZE + ((this.users == null) ? 0 : ((long) REFERENCE_SIZE * this.users.length))
+                    + ((this.cleared == null) ? 0 : ((long) DELTA_SIZE * this.cleared.length));
+        }
+    }
+    private static final Logger LOG = Logger.getLogger(NSUndoManager.class.getName());
+}
@@ -10,27 +10,150 @@ package org.esseks.nscript;
 
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Logger;
 
 /**
  * Defines storage for the elements in a simulation. Stores objects, as well as
  * arrays (index definitions).
+ *
+ * A world is meant to be used by one thread at a time, unless it is made
+ * concurrent with setConcurrent(true): then any number of threads may query it
+ * while others change it. See setConcurrent.
  */
-public class NSWorld extends Object implements Serializable {
+public class NSWorld extends Object implements Serializable, TclContext {
 
     /**
      *      */
     public static final long serialVersionUID = 42L;
     /**
-     * The objects that are part of a simulation script are stored here.
+     * The order of the objects in the buckets.
+     */
+    private static final StorageOrder STORAGE_ORDER = new StorageOrder();
+    /**
+     * The objects that are part of a simulation script are stored here, in
+     * buckets by precedence (see NSObject.setPrecedence). Each bucket is kept
+     * sorted, so that the objects are always in the order they must appear
+     * in the script.
+     */
+    private TreeMap<Integer, TreeSet<NSObject>> buckets;
+    /**
+     * The ns environment object.
+     */
+    private NSObject environment;
+    /**
+     * The number of objects stored in buckets.
+     */
+    private int objectCount;
+    /**
+     * The sequence number given to the next object added, used to keep
+     * objects that compare as equal in the order they were added.
+     */
+    private long nextSequence;
+    /**
+     * All the objects in order, for access by position. Rebuilt on demand
+     * after objects are added, removed or reordered.
+     */
+    private transient volatile NSObject[] ordered;
+    /**
+     * The objects by name. If more objects share a name, only the first one
+     * added is here, and the others are in duplicateNames.
+     */
+    private HashMap<String, NSObject> names;
+    /**
+     * A copy of names that is never modified, read by lookups without
+     * locking. Set to null when names changes, and copied again on demand.
+     */
+    private transient volatile Map<String, NSObject> publishedNames;
+    /**
+     * The objects whose name is already taken by the object in names.
+     */
+    private HashMap<String, ArrayList<NSObject>> duplicateNames;
+    /**
+     * For each prefix used to generate names, the first number that may be
+     * free. See generateName.
+     */
+    private HashMap<String, Integer> nameCounters;
+    /**
+     * The relations attached to each entity, see Incidence.
+     */
+    private IdentityHashMap<NSObject, Incidence> incidences;
+    /**
+     * The objects of each class, by name of the snippet, in the order they
+     * were added.
+     */
+    private HashMap<String, LinkedHashSet<NSObject>> instances;
+    /**
+     * The selected objects, in the order they were selected.
+     */
+    private LinkedHashSet<NSObject> selection;
+    /**
+     * The selected objects, for access by position. Rebuilt on demand after
+     * the selection changes.
+     */
+    private transient volatile NSObject[] selectionArray;
+    /**
+     * The positions of the entities.
      */
-    private ArrayList<NSObject> objects;
+    private GeometryStore geometry;
     /**
      * The arrays that are part of the simulation script are stored here.
      */
     private ArrayList<NSArray> arrays;
+    /**
+     * A copy of arrays that is never modified, read by getArray without
+     * locking. Set to null when arrays changes, and copied again on demand.
+     */
+    private transient volatile NSArray[] publishedArrays;
+    /**
+     * The objects whose cached Tcl code has been invalidated since the Tcl
+     * view was last refreshed.
+     */
+    private HashSet<NSObject> tclDirty;
+    /**
+     * True if objects were added, removed or reordered since the Tcl view was
+     * last rebuilt, so that it has to be rebuilt as a whole.
+     */
+    private boolean tclStale;
+    /**
+     * Counts the changes that affect the Tcl code. Read from the background
+     * thread that generates the Tcl view, to detect results made stale by
+     * later edits.
+     */
+    private volatile int tclVersion;
+    /**
+     * Records the changes to be undone, or null if they are not recorded.
+     */
+    private transient NSUndoManager undoRecorder;
+    /**
+     * The frozen copies of the objects, in order, or null if an object was
+     * added, removed, reordered or changed since the last snapshot.
+     */
+    private transient NSObject[] frozenObjects;
+    /**
+     * The last snapshot taken, or null.
+     */
+    private transient NSSnapshot snapshot;
+    /**
+     * Guards the world when it is concurrent, or null. See setConcurrent.
+     */
+    private transient ReentrantReadWriteLock lock;
 //   /** Iterates over the list of objects for purposes of searching, saving, etc. */
 //   Iterator objIter;
 
@@ -43,9 +166,20 @@ public class NSWorld extends Object implements Serializable {
      */
     public NSWorld(NSObject inEnvironment) {
         // For convenience, the environment is always at index 0, and cannot be deleted.
-        this.objects = new ArrayList<NSObject>();
-        this.objects.add(inEnvironment);
+        this.buckets = new TreeMap<Integer, TreeSet<NSObject>>();
+        this.names = new HashMap<String, NSObject>();
+        this.duplicateNames = new HashMap<String, ArrayList<NSObject>>();
+        this.nameCounters = new HashMap<String, Integer>();
+        this.incidences = new IdentityHashMap<NSObject, Incidence>();
+        this.instances = new HashMap<String, LinkedHashSet<NSObject>>();
+        this.selection = new LinkedHashSet<NSObject>();
+        this.geometry = new GeometryStore(64);
+        this.environment = inEnvironment;
+        this.store(inEnvironment);
         this.arrays = new ArrayList<NSArray>();
+        this.tclDirty = new HashSet<NSObject>();
+        this.tclStale = true;
+        this.attach(inEnvironment);
     }
 
     /**
@@ -53,8 +187,96 @@ public class NSWorld extends Object implements Serializable {
      *
      * @return the ns environment object.
      */
+    @Override
     public NSObject getEnvironment() {
-        return this.objects.get(0);
+        return this.environment;
+    }
+
+    /**
+     * Makes the world safe to use from many threads, or single-threaded again.
+     * Must be called before the world is shared between threads.
+     *
+     * A concurrent world is guarded by a read/write lock. Changes to the world,
+     * and to the names, attributes, positions and selection of its objects,
+     * hold the write lock. Queries hold the read lock, except the lookups by
+     * name and of arrays, which read immutable copies without locking; a copy
+     * is only made again, under the read lock, after a change. Iterators and
+     * lists returned by the world are copies, which can be used while the
+     * world keeps changing.
+     *
+     * Reading the state of an object (its attributes or its position) while
+     * another thread changes that same object requires holding the read lock,
+     * see getLock. The undo manager and the views of NSModel stay bound to the
+     * event dispatch thread.
+     *
+     * @param concurrent true to guard the world with a lock, false to remove
+     * it.
+     */
+    public void setConcurrent(boolean concurrent) {
+        this.lock = concurrent ? new ReentrantReadWriteLock() : null;
+    }
+
+    /**
+     * Tells if the world can be used from many threads.
+     *
+     * @return true if the world is concurrent.
+     */
+    public boolean isConcurrent() {
+        return this.lock != null;
+    }
+
+    /**
+     * Returns the lock guarding a concurrent world. Hold its read lock to run
+     * several queries against the same state of the world, or to read objects
+     * that other threads may be changing; hold its write lock to make several
+     * changes at once.
+     *
+     * @return the lock, or null if the world is not concurrent.
+     */
+    public ReadWriteLock getLock() {
+        return this.lock;
+    }
+
+    /**
+     * Acquires the write lock before a change, if the world is concurrent.
+     * Reentrant; must be followed by a call to endWrite(), in a finally block.
+     */
+    void beginWrite() {
+        ReentrantReadWriteLock l = this.lock;
+        if (l != null) {
+            l.writeLock().lock();
+        }
+    }
+
+    /**
+     * Releases the write lock after a change.
+     */
+    void endWrite() {
+        ReentrantReadWriteLock l = this.lock;
+        if (l != null) {
+            l.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Acquires the read lock before a query, if the world is concurrent. Must
+     * be followed by a call to endRead(), in a finally block.
+     */
+    private void beginRead() {
+        ReentrantReadWriteLock l = this.lock;
+        if (l != null) {
+            l.readLock().lock();
+        }
+    }
+
+    /**
+     * Releases the read lock after a query.
+     */
+    private void endRead() {
+        ReentrantReadWriteLock l = this.lock;
+        if (l != null) {
+            l.readLock().unlock();
+        }
     }
 
     /**
@@ -65,7 +287,44 @@ public class NSWorld extends Object implements Serializable {
      * @param inNumberOfElements the number of elements of the array.
      */
     public void addArray(String inArrayName, int inNumberOfElements) {
-        this.arrays.add(new NSArray(inArrayName, inNumberOfElements));
+        this.beginWrite();
+        try {
+            this.arrays.add(new NSArray(inArrayName, inNumberOfElements));
+            this.publishedArrays = null;
+            this.arraysChanged();
+            if (this.undoRecorder != null) {
+                this.undoRecorder.arrayAdded(this.arrays.size() - 1);
+            }
+        } finally {
+            this.endWrite();
+        }
+    }
+
+    /**
+     * Puts back an array removed by removeArray, restoring the array indices
+     * of the objects. Used to undo the removal.
+     *
+     * @param inIndex the 0-based position of the array.
+     * @param a the array.
+     * @param users the objects indexed by the array.
+     */
+    void insertArray(int inIndex, NSArray a, List<NSObject> users) {
+        this.beginWrite();
+        try {
+            this.arrays.add(inIndex, a);
+            this.publishedArrays = null;
+            for (NSObject o : this.ordered()) {
+                if (o.getArrayIndex() >= inIndex) {
+                    o.setArrayIndex(o.getArrayIndex() + 1);
+                }
+            }
+            for (NSObject o : users) {
+                o.setArrayIndex(inIndex);
+            }
+            this.arraysChanged();
+        } finally {
+            this.endWrite();
+        }
     }
 
     /**
@@ -75,8 +334,86 @@ public class NSWorld extends Object implements Serializable {
      * @param inIndex the 0-based position of the array to remove.
      */
     public void removeArray(int inIndex) {
-        if ((inIndex >= 0) && (inIndex < this.arrays.size())) {
-            this.arrays.remove(inIndex);
+        this.beginWrite();
+        try {
+            if ((inIndex >= 0) && (inIndex < this.arrays.size())) {
+                ArrayList<NSObject> users = new ArrayList<NSObject>();
+                NSArray a = this.arrays.remove(inIndex);
+                this.publishedArrays = null;
+                for (NSObject o : this.ordered()) {
+                    if ((this.undoRecorder != null) && (o.getArrayIndex() == inIndex)) {
+                        users.add(o);
+                    }
+                    o.arrayIndexGone(inIndex);
+                }
+                this.arraysChanged();
+                if (this.undoRecorder != null) {
+                    this.undoRecorder.arrayRemoved(inIndex, a, users);
+                }
+            }
+        } finally {
+            this.endWrite();
+        }
+    }
+
+    /**
+     * Renames an array, invalidating the Tcl code of the objects it indexes.
+     *
+     * @param inIndex the 0-based position of the array.
+     * @param inName the new name of the array.
+     */
+    public void renameArray(int inIndex, String inName) {
+        this.beginWrite();
+        try {
+            NSArray a = this.getArray(inIndex);
+            if (a != null) {
+                String oldName = a.getName();
+                a.setName(inName);
+                this.invalidateArrayUsers(inIndex);
+                this.arraysChanged();
+                if (this.undoRecorder != null) {
+                    this.undoRecorder.arrayEdited(inIndex, oldName, a.getSize());
+                }
+            }
+        } finally {
+            this.endWrite();
+        }
+    }
+
+    /**
+     * Resizes an array, invalidating the Tcl code of the objects it indexes.
+     *
+     * @param inIndex the 0-based position of the array.
+     * @param inNumberOfElements the new number of elements of the array.
+     */
+    public void resizeArray(int inIndex, int inNumberOfElements) {
+        this.beginWrite();
+        try {
+            NSArray a = this.getArray(inIndex);
+            if (a != null) {
+                int oldSize = a.getSize();
+                a.setSize(inNumberOfElements);
+                this.invalidateArrayUsers(inIndex);
+                this.arraysChanged();
+                if (this.undoRecorder != null) {
+                    this.undoRecorder.arrayEdited(inIndex, a.getName(), oldSize);
+                }
+            }
+        } finally {
+            this.endWrite();
+        }
+    }
+
+    /**
+     * Invalidates the Tcl code of the objects indexed by an array, and of the
+     * relations attached to them.
+     */
+    private void invalidateArrayUsers(int inIndex) {
+        for (NSObject o : this.ordered()) {
+            if (o.getArrayIndex() == inIndex) {
+                o.invalidateTcl();
+                this.invalidateRelationsOf(o);
+            }
         }
     }
 
@@ -85,9 +422,7 @@ public class NSWorld extends Object implements Serializable {
      * user selects 'New' option of the 'File' menuu.
      */
     public void removeAllArrays() {
-        while (this.arrays.size() > 0) {
-            this.arrays.remove(0);
-        }
+        this.clearArrays();
     }
 
     /**
@@ -98,13 +433,23 @@ public class NSWorld extends Object implements Serializable {
      * @param inIndex the 0-based position of the array.
      * @return the requested array if 0<=inIndex<=NoOfArrays-1, Null otherwise.
      */
+    @Override
     public NSArray getArray(int inIndex) {
-        if ((inIndex >= 0) && (inIndex < this.arrays.size())) {
-            return this.arrays.get(inIndex);
-        } else {
+        NSArray[] published = this.publishedArrays;
+        if (published == null) {
+            this.beginRead();
+            try {
+                published = this.arrays.toArray(new NSArray[this.arrays.size()]);
+                this.publishedArrays = published;
+            } finally {
+                this.endRead();
+            }
+        }
+        NSArray a = ((inIndex >= 0) && (inIndex < published.length)) ? published[inIndex] : null;
+        if (a == null) {
             LOG.severe(Messages.tr("array_out_of_bonds"));
-            return null;
         }
+        return a;
     }
 
     /**
@@ -113,7 +458,12 @@ public class NSWorld extends Object implements Serializable {
      * @return the number of arrays.
      */
     public int getArrayCount() {
-        return this.arrays.size();
+        this.beginRead();
+        try {
+            return this.arrays.size();
+        } finally {
+            this.endRead();
+        }
     }
 
     /**
@@ -124,15 +474,70 @@ public class NSWorld extends Object implements Serializable {
      * false otherwise.
      */
     public boolean isValidName(String theName) {
-        NSObject o;
-        Iterator<NSObject> i = this.objects.iterator();
-        while (i.hasNext()) {
-            o = i.next();
-            if (o.getName().equals(theName)) {
-                return false;
+        return !this.names().containsKey(theName);
+    }
+
+    /**
+     * Returns the objects by name for a lookup. Another thread reads the
+     * published copy without locking, making a new copy under the read lock
+     * if names changed since the last one. The thread changing the world, or
+     * any thread if the world is not concurrent, reads names directly, so
+     * that lookups between changes do not copy the map every time.
+     *
+     * @return the objects by name, not to be modified.
+     */
+    private Map<String, NSObject> names() {
+        ReentrantReadWriteLock l = this.lock;
+        if ((l == null) || l.isWriteLockedByCurrentThread()) {
+            return this.names;
+        }
+        Map<String, NSObject> m = this.publishedNames;
+        if (m == null) {
+            l.readLock().lock();
+            try {
+                m = Collections.unmodifiableMap(new HashMap<String, NSObject>(this.names));
+                this.publishedNames = m;
+            } finally {
+                l.readLock().unlock();
             }
         }
-        return true;
+        return m;
+    }
+
+    /**
+     * Generates a name not used by any object, made of a prefix followed by a
+     * number. Numbers are never reused for the same prefix, so generating a
+     * name takes constant time on average.
+     *
+     * @param prefix the beginning of the name, e.g. the name of the snippet.
+     * @return a valid name.
+     */
+    public String generateName(String prefix) {
+        this.beginWrite();
+        try {
+            Integer counter = this.nameCounters.get(prefix);
+            int i = (counter == null) ? 0 : counter;
+            while (this.names.containsKey(prefix + i)) {
+                i++;
+            }
+            this.nameCounters.put(prefix, i + 1);
+            return prefix + i;
+        } finally {
+            this.endWrite();
+        }
+    }
+
+    /**
+     * Restarts name generation from 0 for every prefix. Used when the model
+     * is emptied.
+     */
+    public void resetNameCounters() {
+        this.beginWrite();
+        try {
+            this.nameCounters.clear();
+        } finally {
+            this.endWrite();
+        }
     }
 
     /**
@@ -142,83 +547,1305 @@ public class NSWorld extends Object implements Serializable {
      * @return true if the object was correctly stored, false otherwise.
      */
     public boolean addObject(NSObject newObject) {
-        return (this.objects.add(newObject));
+        this.beginWrite();
+        try {
+            if (!this.store(newObject)) {
+                return false;
+            }
+            this.attach(newObject);
+            this.markTclStale();
+            this.objectsAdded(Collections.singletonList(newObject));
+            if (this.undoRecorder != null) {
+                this.undoRecorder.added(Collections.singletonList(newObject));
+            }
+            return true;
+        } finally {
+            this.endWrite();
+        }
     }
 
     /**
-     * Counts the number of objects in the current simulation script.
+     * Adds many objects to the model at once. The Tcl view is marked to be
+     * rebuilt only once for all of them.
      *
-     * @return the number of simulation objects.
+     * @param newObjects the objects to be stored.
+     * @return the number of objects stored; objects already part of the model
+     * are skipped.
      */
-    public int getObjectsCount() {
-        return this.objects.size();
+    public int addObjects(Collection<? extends NSObject> newObjects) {
+        this.beginWrite();
+        try {
+            ArrayList<NSObject> added = new ArrayList<NSObject>(newObjects.size());
+            for (NSObject o : newObjects) {
+                if (this.store(o)) {
+                    this.attach(o);
+                    added.add(o);
+                }
+            }
+            if (!added.isEmpty()) {
+                this.markTclStale();
+                this.objectsAdded(added);
+                if (this.undoRecorder != null) {
+                    this.undoRecorder.added(added);
+                }
+            }
+            return added.size();
+        } finally {
+            this.endWrite();
+        }
     }
 
     /**
-     * Obtains an object using its name, Null if the name is not found.
+     * Puts an object in the bucket of its precedence, giving it a new
+     * sequence number.
+     */
+    private boolean store(NSObject o) {
+        return this.store(o, false);
+    }
+
+    /**
+     * Puts an object in the bucket of its precedence. An object put back after
+     * a change to its name or precedence keeps its sequence number, and so
+     * its place among the objects that compare equal to it; any other object
+     * is given a new one.
      *
-     * @param theName a string with the name of the object being looked.
-     * @return the object if the string was found, NULL otherwise.
+     * @param o the object.
+     * @param rekeyed true if the object was taken out by orderKeyChanging.
      */
-    public NSObject getObject(String theName) {
-        NSObject o;
-        Iterator<NSObject> i = this.objects.iterator();
+    private boolean store(NSObject o, boolean rekeyed) {
+        if (o.getSequence() >= 0) {
+            // Already stored
+            return false;
+        }
+        long last = o.getSequence();
+        o.setSequence(rekeyed ? o.getLastSequence() : this.nextSequence++);
+        if (!this.bucketOf(o, true).add(o)) {
+            o.setSequence(last);
+            return false;
+        }
+        this.indexName(o);
+        this.indexClass(o);
+        if ((o instanceof DMObject) && ((DMObject) o).isSelected()) {
+            this.selectionChanged(o, true);
+        }
+        if (o.getSnippet().isRelation()) {
+            this.link((NSRelation) o);
+        }
+        this.objectCount++;
+        this.ordered = null;
+        return true;
+    }
+
+    /**
+     * Takes an object out of the bucket of its precedence.
+     */
+    private boolean unstore(NSObject o) {
+        TreeSet<NSObject> bucket = this.bucketOf(o, false);
+        if ((o.getSequence() < 0) || (bucket == null) || !bucket.remove(o)) {
+            return false;
+        }
+        o.clearSequence();
+        if (bucket.isEmpty()) {
+            this.buckets.remove(o.getPrecedence());
+        }
+        this.unindexName(o);
+        this.unindexClass(o);
+        this.selectionChanged(o, false);
+        if (o.getSnippet().isRelation()) {
+            this.unlink((NSRelation) o);
+        }
+        this.objectCount--;
+        this.ordered = null;
+        return true;
+    }
 
-        while (i.hasNext()) {
-            o = i.next();
-            if (o.getName().equals(theName)) {
-                return o;
+    /**
+     * Gives a stored object back a sequence number it had before, moving it to
+     * its former place among the objects of the same precedence. Used to undo
+     * removals, which give the object a new sequence number.
+     *
+     * @param o the object.
+     * @param seq the former sequence number.
+     */
+    void restoreSequence(NSObject o, long seq) {
+        this.beginWrite();
+        try {
+            if ((seq < 0) || (o.getSequence() < 0) || (o.getSequence() == seq)) {
+                return;
             }
+            TreeSet<NSObject> bucket = this.bucketOf(o, false);
+            if ((bucket != null) && bucket.remove(o)) {
+                o.setSequence(seq);
+                bucket.add(o);
+                this.ordered = null;
+                this.markTclStale();
+            }
+        } finally {
+            this.endWrite();
         }
-        return null;
     }
-    
+
     /**
-     * Order objects to show the entity in a correct order
-     * @see NSObject.setPrecedence
+     * Adds an object to the set of instances of its class.
      */
-    public void orderObjects(){
-        Collections.sort(this.objects);
+    private void indexClass(NSObject o) {
+        LinkedHashSet<NSObject> set = this.instances.get(o.getSnippet().getName());
+        if (set == null) {
+            set = new LinkedHashSet<NSObject>();
+            this.instances.put(o.getSnippet().getName(), set);
+        }
+        set.add(o);
     }
-    
+
     /**
-     * Returns the i-th object in the simulation script. Notice that a bad
-     * position returns a Null object with no warnings.
+     * Removes an object from the set of instances of its class.
+     */
+    private void unindexClass(NSObject o) {
+        LinkedHashSet<NSObject> set = this.instances.get(o.getSnippet().getName());
+        if ((set != null) && set.remove(o) && set.isEmpty()) {
+            this.instances.remove(o.getSnippet().getName());
+        }
+    }
+
+    /**
+     * Counts the objects of a given class.
      *
-     * @param index the 0-based position of the object.
-     * @return the NSObject if the index was appropiate, null otherwise.
+     * @param snippetName the name of the snippet defining the class.
+     * @return the number of objects of that class.
      */
-    public NSObject getObject(int index) {
-        if ((index >= 0) && (index < this.objects.size())) {
-            return this.objects.get(index);
-        } else {
-            return null;
+    public int countOf(String snippetName) {
+        this.beginRead();
+        try {
+            LinkedHashSet<NSObject> set = this.instances.get(snippetName);
+            return (set == null) ? 0 : set.size();
+        } finally {
+            this.endRead();
         }
     }
 
     /**
-     * Get an iterator to scan objects.
-     * @return
+     * Returns the objects of a given class, in the order they were added. The
+     * set is a read-only view, that reflects later changes to the model: copy
+     * it before adding or removing objects while iterating.
+     *
+     * @param snippetName the name of the snippet defining the class.
+     * @return the objects of that class.
      */
-    public Iterator<NSObject> getObjectsIterator() {
-        return this.objects.iterator();
+    public Set<NSObject> instancesOf(String snippetName) {
+        this.beginRead();
+        try {
+            LinkedHashSet<NSObject> set = this.instances.get(snippetName);
+            if (set == null) {
+                return Collections.emptySet();
+            }
+            if (this.lock != null) {
+                // The live view could not be iterated while other threads
+                // add or remove objects
+                return Collections.unmodifiableSet(new LinkedHashSet<NSObject>(set));
+            }
+            return Collections.unmodifiableSet(set);
+        } finally {
+            this.endRead();
+        }
     }
 
     /**
-     * Removes all of the elements from this list.
+     * Adds a relation to the incidence lists of its ends.
      */
-    public void clearArrays() {
-        this.arrays.clear();
+    private void link(NSRelation r) {
+        if ((r.getFrom() == null) || (r.getTo() == null)) {
+            return;
+        }
+        this.incidenceOf(r.getFrom(), true).add(r.getSnippet().getName(), r, true);
+        this.incidenceOf(r.getTo(), true).add(r.getSnippet().getName(), r, false);
     }
 
     /**
-     * Returns the name of the environment variable.
+     * Removes a relation from the incidence lists of its ends.
+     */
+    private void unlink(NSRelation r) {
+        Incidence i;
+        if ((r.getFrom() != null) && ((i = this.incidenceOf(r.getFrom(), false)) != null)) {
+            if (i.remove(r.getSnippet().getName(), r, true)) {
+                this.incidences.remove(r.getFrom());
+            }
+        }
+        if ((r.getTo() != null) && ((i = this.incidenceOf(r.getTo(), false)) != null)) {
+            if (i.remove(r.getSnippet().getName(), r, false)) {
+                this.incidences.remove(r.getTo());
+            }
+        }
+    }
+
+    /**
+     * Returns the incidence lists of an entity.
      *
-     * @param dos
-     * @return the name of the model's environment. (Unused).
+     * @param create if true, missing lists are created.
+     * @return the lists, or null if missing and create is false.
      */
-    public String toString(int dos) {
-        return this.getEnvironment().getName();
+    private Incidence incidenceOf(NSObject e, boolean create) {
+        Incidence i = this.incidences.get(e);
+        if ((i == null) && create) {
+            i = new Incidence();
+            this.incidences.put(e, i);
+        }
+        return i;
+    }
+
+    /**
+     * Returns the relations that start at an entity.
+     *
+     * @param e the entity.
+     * @param snippetName the class of the relations, or null for all classes.
+     * @return a new list with the relations.
+     */
+    public List<NSRelation> getRelationsFrom(NSObject e, String snippetName) {
+        this.beginRead();
+        try {
+            List<NSRelation> l = new ArrayList<NSRelation>();
+            Incidence i = this.incidences.get(e);
+            if (i != null) {
+                i.collect(i.outgoing, snippetName, l);
+            }
+            return l;
+        } finally {
+            this.endRead();
+        }
+    }
+
+    /**
+     * Returns the relations that end at an entity.
+     *
+     * @param e the entity.
+     * @param snippetName the class of the relations, or null for all classes.
+     * @return a new list with the relations.
+     */
+    public List<NSRelation> getRelationsTo(NSObject e, String snippetName) {
+        this.beginRead();
+        try {
+            List<NSRelation> l = new ArrayList<NSRelation>();
+            Incidence i = this.incidences.get(e);
+            if (i != null) {
+                i.collect(i.incoming, snippetName, l);
+            }
+            return l;
+        } finally {
+            this.endRead();
+        }
+    }
+
+    /**
+     * Returns the relations that start or end at an entity.
+     *
+     * @param e the entity.
+     * @return a new list with the relations.
+     */
+    public List<NSRelation> getRelationsOf(NSObject e) {
+        this.beginRead();
+        try {
+            List<NSRelation> l = new ArrayList<NSRelation>();
+            Incidence i = this.incidences.get(e);
+            if (i != null) {
+                i.collect(i.outgoing, null, l);
+                i.collect(i.incoming, null, l);
+            }
+            return l;
+        } finally {
+            this.endRead();
+        }
+    }
+
+    /**
+     * Tells if an entity is attached to a relation of a given class.
+     *
+     * @param e the entity.
+     * @param snippetName the class of the relation.
+     * @return true if a relation of that class starts or ends at the entity.
+     */
+    public boolean hasRelation(NSObject e, String snippetName) {
+        this.beginRead();
+        try {
+            Incidence i = this.incidences.get(e);
+            return (i != null)
+                    && (i.outgoing.containsKey(snippetName) || i.incoming.containsKey(snippetName));
+        } finally {
+            this.endRead();
+        }
+    }
+
+    /**
+     * Adds an object to the name index.
+     */
+    private void indexName(NSObject o) {
+        this.publishedNames = null;
+        NSObject holder = this.names.get(o.getName());
+        if (holder == null) {
+            this.names.put(o.getName(), o);
+            return;
+        }
+        ArrayList<NSObject> others = this.duplicateNames.get(o.getName());
+        if (others == null) {
+            others = new ArrayList<NSObject>(1);
+            this.duplicateNames.put(o.getName(), others);
+        }
+        others.add(o);
+    }
+
+    /**
+     * Removes an object from the name index.
+     */
+    private void unindexName(NSObject o) {
+        this.publishedNames = null;
+        ArrayList<NSObject> others = this.duplicateNames.get(o.getName());
+        if (this.names.get(o.getName()) == o) {
+            if (others == null) {
+                this.names.remove(o.getName());
+                return;
+            }
+            this.names.put(o.getName(), others.remove(0));
+        } else if (others != null) {
+            others.remove(o);
+        }
+        if ((others != null) && others.isEmpty()) {
+            this.duplicateNames.remove(o.getName());
+        }
+    }
+
+    /**
+     * Returns the bucket for the precedence of an object.
+     *
+     * @param create if true, a missing bucket is created.
+     * @return the bucket, or null if missing and create is false.
+     */
+    private TreeSet<NSObject> bucketOf(NSObject o, boolean create) {
+        TreeSet<NSObject> bucket = this.buckets.get(o.getPrecedence());
+        if ((bucket == null) && create) {
+            bucket = new TreeSet<NSObject>(STORAGE_ORDER);
+            this.buckets.put(o.getPrecedence(), bucket);
+        }
+        return bucket;
+    }
+
+    /**
+     * Returns all the objects in order, rebuilding the array by merging the
+     * buckets if needed. The array must not be modified.
+     *
+     * @return the objects, in the order they are stored.
+     */
+    NSObject[] ordered() {
+        NSObject[] a = this.ordered;
+        if (a == null) {
+            a = new NSObject[this.objectCount];
+            int i = 0;
+            for (TreeSet<NSObject> bucket : this.buckets.values()) {
+                for (NSObject o : bucket) {
+                    a[i++] = o;
+                }
+            }
+            this.ordered = a;
+        }
+        return a;
+    }
+
+    /**
+     * Removes an object from the model.
+     *
+     * @param o the object to remove.
+     * @return true if the object was removed, false if it is not part of the
+     * model or it is the environment.
+     */
+    public boolean removeObject(NSObject o) {
+        this.beginWrite();
+        try {
+            if ((o == this.environment) || !this.unstore(o)) {
+                return false;
+            }
+            this.detach(o);
+            this.markTclStale();
+            this.objectsRemoved(Collections.singletonList(o));
+            if (this.undoRecorder != null) {
+                this.undoRecorder.removed(Collections.singletonList(o));
+            }
+            return true;
+        } finally {
+            this.endWrite();
+        }
+    }
+
+    /**
+     * Removes many objects from the model at once. The Tcl view is marked to
+     * be rebuilt only once for all of them.
+     *
+     * @param objects the objects to remove.
+     * @return the number of objects removed; objects not part of the model,
+     * and the environment, are skipped.
+     */
+    public int removeObjects(Collection<? extends NSObject> objects) {
+        this.beginWrite();
+        try {
+            ArrayList<NSObject> removed = new ArrayList<NSObject>();
+            for (NSObject o : objects) {
+                if ((o != this.environment) && this.unstore(o)) {
+                    this.detach(o);
+                    removed.add(o);
+                }
+            }
+            if (!removed.isEmpty()) {
+                this.markTclStale();
+                this.objectsRemoved(removed);
+                if (this.undoRecorder != null) {
+                    this.undoRecorder.removed(removed);
+                }
+            }
+            return removed.size();
+        } finally {
+            this.endWrite();
+        }
+    }
+
+    /**
+     * Sets the value of an attribute on many objects.
+     *
+     * @param objects the objects to edit.
+     * @param attrName the name of the attribute, as defined by the snippets.
+     * @param inNewValue a String containing the new value.
+     * @return the number of objects whose snippet defines the attribute.
+     */
+    public int setAttribute(Collection<? extends NSObject> objects, String attrName, String inNewValue) {
+        this.beginWrite();
+        try {
+            int n = 0;
+            for (NSObject o : objects) {
+                if (o.setAttribute(attrName, inNewValue)) {
+                    n++;
+                }
+            }
+            return n;
+        } finally {
+            this.endWrite();
+        }
+    }
+
+    /**
+     * Makes a stored object part of this world.
+     */
+    private void attach(NSObject o) {
+        o.setWorld(this);
+        if (o instanceof NSEntity) {
+            ((NSEntity) o).setGeometry(this.geometry);
+        }
+    }
+
+    /**
+     * Releases an object that is no longer stored.
+     */
+    private void detach(NSObject o) {
+        if (o instanceof NSEntity) {
+            ((NSEntity) o).setGeometry(null);
+        }
+        o.setWorld(null);
+    }
+
+    /**
+     * Returns the store with the positions of the entities of this world.
+     *
+     * @return the geometry store.
+     */
+    public GeometryStore getGeometry() {
+        return this.geometry;
+    }
+
+    /**
+     * Adds all the relations of the model to a list, class by class.
+     *
+     * @param out the list where the relations are added.
+     */
+    void collectRelations(List<NSRelation> out) {
+        this.beginRead();
+        try {
+            for (LinkedHashSet<NSObject> set : this.instances.values()) {
+                if (set.iterator().next().getSnippet().isRelation()) {
+                    for (NSObject o : set) {
+                        out.add((NSRelation) o);
+                    }
+                }
+            }
+        } finally {
+            this.endRead();
+        }
+    }
+
+    /**
+     * Sorts some objects of this world in the order they are stored.
+     *
+     * @param objects the objects.
+     */
+    void sortInOrder(List<NSObject> objects) {
+        Collections.sort(objects, STORAGE_ORDER);
+    }
+
+    /**
+     * Returns the object that comes first in the storage order.
+     *
+     * @param a an object, or null.
+     * @param b another object.
+     * @return a or b.
+     */
+    NSObject firstInOrder(NSObject a, NSObject b) {
+        if ((a == null) || (STORAGE_ORDER.compare(b, a) < 0)) {
+            return b;
+        }
+        return a;
+    }
+
+    /**
+     * Called by an object when it is selected or unselected.
+     *
+     * @param o the object.
+     * @param selected the new state of the object.
+     */
+    void selectionChanged(NSObject o, boolean selected) {
+        this.beginWrite();
+        try {
+            boolean changed = selected ? this.selection.add(o) : this.selection.remove(o);
+            if (changed) {
+                this.selectionArray = null;
+                this.selectionToggled(o);
+            }
+        } finally {
+            this.endWrite();
+        }
+    }
+
+    /**
+     * Counts the selected objects.
+     *
+     * @return the number of selected objects.
+     */
+    public int getSelectedCount() {
+        this.beginRead();
+        try {
+            return this.selection.size();
+        } finally {
+            this.endRead();
+        }
+    }
+
+    /**
+     * Returns the i-th selected object, in the order they were selected.
+     *
+     * @param index the 0-based position of the object in the selection.
+     * @return the object, or null if the index is out of range.
+     */
+    public NSObject getSelected(int index) {
+        this.beginRead();
+        try {
+            if ((index < 0) || (index >= this.selection.size())) {
+                return null;
+            }
+            return this.selectionArray()[index];
+        } finally {
+            this.endRead();
+        }
+    }
+
+    /**
+     * Returns the selected objects, in the order they were selected. The list
+     * is a snapshot: it is safe to select, unselect or remove objects while
+     * iterating it.
+     *
+     * @return the selected objects.
+     */
+    public List<NSObject> getSelection() {
+        this.beginRead();
+        try {
+            return Collections.unmodifiableList(Arrays.asList(this.selectionArray()));
+        } finally {
+            this.endRead();
+        }
+    }
+
+    /**
+     * Clears the whole selection.
+     */
+    public void unselectAll() {
+        this.beginWrite();
+        try {
+            for (NSObject o : this.selectionArray()) {
+                ((DMObject) o).unselect();
+            }
+        } finally {
+            this.endWrite();
+        }
+    }
+
+    /**
+     * Returns the selected objects as an array, rebuilding it if needed. The
+     * array must not be modified.
+     */
+    private NSObject[] selectionArray() {
+        NSObject[] a = this.selectionArray;
+        if (a == null) {
+            a = this.selection.toArray(new NSObject[this.selection.size()]);
+            this.selectionArray = a;
+        }
+        return a;
+    }
+
+    /**
+     * Counts the number of objects in the current simulation script.
+     *
+     * @return the number of simulation objects.
+     */
+    public int getObjectsCount() {
+        this.beginRead();
+        try {
+            return this.objectCount;
+        } finally {
+            this.endRead();
+        }
+    }
+
+    /**
+     * Obtains an object using its name, Null if the name is not found.
+     *
+     * @param theName a string with the name of the object being looked.
+     * @return the object if the string was found, NULL otherwise.
+     */
+    public NSObject getObject(String theName) {
+        return this.names().get(theName);
+    }
+    
+    /**
+     * Order objects to show the entity in a correct order. Objects are always
+     * stored in order, so there is nothing left to do.
+     * @see NSObject.setPrecedence
+     */
+    public void orderObjects(){
+    }
+    
+    /**
+     * Returns the i-th object in the simulation script. Notice that a bad
+     * position returns a Null object with no warnings.
+     *
+     * @param index the 0-based position of the object.
+     * @return the NSObject if the index was appropiate, null otherwise.
+     */
+    public NSObject getObject(int index) {
+        if (index < 0) {
+            return null;
+        }
+        NSObject[] a;
+        this.beginRead();
+        try {
+            a = this.ordered();
+        } finally {
+            this.endRead();
+        }
+        return (index < a.length) ? a[index] : null;
+    }
+
+    /**
+     * Get an iterator to scan objects. The iterator goes through the objects
+     * as they were when it was created: the world can be changed while
+     * iterating, also from other threads.
+     * @return
+     */
+    public Iterator<NSObject> getObjectsIterator() {
+        final NSObject[] a;
+        this.beginRead();
+        try {
+            a = this.ordered();
+        } finally {
+            this.endRead();
+        }
+        return new Iterator<NSObject>() {
+            private int next;
+            private NSObject last;
+
+            @Override
+            public boolean hasNext() {
+                return this.next < a.length;
+            }
+
+            @Override
+            public NSObject next() {
+                if (this.next >= a.length) {
+                    throw new NoSuchElementException();
+                }
+                this.last = a[this.next++];
+                return this.last;
+            }
+
+            @Override
+            public void remove() {
+                NSWorld.this.beginWrite();
+                try {
+                    if ((this.last == null) || !NSWorld.this.unstore(this.last)) {
+                        throw new IllegalStateException();
+                    }
+                    NSWorld.this.detach(this.last);
+                    NSWorld.this.markTclStale();
+                    NSWorld.this.objectsRemoved(Collections.singletonList(this.last));
+                    if (NSWorld.this.undoRecorder != null) {
+                        NSWorld.this.undoRecorder.removed(Collections.singletonList(this.last));
+                    }
+                    this.last = null;
+                } finally {
+                    NSWorld.this.endWrite();
+                }
+            }
+        };
+    }
+
+    /**
+     * Counts the elements generated by an object, that is the size of the
+     * array indexing it.
+     *
+     * @param o the object.
+     * @return the number of elements, or 0 if the object is not indexed by an
+     * array.
+     */
+    public int getElementCount(NSObject o) {
+        this.beginRead();
+        try {
+            int i = o.getArrayIndex();
+            return ((i >= 0) && (i < this.arrays.size())) ? Math.max(this.arrays.get(i).getSize(), 0) : 0;
+        } finally {
+            this.endRead();
+        }
+    }
+
+    /**
+     * Returns an element generated by an object. See NSElement.
+     *
+     * @param o the object.
+     * @param index the 0-based index of the element.
+     * @return the element, or null if the object is not indexed by an array
+     * or the index is out of range.
+     */
+    public NSElement getElement(NSObject o, int index) {
+        if ((index < 0) || (index >= this.getElementCount(o))) {
+            return null;
+        }
+        return new NSElement(o, index);
+    }
+
+    /**
+     * Returns an element given its name in the Tcl script, e.g. "tcp(5)".
+     *
+     * @param reference the name of the object followed by the index of the
+     * element in parentheses.
+     * @return the element, or null if there is no such element.
+     */
+    public NSElement getElement(String reference) {
+        int open = reference.lastIndexOf('(');
+        if ((open <= 0) || !reference.endsWith(")")) {
+            return null;
+        }
+        NSObject o = this.getObject(reference.substring(0, open));
+        if (o == null) {
+            return null;
+        }
+        try {
+            return this.getElement(o, Integer.parseInt(reference.substring(open + 1, reference.length() - 1)));
+        } catch (NumberFormatException nfe) {
+            return null;
+        }
+    }
+
+    /**
+     * Get an iterator over the elements generated by an object, in order.
+     * Elements are created as the iterator reaches them, so that any array
+     * can be visited in constant memory. The number of elements is the size
+     * of the array when the iterator is created.
+     *
+     * @param o the object.
+     * @return the iterator; empty if the object is not indexed by an array.
+     */
+    public Iterator<NSElement> getElements(final NSObject o) {
+        final int count = this.getElementCount(o);
+        return new Iterator<NSElement>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return this.next < count;
+            }
+
+            @Override
+            public NSElement next() {
+                if (this.next >= count) {
+                    throw new NoSuchElementException();
+                }
+                return new NSElement(o, this.next++);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Returns the elements of an object that have values of their own. Takes
+     * time proportional to their number, not to the size of the array.
+     *
+     * @param o the object.
+     * @return the customized elements within the array, in order.
+     */
+    public List<NSElement> getCustomizedElements(NSObject o) {
+        int count = this.getElementCount(o);
+        List<NSElement> l = new ArrayList<NSElement>();
+        for (int i : o.getCustomizedElements()) {
+            if (i >= count) {
+                break;
+            }
+            l.add(new NSElement(o, i));
+        }
+        return l;
+    }
+
+    /**
+     * Removes all of the elements from this list.
+     */
+    public void clearArrays() {
+        this.beginWrite();
+        try {
+            NSUndoManager undo = this.undoRecorder;
+            List<NSArray> cleared = new ArrayList<NSArray>(this.arrays);
+            if (undo != null) {
+                undo.beginStep();
+            }
+            try {
+                this.arrays.clear();
+                this.publishedArrays = null;
+                for (NSObject o : this.ordered()) {
+                    o.setArrayIndex(-1);
+                }
+                this.arraysChanged();
+                if (undo != null) {
+                    undo.arraysCleared(cleared);
+                }
+            } finally {
+                if (undo != null) {
+                    undo.endStep();
+                }
+            }
+        } finally {
+            this.endWrite();
+        }
+    }
+
+    /**
+     * Called by an object before a change to its name or precedence, which
+     * define its place in the storage order. Must be followed by a call to
+     * orderKeyChanged().
+     *
+     * @param o the object about to change.
+     */
+    void orderKeyChanging(NSObject o) {
+        this.beginWrite();
+        try {
+            this.unstore(o);
+        } finally {
+            this.endWrite();
+        }
+    }
+
+    /**
+     * Called by an object after a change to its name or precedence, to put it
+     * back in its place in the storage order.
+     *
+     * @param o the changed object.
+     */
+    void orderKeyChanged(NSObject o) {
+        this.beginWrite();
+        try {
+            if (this.store(o, true)) {
+                this.markTclStale();
+            }
+        } finally {
+            this.endWrite();
+        }
+    }
+
+    /**
+     * Called by an object when its name changes. Invalidates the Tcl code of
+     * the relations attached to it, and, for the environment, of the objects
+     * that refer to its name.
+     *
+     * @param o the renamed object.
+     */
+    void objectRenamed(NSObject o) {
+        this.beginWrite();
+        try {
+            this.invalidateRelationsOf(o);
+            if (o == this.getEnvironment()) {
+                this.environmentChanged("name");
+            }
+        } finally {
+            this.endWrite();
+        }
+    }
+
+    /**
+     * Invalidates the Tcl code of the relations attached to an object.
+     *
+     * @param o the object whose relations are invalidated.
+     */
+    void invalidateRelationsOf(NSObject o) {
+        Incidence i = this.incidences.get(o);
+        if (i != null) {
+            for (List<NSRelation> l : i.outgoing.values()) {
+                for (NSRelation r : l) {
+                    r.invalidateTcl();
+                }
+            }
+            for (List<NSRelation> l : i.incoming.values()) {
+                for (NSRelation r : l) {
+                    r.invalidateTcl();
+                }
+            }
+        }
+    }
+
+    /**
+     * Called when an attribute of the environment changes. Invalidates the Tcl
+     * code of the objects whose patterns refer to it.
+     *
+     * @param attrName the name of the attribute, or "name" for the name of
+     * the environment.
+     */
+    void environmentChanged(String attrName) {
+        for (LinkedHashSet<NSObject> set : this.instances.values()) {
+            if (set.iterator().next().getSnippet().usesEnvironment(attrName)) {
+                for (NSObject o : set) {
+                    o.invalidateTcl();
+                }
+            }
+        }
+    }
+
+    /**
+     * Called by an object when its cached Tcl code is invalidated.
+     *
+     * @param o the object.
+     */
+    void tclInvalidated(NSObject o) {
+        this.beginWrite();
+        try {
+            this.discardSnapshot();
+            // A stale view is rebuilt as a whole, regenerating every object
+            // without cached code: no need to track them one by one
+            if (!this.tclStale) {
+                this.tclDirty.add(o);
+            }
+            this.tclVersion++;
+        } finally {
+            this.endWrite();
+        }
+    }
+
+    /**
+     * Returns an immutable view of the current state of the model: its
+     * objects, with their attributes, positions and relations, and its
+     * arrays. The snapshot can be read, exported or analyzed from any thread,
+     * while the model keeps being edited.
+     *
+     * The write lock is only held while the snapshot is made, and nothing is
+     * deep-copied. The snapshot is made of
+     * frozen copies of the objects (see NSObject.freeze), which share their
+     * attribute values with the objects until these change. Copies are only
+     * made for the objects changed since the previous snapshot, and if
+     * nothing changed the previous snapshot is returned again.
+     *
+     * Must be called from the thread that edits the model, normally the event
+     * dispatch thread.
+     *
+     * @return the snapshot.
+     */
+    public NSSnapshot snapshot() {
+        this.beginWrite();
+        try {
+            NSObject[] objects = this.frozenObjects;
+            NSSnapshot s = this.snapshot;
+            if (objects == null) {
+                // Only the objects that changed are copied again
+                NSObject[] a = this.ordered();
+                objects = new NSObject[a.length];
+                for (int i = 0; i < a.length; i++) {
+                    objects[i] = a[i].freeze();
+                }
+                this.frozenObjects = objects;
+            }
+            if ((s == null) || !s.isSnapshotOf(objects, this.arrays)) {
+                s = new NSSnapshot(objects, this.environment.freeze(), this.arrays);
+                this.snapshot = s;
+            }
+            return s;
+        } finally {
+            this.endWrite();
+        }
+    }
+
+    /**
+     * Called when the objects change, so that the next snapshot is taken
+     * again.
+     */
+    void discardSnapshot() {
+        this.beginWrite();
+        try {
+            this.frozenObjects = null;
+            this.snapshot = null;
+        } finally {
+            this.endWrite();
+        }
+    }
+
+    /**
+     * Returns the recorder of the changes to be undone.
+     *
+     * @return the recorder, or null if changes are not recorded.
+     */
+    NSUndoManager getUndoRecorder() {
+        return this.undoRecorder;
+    }
+
+    /**
+     * Sets the recorder of the changes to be undone.
+     *
+     * @param u the recorder, or null to stop recording.
+     */
+    void setUndoRecorder(NSUndoManager u) {
+        this.undoRecorder = u;
+    }
+
+    /**
+     * Called after objects are added. NSWorld does nothing: NSModel overrides
+     * this and the following hooks to inform its listeners.
+     *
+     * @param objects the objects added.
+     */
+    void objectsAdded(List<NSObject> objects) {
+    }
+
+    /**
+     * Called after objects are removed.
+     *
+     * @param objects the objects removed.
+     */
+    void objectsRemoved(List<NSObject> objects) {
+    }
+
+    /**
+     * Called by an object after one of its attributes, its name or its array
+     * index changed.
+     *
+     * @param o the object.
+     * @param attrName the attribute (see NSModelEvent.getAttribute).
+     */
+    void attributeChanged(NSObject o, String attrName) {
+    }
+
+    /**
+     * Called by an entity after it moved.
+     *
+     * @param o the entity.
+     */
+    void objectMoved(NSObject o) {
+    }
+
+    /**
+     * Called after an object is selected or unselected.
+     *
+     * @param o the object.
+     */
+    void selectionToggled(NSObject o) {
+    }
+
+    /**
+     * Called after the index arrays changed.
+     */
+    void arraysChanged() {
+    }
+
+    /**
+     * Marks the Tcl view to be rebuilt as a whole, because objects were added,
+     * removed or reordered.
+     */
+    private void markTclStale() {
+        this.discardSnapshot();
+        this.tclStale = true;
+        this.tclDirty.clear();
+        this.tclVersion++;
+    }
+
+    /**
+     * Returns a number that changes every time something the Tcl code depends
+     * on changes. Safe to call from any thread.
+     *
+     * @return the current version of the Tcl code.
+     */
+    int getTclVersion() {
+        return this.tclVersion;
+    }
+
+    /**
+     * Returns the objects whose Tcl code changed since the last call to
+     * drainTclDirty(), without resetting the change tracking.
+     *
+     * @return the changed objects.
+     */
+    List<NSObject> getTclDirty() {
+        this.beginRead();
+        try {
+            return new ArrayList<NSObject>(this.tclDirty);
+        } finally {
+            this.endRead();
+        }
+    }
+
+    /**
+     * Copies the objects of the model, in the order they are stored.
+     *
+     * @return a new array with all the objects.
+     */
+    NSObject[] toObjectArray() {
+        this.beginRead();
+        try {
+            return this.ordered().clone();
+        } finally {
+            this.endRead();
+        }
+    }
+
+    /**
+     * Tells if the Tcl view has to be rebuilt as a whole, because objects were
+     * added, removed or reordered.
+     *
+     * @return true if the structure of the model changed.
+     */
+    boolean isTclStale() {
+        this.beginRead();
+        try {
+            return this.tclStale;
+        } finally {
+            this.endRead();
+        }
+    }
+
+    /**
+     * Returns the objects whose Tcl code changed since the last call, and
+     * resets the change tracking.
+     *
+     * @return the changed objects.
+     */
+    List<NSObject> drainTclDirty() {
+        this.beginWrite();
+        try {
+            List<NSObject> dirty = new ArrayList<NSObject>(this.tclDirty);
+            this.tclDirty.clear();
+            this.tclStale = false;
+            return dirty;
+        } finally {
+            this.endWrite();
+        }
+    }
+
+    /**
+     * Returns the name of the environment variable.
+     *
+     * @param dos
+     * @return the name of the model's environment. (Unused).
+     */
+    public String toString(int dos) {
+        return this.getEnvironment().getName();
+    }
+
+    /**
+     * The relations attached to an entity, split by direction and by class
+     * (name of the relation snippet).
+     */
+    private static class Incidence implements Serializable {
+
+        static final long serialVersionUID = 42L;
+        /**
+         * The relations starting at the entity.
+         */
+        final HashMap<String, ArrayList<NSRelation>> outgoing = new HashMap<String, ArrayList<NSRelation>>(4);
+        /**
+         * The relations ending at the entity.
+         */
+        final HashMap<String, ArrayList<NSRelation>> incoming = new HashMap<String, ArrayList<NSRelation>>(4);
+
+        /**
+         * Adds a relation.
+         */
+        void add(String snippetName, NSRelation r, boolean out) {
+            HashMap<String, ArrayList<NSRelation>> m = out ? this.outgoing : this.incoming;
+            ArrayList<NSRelation> l = m.get(snippetName);
+            if (l == null) {
+                l = new ArrayList<NSRelation>(2);
+                m.put(snippetName, l);
+            }
+            l.add(r);
+        }
+
+        /**
+         * Removes a relation.
+         *
+         * @return true if no relations are left.
+         */
+        boolean remove(String snippetName, NSRelation r, boolean out) {
+            HashMap<String, ArrayList<NSRelation>> m = out ? this.outgoing : this.incoming;
+            ArrayList<NSRelation> l = m.get(snippetName);
+            if (l != null) {
+                for (int i = 0; i < l.size(); i++) {
+                    if (l.get(i) == r) {
+                        l.remove(i);
+                        break;
+                    }
+                }
+                if (l.isEmpty()) {
+                    m.remove(snippetName);
+                }
+            }
+            return this.outgoing.isEmpty() && this.incoming.isEmpty();
+        }
+
+        /**
+         * Adds the relations of a class, or of all classes, to a list.
+         */
+        void collect(HashMap<String, ArrayList<NSRelation>> m, String snippetName, List<NSRelation> dest) {
+            if (snippetName == null) {
+                for (ArrayList<NSRelation> l : m.values()) {
+                    dest.addAll(l);
+                }
+            } else if (m.containsKey(snippetName)) {
+                dest.addAll(m.get(snippetName));
+            }
+        }
+    }
+
+    /**
+     * The order of the objects in a bucket: the natural order of the objects
+     * (by name for entities), then the order they were added in.
+     */
+    private static class StorageOrder implements Comparator<NSObject>, Serializable {
+
+        static final long serialVersionUID = 42L;
+
+        @Override
+        public int compare(NSObject a, NSObject b) {
+            int c = a.compareTo(b);
+            if (c != 0) {
+                return c;
+            }
+            return (a.getSequence() < b.getSequence()) ? -1
+                    : ((a.getSequence() == b.getSequence()) ? 0 : 1);
+        }
     }
     private static final Logger LOG = Logger.getLogger(NSWorld.class.getName());
 }
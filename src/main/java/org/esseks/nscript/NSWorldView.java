@@ -30,6 +30,10 @@ public class NSWorldView extends JPanel {
      * The list GUI element.
      */
     private JList<String> l;
+    /**
+     * The model of the list.
+     */
+    private SWPListModel listModel;
 
     /**
      * Constructor that copies a reference to the simulation model.
@@ -40,7 +44,8 @@ public class NSWorldView extends JPanel {
         super();
 
         this.w = inW;
-        this.l = new JList<String>(new SWPListModel(this.w));
+        this.listModel = new SWPListModel(this.w);
+        this.l = new JList<String>(this.listModel);
         this.l.setCellRenderer(new NSWorldPane());
         JScrollPane sp = new JScrollPane(this.l);
         this.setLayout(new BorderLayout());
@@ -51,8 +56,7 @@ public class NSWorldView extends JPanel {
      * Updates the view when the model suffers changes.
      */
     public void updateList() {
-        this.l.setModel(new SWPListModel(this.w));
-        this.updateUI();
+        this.listModel.refresh();
     }
 
     /**
@@ -65,6 +69,10 @@ public class NSWorldView extends JPanel {
          * A reference to the model.
          */
         NSWorld W;
+        /**
+         * The size of the model when the list was last refreshed.
+         */
+        private int shownSize;
 
         /**
          * The constructor takes a reference to the model.
@@ -73,6 +81,24 @@ public class NSWorldView extends JPanel {
          */
         SWPListModel(NSWorld inW) {
             this.W = inW;
+            this.shownSize = inW.getObjectsCount();
+        }
+
+        /**
+         * Tells the list that the objects changed. Only the visible rows are
+         * rendered again.
+         */
+        void refresh() {
+            int size = this.W.getObjectsCount();
+            if (size < this.shownSize) {
+                this.fireIntervalRemoved(this, size, this.shownSize - 1);
+            } else if (size > this.shownSize) {
+                this.fireIntervalAdded(this, this.shownSize, size - 1);
+            }
+            this.shownSize = size;
+            if (size > 0) {
+                this.fireContentsChanged(this, 0, size - 1);
+            }
         }
 
         /**
@@ -13,9 +13,14 @@ import java.awt.Container;
 import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.event.ActionEvent;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
@@ -23,9 +28,11 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.Writer;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.AbstractAction;
@@ -36,13 +43,17 @@ import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
+import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.JScrollPane;
 import javax.swing.JSplitPane;
 import javax.swing.JTabbedPane;
 import javax.swing.JTextArea;
 import javax.swing.JToolBar;
+import javax.swing.KeyStroke;
+import javax.swing.ProgressMonitor;
 import javax.swing.SwingConstants;
+import javax.swing.SwingWorker;
 import javax.swing.border.EtchedBorder;
 
 /**
@@ -93,6 +104,20 @@ public class NScript extends JFrame {
      * Last path explored file File Chooser
      */
     private String lastpath;
+    /**
+     * Size of the buffer between the Tcl export and the script file.
+     */
+    private static final int EXPORT_BUFFER_SIZE = 1 << 16;
+    /**
+     * Models with at least this many objects are exported in parallel, if
+     * more than one processor is available.
+     */
+    private static final int PARALLEL_EXPORT_THRESHOLD = 4096;
+    /**
+     * Model files of at least this many bytes are read in parallel, if more
+     * than one processor is available.
+     */
+    private static final long PARALLEL_LOAD_THRESHOLD = 1 << 20;
 
     /**
      * Main constructor. Its responsibilities include creating the title dialog
@@ -279,6 +304,11 @@ public class NScript extends JFrame {
 
         // Edit menu
         JMenu editMenu = new JMenu(Messages.tr("edit"));
+        JMenuItem item = editMenu.add(new UndoAction(Messages.tr("undo"), null));
+        item.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Z, InputEvent.CTRL_DOWN_MASK));
+        item = editMenu.add(new RedoAction(Messages.tr("redo"), null));
+        item.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Y, InputEvent.CTRL_DOWN_MASK));
+        editMenu.addSeparator();
         editMenu.add(new ClearAction(Messages.tr("clear"), null));
         editMenu.addSeparator();
         editMenu.add(editArrayA);
@@ -359,49 +389,131 @@ public class NScript extends JFrame {
 
     /**
      * Handles the save script option, that allows the user to export the
-     * current script as a Tcl script, runnable script.
+     * current script as a Tcl script, runnable script. The script is written
+     * in background, straight to the file, while a progress dialog allows the
+     * user to cancel the export. What is written is a snapshot of the model
+     * taken when the export starts, so that the model can still be edited.
      *
-     * @return
+     * @param runWhenDone if true, the script is run in ns once it has been
+     * completely written.
      */
-    public String saveScript() {
-        Writer writer = null;
-
+    public void saveScript(final boolean runWhenDone) {
         JFileChooser fch = new JFileChooser(this.lastpath);
         fch.setDialogTitle(Messages.tr("script_select_name"));
         // fch.setFileFilter(ff);
         fch.setSelectedFile(new File("Untitled.tcl"));
         int selected = fch.showSaveDialog(this.getContentPane());
-        if (selected == JFileChooser.APPROVE_OPTION) {
-            try {
-                this.updateLastPath(fch.getSelectedFile());
-                writer = new OutputStreamWriter(
-                        new FileOutputStream(fch.getSelectedFile()), "utf-8");
-                writer.write(this.model.toTcl());
-                return fch.getSelectedFile().getAbsolutePath();
-            } catch (FileNotFoundException e) {
-                LOG.log(Level.SEVERE, "{0} {1}", new Object[]{
-                            Messages.tr("file_open_error"), e.toString()});
-                return null;
-            } catch (IOException ioe) {
-                LOG.log(Level.SEVERE, "{0} {1}", new Object[]{
-                            Messages.tr("file_write_error"), ioe.toString()});
-                return null;
-            } finally {
-                this.close(writer);
+        if (selected != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+
+        final File target = fch.getSelectedFile();
+        this.updateLastPath(target);
+        final NSSnapshot snapshot = this.model.snapshot();
+        final ProgressMonitor pm = new ProgressMonitor(this.getContentPane(),
+                Messages.tr("exporting"), target.getName(), 0, 100);
+        final SwingWorker<Boolean, Void> worker = new SwingWorker<Boolean, Void>() {
+            @Override
+            protected Boolean doInBackground() throws IOException {
+                final SwingWorker<Boolean, Void> self = this;
+                Writer writer = null;
+                try {
+                    writer = new BufferedWriter(new OutputStreamWriter(
+                            CompressedStreams.openOutput(target), "utf-8"), EXPORT_BUFFER_SIZE);
+                    TaskMonitor monitor = new TaskMonitor() {
+                        @Override
+                        public void progress(int done, int total) {
+                            setProgress(total > 0 ? (int) ((100L * done) / total) : 100);
+                        }
+
+                        @Override
+                        public boolean isCancelled() {
+                            return self.isCancelled();
+                        }
+                    };
+                    if ((snapshot.getObjectsCount() >= PARALLEL_EXPORT_THRESHOLD)
+                            && (Runtime.getRuntime().availableProcessors() > 1)) {
+                        return snapshot.writeTclParallel(writer, monitor);
+                    }
+                    return snapshot.writeTcl(writer, monitor);
+                } finally {
+                    NScript.this.close(writer);
+                }
+            }
+
+            @Override
+            protected void done() {
+                pm.close();
+                boolean written = false;
+                try {
+                    written = !this.isCancelled() && this.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    LOG.log(Level.SEVERE, "{0} {1}", new Object[]{
+                                Messages.tr("file_write_error"), e.getCause().toString()});
+                }
+                if (!written) {
+                    // Do not leave a truncated script behind
+                    if (!target.delete()) {
+                        LOG.log(Level.WARNING, "{0} {1}", new Object[]{
+                                    Messages.tr("file_write_error"), target.getPath()});
+                    }
+                } else if (runWhenDone) {
+                    if (CompressedStreams.isCompressedName(target)) {
+                        // ns reads plain scripts only
+                        JOptionPane.showMessageDialog(
+                                NScript.this.getContentPane(),
+                                target.getName(),
+                                Messages.tr("ns_compressed_script"),
+                                JOptionPane.ERROR_MESSAGE);
+                    } else {
+                        NScript.this.runScript(target.getAbsolutePath());
+                    }
+                }
+            }
+        };
+        worker.addPropertyChangeListener(new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent evt) {
+                if ("progress".equals(evt.getPropertyName())) {
+                    pm.setProgress((Integer) evt.getNewValue());
+                    if (pm.isCanceled()) {
+                        worker.cancel(false);
+                    }
+                }
             }
+        });
+        worker.execute();
+    }
+
+    /**
+     * Runs a script in ns.
+     *
+     * @param fName the path of the script.
+     */
+    private void runScript(String fName) {
+        try {
+            Runtime.getRuntime().exec("ns " + fName);
+        } catch (IOException ioe) {
+            JOptionPane.showMessageDialog(
+                    this.getContentPane(),
+                    ioe.toString(),
+                    Messages.tr("ns_exec_error"),
+                    JOptionPane.ERROR_MESSAGE);
         }
-        return null;
     }
 
     /**
      * Handles the 'Save' item of the 'File' menu, by allowing the user to
      * select a place to store the current script in a propiertary format. This
-     * will soon be replaced by an XML format.
+     * will soon be replaced by an XML format. Files named with the extension
+     * of the binary format (see NssBinaryFormat) are saved in that format.
      *
      * @return
      */
     public String saveFileAction() {
-        Writer writer = null;
+        Closeable writer = null;
 
         JFileChooser fch = new JFileChooser(this.lastpath);
         fch.setDialogTitle(Messages.tr("save_as"));
@@ -411,9 +523,16 @@ public class NScript extends JFrame {
         if (selected == JFileChooser.APPROVE_OPTION) {
             try {
                 this.updateLastPath(fch.getSelectedFile());
-                writer = new OutputStreamWriter(
-                        new FileOutputStream(fch.getSelectedFile()), "utf-8");
-                writer.write(this.model.toString());
+                if (fch.getSelectedFile().getName().endsWith(NssBinaryFormat.EXTENSION)) {
+                    OutputStream out = new FileOutputStream(fch.getSelectedFile());
+                    writer = out;
+                    NssBinaryFormat.write(this.model, out);
+                } else {
+                    Writer out = new OutputStreamWriter(
+                            CompressedStreams.openOutput(fch.getSelectedFile()), "utf-8");
+                    writer = out;
+                    out.write(this.model.toString());
+                }
                 writer.close();
                 this.model.setDirty(false);
                 return fch.getSelectedFile().getAbsolutePath();
@@ -457,15 +576,11 @@ public class NScript extends JFrame {
 
     /**
      * Implements the "Open" option of the "File" menu. Open a dialog box to let
-     * the user select a file, and opens it.
+     * the user select a file, and opens it. Files in the binary format (see
+     * NssBinaryFormat) are recognized by their first bytes.
      */
     public void openFileAction() {
-        int nA, nO;
-        int i, selected;
-        String sName;
-        NSObject o;
-        NSRelation or;
-        TclSnippet s;
+        int selected;
 
         JFileChooser fch = new JFileChooser(this.lastpath);
         fch.setDialogTitle(Messages.tr("script_open"));
@@ -473,44 +588,32 @@ public class NScript extends JFrame {
         if (selected == JFileChooser.APPROVE_OPTION) {
             this.updateLastPath(fch.getSelectedFile());
             this.model.newModel();
+            // Refresh the views once, after the whole file is read
+            this.model.beginBatch();
             try {
-                Reader reader = new InputStreamReader(
-                        new FileInputStream(fch.getSelectedFile()), "utf-8");
-                BufferedReader br = new BufferedReader(reader);
-
-                // Read arrays
-                nA = Integer.parseInt(br.readLine());
-                for (i = 0; i < nA; i++) {
-                    this.model.addArray(br.readLine(), Integer.parseInt(br.readLine()));
-                }
-
-                // Read objects (gulp)
-                nO = Integer.parseInt(br.readLine());
-                br.readLine(); // Skip snippet and name information
-                ((NSObject) this.model.getObjectAt(0)).setName(br.readLine());
-                ((NSEntity) this.model.getObjectAt(0)).fromString(br);
-                for (i = 1; i < nO; i++) {
-                    sName = br.readLine();
-                    s = this.libManager.getSnippet(sName);
-                    if (s == null) {
-                        s = this.searchLibAction(sName);
+                if (NssBinaryFormat.isBinary(fch.getSelectedFile())) {
+                    if (!NssBinaryFormat.read(fch.getSelectedFile(), this.model, this.snippetResolver())) {
+                        this.model.newModel();
                     }
-                    if (s == null) {
+                    this.model.updateAllViews(false);
+                    this.model.setDirty(false);
+                    return;
+                }
+                if ((fch.getSelectedFile().length() >= PARALLEL_LOAD_THRESHOLD)
+                        && (Runtime.getRuntime().availableProcessors() > 1)
+                        && !CompressedStreams.isCompressed(fch.getSelectedFile())) {
+                    if (!NssParallelReader.read(fch.getSelectedFile(), this.model, this.snippetResolver())) {
                         this.model.newModel();
-                        this.model.updateAllViews(false);
-                        this.model.setDirty(false);
-                        return;
                     }
-                    if (s.isRelation()) {
-                        or = new NSRelation(s, br.readLine(), null, null);
-                        s.instantiateNSObject(or);
-                        or.fromString(br, this.model);
-                        this.model.addObject(or);
-                    } else {
-                        o = new NSEntity(s, br.readLine(), 0.0, 0.0);
-                        s.instantiateNSObject(o);
-                        o.fromString(br);
-                        this.model.addObject(o);
+                } else {
+                    NssReader reader = new NssReader(
+                            CompressedStreams.openInput(fch.getSelectedFile()), this.snippetResolver());
+                    try {
+                        if (!reader.readInto(this.model)) {
+                            this.model.newModel();
+                        }
+                    } finally {
+                        this.close(reader);
                     }
                 }
                 this.model.updateAllViews(false);
@@ -521,10 +624,29 @@ public class NScript extends JFrame {
             } catch (IOException ioe) {
                 LOG.log(Level.SEVERE, "{0} {1}", new Object[]{
                             Messages.tr("file_write_error"), ioe.toString()});
+            } finally {
+                this.model.endBatch();
+                this.model.getUndoManager().discardAllEdits();
             }
         }
     }
 
+    /**
+     * Returns the resolver used to open models: it looks for the snippets in
+     * the open libraries, then asks the user to locate the missing ones.
+     *
+     * @return the resolver.
+     */
+    private SnippetResolver snippetResolver() {
+        return new SnippetResolver() {
+            @Override
+            public TclSnippet getSnippet(String sName) {
+                TclSnippet s = NScript.this.libManager.getSnippet(sName);
+                return (s != null) ? s : NScript.this.searchLibAction(sName);
+            }
+        };
+    }
+
     /**
      * Open a 'Open Lib' dialog box whenever a model is open that contains an
      * object that is not part of the currently opened library.
@@ -698,6 +820,46 @@ public class NScript extends JFrame {
         }
     }
 
+    /**
+     * Action implementation of the 'Undo' option.
+     */
+    private class UndoAction extends AbstractAction {
+
+        static final long serialVersionUID = 42L;
+
+        UndoAction(String label, Icon icon) {
+            super(label, icon);
+        }
+
+        @Override
+        public void actionPerformed(ActionEvent ae) {
+            NSUndoManager undo = NScript.this.model.getUndoManager();
+            if (undo.canUndo()) {
+                undo.undo();
+            }
+        }
+    }
+
+    /**
+     * Action implementation of the 'Redo' option.
+     */
+    private class RedoAction extends AbstractAction {
+
+        static final long serialVersionUID = 42L;
+
+        RedoAction(String label, Icon icon) {
+            super(label, icon);
+        }
+
+        @Override
+        public void actionPerformed(ActionEvent ae) {
+            NSUndoManager undo = NScript.this.model.getUndoManager();
+            if (undo.canRedo()) {
+                undo.redo();
+            }
+        }
+    }
+
     /**
      * Action implementation of the 'About...' option.
      */
@@ -747,7 +909,7 @@ public class NScript extends JFrame {
 
         @Override
         public void actionPerformed(ActionEvent ae) {
-            NScript.this.saveScript();
+            NScript.this.saveScript(false);
         }
     }
 
@@ -764,19 +926,7 @@ public class NScript extends JFrame {
 
         @Override
         public void actionPerformed(ActionEvent ae) {
-            String fName = NScript.this.saveScript();
-
-            if (fName != null) {
-                try {
-                    Runtime.getRuntime().exec("ns " + fName);
-                } catch (IOException ioe) {
-                    JOptionPane.showMessageDialog(
-                            NScript.this.getContentPane(),
-                            ioe.toString(),
-                            Messages.tr("ns_exec_error"),
-                            JOptionPane.ERROR_MESSAGE);
-                }
-            }
+            NScript.this.saveScript(true);
         }
     }
 
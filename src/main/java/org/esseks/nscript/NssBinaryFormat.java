@@ -0,0 +1,530 @@
+/*
+ * This source file is part of NScript, released under BSD-modern.
+ *
+ * Copyright (C) 2000-2001 Enrique Campos-Nanez
+ * Copyright (C) 2012 Stefano Sanfilippo
+ *
+ * See README.* at top level for copying, contacts, history and notes.
+ */
+package org.esseks.nscript;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads and writes models in the binary model format, a compact alternative
+ * to the text format of NSModel.toString. Names and values are stored once,
+ * in a dictionary, and referred to by number; numbers are variable-length
+ * (LEB128), so that most take a single byte. Files are read through a
+ * MappedByteBuffer, without copying them to the heap first.
+ *
+ * The layout of a file is:
+ * <pre>
+ * magic     'N' 'S' 'S' 'B'
+ * version   1
+ * snippets  count, then for each: name (length and UTF-8 bytes),
+ *           kind (0 entity, 1 relation), number of attributes
+ * strings   count, then for each: length and UTF-8 bytes
+ * arrays    count, then for each: name (string id), size (zigzag)
+ * objects   count, then for each, the environment first:
+ *           snippet id, name (string id), array index + 1,
+ *           number of attributes, then for each attribute the string id
+ *           of its value + 1, or 0 for the default value of the snippet;
+ *           entities: x and y, as 8-byte big-endian IEEE doubles;
+ *           relations: origin and destination, as object id + 1, or 0
+ * </pre>
+ * Objects are numbered from 0 in the order they are stored, so relations
+ * may refer to objects that come after them.
+ */
+public final class NssBinaryFormat extends Object {
+
+    /**
+     * The extension of the files saved in the binary format.
+     */
+    public static final String EXTENSION = ".nssb";
+    /**
+     * The version written by this class. Files of later versions are refused.
+     */
+    public static final int VERSION = 1;
+    /**
+     * The first bytes of every file.
+     */
+    private static final byte[] MAGIC = {'N', 'S', 'S', 'B'};
+    /**
+     * The size of the output buffer, in bytes.
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+    /**
+     * The encoding of the strings.
+     */
+    private static final Charset UTF8 = Charset.forName("utf-8");
+
+    /**
+     * No instances.
+     */
+    private NssBinaryFormat() {
+    }
+
+    /**
+     * Tells if a file is in the binary format, by looking at its first bytes.
+     *
+     * @param f the file.
+     * @return true if the file starts with the magic bytes of the format.
+     * @throws IOException if the file cannot be read.
+     */
+    public static boolean isBinary(File f) throws IOException {
+        InputStream in = new FileInputStream(f);
+        try {
+            byte[] head = new byte[MAGIC.length];
+            int n = 0;
+            while (n < head.length) {
+                int r = in.read(head, n, head.length - n);
+                if (r < 0) {
+                    return false;
+                }
+                n += r;
+            }
+            return Arrays.equals(head, MAGIC);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes a model in the binary format.
+     *
+     * @param w the model.
+     * @param out the destination, which is not closed.
+     * @throws IOException if writing fails.
+     */
+    public static void write(NSWorld w, OutputStream out) throws IOException {
+        NSObject env = w.getEnvironment();
+        NSObject[] stored = w.toObjectArray();
+        NSObject[] objects = new NSObject[stored.length];
+        IdentityHashMap<NSObject, Integer> ids = new IdentityHashMap<NSObject, Integer>(stored.length * 2);
+        objects[0] = env;
+        ids.put(env, 0);
+        int n = 1;
+        for (NSObject o : stored) {
+            if (o != env) {
+                ids.put(o, n);
+                objects[n++] = o;
+            }
+        }
+
+        // The tables come first, so collect what goes in them
+        Strings strings = new Strings();
+        HashMap<String, Integer> snippetIds = new HashMap<String, Integer>();
+        List<TclSnippet> snippets = new ArrayList<TclSnippet>();
+        for (int i = 0; i < w.getArrayCount(); i++) {
+            strings.id(w.getArray(i).getName());
+        }
+        for (NSObject o : objects) {
+            TclSnippet s = o.getSnippet();
+            if (!snippetIds.containsKey(s.getName())) {
+                snippetIds.put(s.getName(), snippets.size());
+                snippets.add(s);
+            }
+            strings.id(o.getName());
+            for (int i = 0; i < o.getAttributeCount(); i++) {
+                if (!isDefault(o, i)) {
+                    strings.id(o.getAttribute(i));
+                }
+            }
+        }
+
+        DataOutputStream d = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+        d.write(MAGIC);
+        writeVarint(d, VERSION);
+        writeVarint(d, snippets.size());
+        for (TclSnippet s : snippets) {
+            writeString(d, s.getName());
+            d.write(s.isRelation() ? 1 : 0);
+            writeVarint(d, s.getAttributeCount());
+        }
+        writeVarint(d, strings.list.size());
+        for (String s : strings.list) {
+            writeString(d, s);
+        }
+        writeVarint(d, w.getArrayCount());
+        for (int i = 0; i < w.getArrayCount(); i++) {
+            NSArray a = w.getArray(i);
+            writeVarint(d, strings.id(a.getName()));
+            writeVarint(d, (a.getSize() << 1) ^ (a.getSize() >> 31));
+        }
+        writeVarint(d, n);
+        for (NSObject o : objects) {
+            writeVarint(d, snippetIds.get(o.getSnippet().getName()));
+            writeVarint(d, strings.id(o.getName()));
+            writeVarint(d, o.getArrayIndex() + 1);
+            writeVarint(d, o.getAttributeCount());
+            for (int i = 0; i < o.getAttributeCount(); i++) {
+                writeVarint(d, isDefault(o, i) ? 0 : (strings.id(o.getAttribute(i)) + 1));
+            }
+            if (o.getSnippet().isRelation()) {
+                NSRelation r = (NSRelation) o;
+                writeVarint(d, endId(ids, r.getFrom()));
+                writeVarint(d, endId(ids, r.getTo()));
+            } else {
+                NSEntity e = (NSEntity) o;
+                d.writeDouble(e.getX());
+                d.writeDouble(e.getY());
+            }
+        }
+        d.flush();
+    }
+
+    /**
+     * Tells if an attribute of an object has the default value of its
+     * snippet, so that it is not written.
+     */
+    private static boolean isDefault(NSObject o, int i) {
+        return (i < o.getSnippet().getAttributeCount())
+                && (o.getAttributeCode(i) == o.getSnippet().getDefaultCode(i));
+    }
+
+    /**
+     * Returns the number written for an end of a relation.
+     */
+    private static int endId(IdentityHashMap<NSObject, Integer> ids, NSObject end) {
+        Integer id = (end == null) ? null : ids.get(end);
+        return (id == null) ? 0 : (id + 1);
+    }
+
+    /**
+     * Writes an unsigned LEB128 number.
+     */
+    private static void writeVarint(DataOutputStream d, int v) throws IOException {
+        while ((v & ~0x7f) != 0) {
+            d.write((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        d.write(v);
+    }
+
+    /**
+     * Writes a string as its length in bytes, followed by its UTF-8 bytes.
+     */
+    private static void writeString(DataOutputStream d, String s) throws IOException {
+        byte[] b = s.getBytes(UTF8);
+        writeVarint(d, b.length);
+        d.write(b);
+    }
+
+    /**
+     * Reads a model in the binary format into a world, which must hold only
+     * its environment. The file is mapped in memory rather than read.
+     *
+     * @param f the file.
+     * @param w the world.
+     * @param lib finds the snippets of the objects.
+     * @return true if the model was read, false if the file is not valid or a
+     * snippet could not be found.
+     * @throws IOException if the file cannot be read.
+     */
+    public static boolean read(File f, NSWorld w, SnippetResolver lib) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                LOG.log(Level.SEVERE, "{0} {1}", new Object[]{
+                            Messages.tr("file_format_error"), f.getPath()});
+                return false;
+            }
+            MappedByteBuffer b = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return read(b, w, lib);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads a model in the binary format into a world, which must hold only
+     * its environment.
+     *
+     * @param b the content of a file, from its current position.
+     * @param w the world.
+     * @param lib finds the snippets of the objects.
+     * @return true if the model was read, false if the content is not valid or
+     * a snippet could not be found.
+     */
+    public static boolean read(ByteBuffer b, NSWorld w, SnippetResolver lib) {
+        try {
+            return new Decoder(b, lib).readInto(w);
+        } catch (BufferUnderflowException e) {
+            LOG.log(Level.SEVERE, "{0} {1}", new Object[]{
+                        Messages.tr("file_format_error"), e.toString()});
+        } catch (IndexOutOfBoundsException e) {
+            LOG.log(Level.SEVERE, "{0} {1}", new Object[]{
+                        Messages.tr("file_format_error"), e.toString()});
+        }
+        return false;
+    }
+
+    /**
+     * Converts a model from the text format to the binary format.
+     *
+     * @param text the model in the text format.
+     * @param out the destination, which is not closed.
+     * @param w an empty world, holding only its environment, where the model
+     * is read.
+     * @param lib finds the snippets of the objects.
+     * @return true if the model was converted, false if it is not valid or a
+     * snippet could not be found.
+     * @throws IOException if reading or writing fails.
+     */
+    public static boolean convert(Reader text, OutputStream out, NSWorld w, SnippetResolver lib)
+            throws IOException {
+        if (!new NssReader(text, lib).readInto(w)) {
+            return false;
+        }
+        write(w, out);
+        return true;
+    }
+
+    /**
+     * Decodes the content of a file.
+     */
+    private static class Decoder {
+
+        final ByteBuffer b;
+        final SnippetResolver lib;
+        String[] snippetNames;
+        boolean[] snippetRelations;
+        TclSnippet[] snippets;
+        String[] strings;
+        /**
+         * The code in ValueDictionary of each string, or null until it is used
+         * as the value of an attribute.
+         */
+        String[] codes;
+
+        Decoder(ByteBuffer inB, SnippetResolver inLib) {
+            this.b = inB;
+            this.lib = inLib;
+        }
+
+        boolean readInto(NSWorld w) {
+            byte[] head = new byte[MAGIC.length];
+            this.b.get(head);
+            if (!Arrays.equals(head, MAGIC)) {
+                LOG.severe(Messages.tr("file_format_error"));
+                return false;
+            }
+            int version = this.varint();
+            if (version > VERSION) {
+                LOG.log(Level.SEVERE, "{0} {1}", new Object[]{
+                            Messages.tr("file_format_error"), version});
+                return false;
+            }
+
+            int n = this.count();
+            this.snippetNames = new String[n];
+            this.snippetRelations = new boolean[n];
+            this.snippets = new TclSnippet[n];
+            for (int i = 0; i < n; i++) {
+                this.snippetNames[i] = this.string();
+                this.snippetRelations[i] = (this.b.get() != 0);
+                this.varint();
+            }
+            n = this.count();
+            this.strings = new String[n];
+            this.codes = new String[n];
+            for (int i = 0; i < n; i++) {
+                this.strings[i] = this.string();
+            }
+            n = this.count();
+            for (int i = 0; i < n; i++) {
+                String name = this.strings[this.varint()];
+                int zigzag = this.varint();
+                w.addArray(name, (zigzag >>> 1) ^ -(zigzag & 1));
+            }
+
+            n = this.count();
+            if (n == 0) {
+                return true;
+            }
+            NSObject[] objects = new NSObject[n];
+            // Ends of the relations, as object id + 1, linked at the end
+            int[] ends = new int[2 * n];
+            this.readEnvironment(w.getEnvironment());
+            objects[0] = w.getEnvironment();
+            for (int i = 1; i < n; i++) {
+                int snippet = this.varint();
+                TclSnippet s = this.snippet(snippet);
+                if (s == null) {
+                    return false;
+                }
+                String name = this.strings[this.varint()];
+                int arrayIndex = this.varint() - 1;
+                NSObject o;
+                if (this.snippetRelations[snippet]) {
+                    o = new NSRelation(s, name, null, null);
+                    s.instantiateNSObject(o);
+                    this.readAttributes(o);
+                    ends[2 * i] = this.varint();
+                    ends[2 * i + 1] = this.varint();
+                } else {
+                    o = new NSEntity(s, name, 0.0, 0.0);
+                    s.instantiateNSObject(o);
+                    this.readAttributes(o);
+                    ((NSEntity) o).moveTo(this.b.getDouble(), this.b.getDouble());
+                }
+                o.setArrayIndex(arrayIndex);
+                objects[i] = o;
+            }
+            for (int i = 1; i < n; i++) {
+                if (objects[i] instanceof NSRelation) {
+                    ((NSRelation) objects[i]).link(end(objects, ends[2 * i]), end(objects, ends[2 * i + 1]));
+                }
+            }
+            w.addObjects(Arrays.asList(objects).subList(1, n));
+            return true;
+        }
+
+        /**
+         * Reads the record of the environment into the existing one.
+         */
+        void readEnvironment(NSObject env) {
+            int snippet = this.varint();
+            String name = this.strings[this.varint()];
+            if (!name.equals(env.getName())) {
+                env.setName(name);
+            }
+            env.setArrayIndex(this.varint() - 1);
+            int count = this.varint();
+            for (int i = 0; i < count; i++) {
+                int v = this.varint();
+                env.setAttribute(i, (v == 0) ? env.getSnippet().getDefaultValue(i) : this.strings[v - 1]);
+            }
+            if (this.snippetRelations[snippet]) {
+                this.varint();
+                this.varint();
+            } else {
+                double x = this.b.getDouble();
+                double y = this.b.getDouble();
+                if (env instanceof NSEntity) {
+                    ((NSEntity) env).moveTo(x, y);
+                }
+            }
+        }
+
+        /**
+         * Reads the attributes of an object not yet part of a world.
+         */
+        void readAttributes(NSObject o) {
+            int count = this.varint();
+            for (int i = 0; i < count; i++) {
+                int v = this.varint();
+                if (v != 0) {
+                    String code = this.codes[v - 1];
+                    if (code == null) {
+                        code = ValueDictionary.encode(this.strings[v - 1]);
+                        this.codes[v - 1] = code;
+                    }
+                    o.loadAttributeCode(i, code);
+                }
+            }
+        }
+
+        /**
+         * Returns a snippet of the table, finding it the first time.
+         *
+         * @return the snippet, or null if it cannot be found.
+         */
+        TclSnippet snippet(int i) {
+            TclSnippet s = this.snippets[i];
+            if (s == null) {
+                s = this.lib.getSnippet(this.snippetNames[i]);
+                if ((s == null) || (s.isRelation() != this.snippetRelations[i])) {
+                    LOG.log(Level.SEVERE, "{0} {1}", new Object[]{
+                                Messages.tr("library_not_found"), this.snippetNames[i]});
+                    return null;
+                }
+                this.snippets[i] = s;
+            }
+            return s;
+        }
+
+        /**
+         * Returns the end of a relation.
+         */
+        NSEntity end(NSObject[] objects, int id) {
+            return (id == 0) ? null : NssReader.asEntity(objects[id - 1]);
+        }
+
+        int varint() {
+            int v = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                byte x = this.b.get();
+                v |= (x & 0x7f) << shift;
+                if (x >= 0) {
+                    return v;
+                }
+            }
+            throw new IndexOutOfBoundsException("varint");
+        }
+
+        /**
+         * Reads the number of items of a table, each taking at least a byte.
+         */
+        int count() {
+            int n = this.varint();
+            if ((n < 0) || (n > this.b.remaining())) {
+                throw new BufferUnderflowException();
+            }
+            return n;
+        }
+
+        String string() {
+            int length = this.count();
+            if (this.b.hasArray()) {
+                int start = this.b.arrayOffset() + this.b.position();
+                this.b.position(this.b.position() + length);
+                return new String(this.b.array(), start, length, UTF8);
+            }
+            byte[] bytes = new byte[length];
+            this.b.get(bytes);
+            return new String(bytes, UTF8);
+        }
+    }
+
+    /**
+     * The strings of a file being written, numbered in order of appearance.
+     */
+    private static class Strings {
+
+        final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+        final List<String> list = new ArrayList<String>();
+
+        int id(String s) {
+            Integer id = this.ids.get(s);
+            if (id == null) {
+                id = this.list.size();
+                this.ids.put(s, id);
+                this.list.add(s);
+            }
+            return id;
+        }
+    }
+    private static final Logger LOG = Logger.getLogger(NssBinaryFormat.class.getName());
+}
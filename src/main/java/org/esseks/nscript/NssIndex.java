@@ -0,0 +1,658 @@
+/*
+ * This source file is part of NScript, released under BSD-modern.
+ *
+ * Copyright (C) 2000-2001 Enrique Campos-Nanez
+ * Copyright (C) 2012 Stefano Sanfilippo
+ *
+ * See README.* at top level for copying, contacts, history and notes.
+ */
+package org.esseks.nscript;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Opens a model in the text format without reading all of it: the file is
+ * scanned once, to note where the record of each object starts, its snippet,
+ * its position and the ends of the relations. The objects are read from the
+ * file only when they are asked for, e.g. those in a region of the canvas or
+ * the nodes and the links among them, so that a part of a huge model can be
+ * edited with little memory.
+ *
+ * Objects read but not added to the world are kept in a cache of bounded
+ * size, and dropped when it is full: they are read again from the file if
+ * needed, so they should be treated as read-only. Objects added to the world
+ * are never dropped, so that a relation always links the same objects that
+ * are in the world.
+ *
+ * The file must not change while it is indexed. Compressed and binary files
+ * cannot be indexed: they are opened in full.
+ */
+public final class NssIndex extends Object implements Closeable {
+
+    /**
+     * The default number of objects kept in the cache.
+     */
+    public static final int DEFAULT_CACHE_SIZE = 4096;
+    /**
+     * The size of the read buffer.
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+    /**
+     * The size of the buffer used to read a single record.
+     */
+    private static final int RECORD_BUFFER_SIZE = 1 << 10;
+    /**
+     * The largest number of records the tables are sized for in advance.
+     */
+    private static final int MAX_CAPACITY = 1 << 20;
+    /**
+     * The encoding of the files saved by NScript.
+     */
+    private static final Charset UTF8 = Charset.forName("utf-8");
+
+    /**
+     * The world the objects are added to.
+     */
+    private final NSWorld world;
+    /**
+     * The file, open for reading the records.
+     */
+    private final RandomAccessFile file;
+    /**
+     * The snippets of the objects, and the number of their records. Record 0
+     * is the environment, which is read when the file is indexed.
+     */
+    private final List<TclSnippet> snippets = new ArrayList<TclSnippet>();
+    private int count;
+    /**
+     * For each record: where it starts in the file, the position of its
+     * snippet in snippets, and the position of entities.
+     */
+    private long[] offsets;
+    private int[] snippetOf;
+    private double[] xs;
+    private double[] ys;
+    /**
+     * For each record of a relation, the records of its ends, or -1.
+     */
+    private int[] froms;
+    private int[] tos;
+    /**
+     * The record of each name, the first one as in NSWorld.getObject.
+     */
+    private final HashMap<String, Integer> names;
+    /**
+     * Objects read from the file and added to the world, by record.
+     */
+    private final HashMap<Integer, NSObject> attached = new HashMap<Integer, NSObject>();
+    /**
+     * Objects read from the file but not added to the world, least recently
+     * used first.
+     */
+    private final LinkedHashMap<Integer, NSObject> cache =
+            new LinkedHashMap<Integer, NSObject>(16, 0.75f, true);
+    private int cacheSize = DEFAULT_CACHE_SIZE;
+
+    private NssIndex(NSWorld inWorld, RandomAccessFile inFile, int capacity) {
+        this.world = inWorld;
+        this.file = inFile;
+        this.offsets = new long[capacity];
+        this.snippetOf = new int[capacity];
+        this.xs = new double[capacity];
+        this.ys = new double[capacity];
+        this.froms = new int[capacity];
+        this.tos = new int[capacity];
+        this.names = new HashMap<String, Integer>(capacity * 2);
+    }
+
+    /**
+     * Indexes a model, and reads its arrays and its environment into a world,
+     * which must hold only its environment. No other object is added.
+     *
+     * @param f the file of the model, in the text format.
+     * @param w the world.
+     * @param lib finds the snippets of the objects.
+     * @return the index, or null if the file cannot be indexed or a snippet
+     * could not be found.
+     * @throws IOException if the file cannot be read.
+     */
+    public static NssIndex open(File f, NSWorld w, SnippetResolver lib) throws IOException {
+        if (CompressedStreams.isCompressed(f) || NssBinaryFormat.isBinary(f)) {
+            LOG.log(Level.SEVERE, "{0} {1}", new Object[]{
+                        Messages.tr("index_format_error"), f.getPath()});
+            return null;
+        }
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        LineInput in = new LineInput(new FileInputStream(f), 0, BUFFER_SIZE);
+        boolean indexed = false;
+        try {
+            int nA = in.readCount();
+            for (int i = 0; i < nA; i++) {
+                w.addArray(in.readLine(), in.readInt());
+            }
+            int nO = in.readCount();
+            NssIndex index = new NssIndex(w, raf, Math.max(1, Math.min(nO, MAX_CAPACITY)));
+            indexed = (nO == 0) || index.scan(in, nO, lib);
+            return indexed ? index : null;
+        } catch (EOFException e) {
+            LOG.log(Level.SEVERE, "{0} {1}", new Object[]{
+                        Messages.tr("file_format_error"), in.getLineNumber()});
+            return null;
+        } catch (NumberFormatException e) {
+            LOG.log(Level.SEVERE, "{0} {1}", new Object[]{
+                        Messages.tr("file_format_error"), in.getLineNumber()});
+            return null;
+        } finally {
+            in.close();
+            if (!indexed) {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * Reads the environment, then notes the records of the other objects.
+     */
+    private boolean scan(LineInput in, int nO, SnippetResolver lib) throws IOException {
+        NSObject env = this.world.getEnvironment();
+        this.snippets.add(env.getSnippet());
+        this.add(in.getPosition(), 0);
+        in.readLine(); // Skip snippet and name information
+        env.setName(in.readLine());
+        NssIndex.readAttributes(in, env);
+        if (env instanceof NSEntity) {
+            ((NSEntity) env).moveTo(in.readDouble(), in.readDouble());
+        }
+        this.names.put(env.getName(), 0);
+
+        HashMap<String, Integer> snippetIds = new HashMap<String, Integer>();
+        List<String> ends = new ArrayList<String>();
+        for (int i = 1; i < nO; i++) {
+            long offset = in.getPosition();
+            String sName = in.readLine();
+            Integer s = snippetIds.get(sName);
+            if (s == null) {
+                TclSnippet snippet = lib.getSnippet(sName);
+                if (snippet == null) {
+                    LOG.log(Level.SEVERE, "{0} {1}", new Object[]{
+                                Messages.tr("library_not_found"), sName});
+                    return false;
+                }
+                s = this.snippets.size();
+                this.snippets.add(snippet);
+                snippetIds.put(sName, s);
+            }
+            int id = this.add(offset, s);
+            String name = in.readLine();
+            if (!this.names.containsKey(name)) {
+                this.names.put(name, id);
+            }
+            in.readInt(); // Array index
+            for (int a = this.snippets.get(s).getAttributeCount(); a > 0; a--) {
+                in.skipLine();
+            }
+            if (this.snippets.get(s).isRelation()) {
+                ends.add(in.readLine());
+                ends.add(in.readLine());
+                this.froms[id] = ends.size() - 2;
+                this.tos[id] = ends.size() - 1;
+            } else {
+                this.xs[id] = in.readDouble();
+                this.ys[id] = in.readDouble();
+            }
+        }
+        // Now that all the names are known, turn the ends into records
+        for (int id = 1; id < this.count; id++) {
+            if (this.snippets.get(this.snippetOf[id]).isRelation()) {
+                this.froms[id] = this.endOf(ends.get(this.froms[id]));
+                this.tos[id] = this.endOf(ends.get(this.tos[id]));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the record of the end of a relation.
+     *
+     * @return the record, or -1 if no entity has the name.
+     */
+    private int endOf(String name) {
+        Integer id = this.names.get(name);
+        if ((id == null) || this.snippets.get(this.snippetOf[id]).isRelation()) {
+            return -1;
+        }
+        return id;
+    }
+
+    /**
+     * Notes a record, growing the tables if needed.
+     *
+     * @return the number of the record.
+     */
+    private int add(long offset, int snippet) {
+        if (this.count == this.offsets.length) {
+            int n = this.count * 2;
+            this.offsets = Arrays.copyOf(this.offsets, n);
+            this.snippetOf = Arrays.copyOf(this.snippetOf, n);
+            this.xs = Arrays.copyOf(this.xs, n);
+            this.ys = Arrays.copyOf(this.ys, n);
+            this.froms = Arrays.copyOf(this.froms, n);
+            this.tos = Arrays.copyOf(this.tos, n);
+        }
+        this.offsets[this.count] = offset;
+        this.snippetOf[this.count] = snippet;
+        this.froms[this.count] = -1;
+        this.tos[this.count] = -1;
+        return this.count++;
+    }
+
+    /**
+     * Returns the number of objects in the file, including the environment.
+     *
+     * @return the number of objects.
+     */
+    public int getObjectsCount() {
+        return this.count;
+    }
+
+    /**
+     * Returns the record of an object given its name.
+     *
+     * @param name the name of the object.
+     * @return the record, or -1 if no object has the name.
+     */
+    public int indexOf(String name) {
+        Integer id = this.names.get(name);
+        return (id == null) ? -1 : id;
+    }
+
+    /**
+     * Returns the snippet of an object, without reading it.
+     *
+     * @param id the record of the object.
+     * @return the snippet.
+     */
+    public TclSnippet getSnippet(int id) {
+        return this.snippets.get(this.snippetOf[id]);
+    }
+
+    /**
+     * Returns the x position of an entity, without reading it.
+     *
+     * @param id the record of the entity.
+     * @return the position, in the [0,1] coordinates of the model; 0 for
+     * relations.
+     */
+    public double getX(int id) {
+        return this.xs[id];
+    }
+
+    /**
+     * Returns the y position of an entity, without reading it.
+     *
+     * @param id the record of the entity.
+     * @return the position, in the [0,1] coordinates of the model; 0 for
+     * relations.
+     */
+    public double getY(int id) {
+        return this.ys[id];
+    }
+
+    /**
+     * Returns the origin of a relation, without reading it.
+     *
+     * @param id the record of the relation.
+     * @return the record of the origin, or -1 if it is not an entity of the
+     * model.
+     */
+    public int getFrom(int id) {
+        return this.froms[id];
+    }
+
+    /**
+     * Returns the destination of a relation, without reading it.
+     *
+     * @param id the record of the relation.
+     * @return the record of the destination, or -1 if it is not an entity of
+     * the model.
+     */
+    public int getTo(int id) {
+        return this.tos[id];
+    }
+
+    /**
+     * Tells if an object has been added to the world.
+     *
+     * @param id the record of the object.
+     * @return true if the object is in the world.
+     */
+    public boolean isLoaded(int id) {
+        return (id == 0) || this.attached.containsKey(id);
+    }
+
+    /**
+     * Sets how many objects read but not added to the world are kept.
+     *
+     * @param inCacheSize the number of objects, at least 0.
+     */
+    public synchronized void setCacheSize(int inCacheSize) {
+        this.cacheSize = Math.max(0, inCacheSize);
+        this.trimCache();
+    }
+
+    /**
+     * Returns an object, reading it from the file if needed. Reading a
+     * relation reads its ends as well.
+     *
+     * @param id the record of the object.
+     * @return the object: the one in the world, if it has been added.
+     * @throws IOException if the file cannot be read, or has changed.
+     */
+    public synchronized NSObject getObject(int id) throws IOException {
+        if (id == 0) {
+            return this.world.getEnvironment();
+        }
+        NSObject o = this.attached.get(id);
+        if (o == null) {
+            o = this.cache.get(id);
+        }
+        if (o == null) {
+            o = this.read(id);
+            this.cache.put(id, o);
+            this.trimCache();
+        }
+        return o;
+    }
+
+    /**
+     * Adds the entities in a region of the canvas to the world, with the
+     * relations among them and those already in the world.
+     *
+     * @param x0 the left side of the region, in the [0,1] coordinates of the
+     * model.
+     * @param y0 the top side of the region.
+     * @param x1 the right side of the region.
+     * @param y1 the bottom side of the region.
+     * @return the number of objects added.
+     * @throws IOException if the file cannot be read, or has changed.
+     */
+    public synchronized int loadRegion(double x0, double y0, double x1, double y1) throws IOException {
+        boolean[] entities = new boolean[this.count];
+        for (int id = 1; id < this.count; id++) {
+            entities[id] = !this.getSnippet(id).isRelation()
+                    && (this.xs[id] >= x0) && (this.xs[id] <= x1)
+                    && (this.ys[id] >= y0) && (this.ys[id] <= y1);
+        }
+        return this.load(entities);
+    }
+
+    /**
+     * Adds the nodes and the relations among them to the world: the topology
+     * of the network, without agents, applications and timers.
+     *
+     * @return the number of objects added.
+     * @throws IOException if the file cannot be read, or has changed.
+     */
+    public synchronized int loadTopology() throws IOException {
+        boolean[] entities = new boolean[this.count];
+        for (int id = 1; id < this.count; id++) {
+            entities[id] = !this.getSnippet(id).isRelation()
+                    && (this.getSnippet(id).getIcon() == NSEntity.NODE);
+        }
+        return this.load(entities);
+    }
+
+    /**
+     * Adds all the objects to the world, as if the model were read in full.
+     *
+     * @return the number of objects added.
+     * @throws IOException if the file cannot be read, or has changed.
+     */
+    public synchronized int loadAll() throws IOException {
+        boolean[] entities = new boolean[this.count];
+        for (int id = 1; id < this.count; id++) {
+            entities[id] = !this.getSnippet(id).isRelation();
+        }
+        return this.load(entities);
+    }
+
+    /**
+     * Adds some entities to the world, with every relation between two
+     * entities in the world, in the order of the file.
+     *
+     * @param entities tells, for each record, if the entity is wanted.
+     */
+    private int load(boolean[] entities) throws IOException {
+        List<Integer> ids = new ArrayList<Integer>();
+        // The entities first, so that the relations link the ones attached
+        for (int id = 1; id < this.count; id++) {
+            if (entities[id] && !this.attached.containsKey(id)) {
+                this.attach(id, this.getObject(id));
+                ids.add(id);
+            }
+        }
+        for (int id = 1; id < this.count; id++) {
+            if (this.getSnippet(id).isRelation() && !this.attached.containsKey(id)
+                    && this.isLoaded(this.froms[id]) && this.isLoaded(this.tos[id])) {
+                NSRelation r = (NSRelation) this.getObject(id);
+                if ((r.getFrom() != this.getObject(this.froms[id]))
+                        || (r.getTo() != this.getObject(this.tos[id]))) {
+                    // Read while its ends were copies dropped from the cache
+                    this.cache.remove(id);
+                    r = (NSRelation) this.getObject(id);
+                }
+                this.attach(id, r);
+                ids.add(id);
+            }
+        }
+        Collections.sort(ids);
+        List<NSObject> added = new ArrayList<NSObject>(ids.size());
+        for (Integer id : ids) {
+            added.add(this.attached.get(id));
+        }
+        this.world.addObjects(added);
+        return added.size();
+    }
+
+    private void attach(int id, NSObject o) {
+        this.cache.remove(id);
+        this.attached.put(id, o);
+    }
+
+    /**
+     * Drops the objects used least recently, until the cache fits its size.
+     */
+    private void trimCache() {
+        Iterator<Integer> it = this.cache.keySet().iterator();
+        while ((this.cache.size() > this.cacheSize) && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * Reads the record of an object from the file.
+     */
+    private NSObject read(int id) throws IOException {
+        TclSnippet s = this.getSnippet(id);
+        this.file.seek(this.offsets[id]);
+        LineInput in = new LineInput(Channels.newInputStream(this.file.getChannel()),
+                this.offsets[id], RECORD_BUFFER_SIZE);
+        try {
+            in.readLine(); // Snippet, known from the index
+            NSObject o;
+            if (s.isRelation()) {
+                NSRelation r = new NSRelation(s, in.readLine(), null, null);
+                s.instantiateNSObject(r);
+                NssIndex.readAttributes(in, r);
+                r.link(this.endObject(this.froms[id]), this.endObject(this.tos[id]));
+                o = r;
+            } else {
+                NSEntity e = new NSEntity(s, in.readLine(), 0.0, 0.0);
+                s.instantiateNSObject(e);
+                NssIndex.readAttributes(in, e);
+                e.moveTo(this.xs[id], this.ys[id]);
+                o = e;
+            }
+            return o;
+        } catch (NumberFormatException e) {
+            throw new IOException(Messages.tr("file_format_error") + " " + this.offsets[id]);
+        }
+    }
+
+    private NSEntity endObject(int end) throws IOException {
+        return (end < 0) ? null : NssReader.asEntity(this.getObject(end));
+    }
+
+    private static void readAttributes(LineInput in, NSObject o) throws IOException {
+        o.setArrayIndex(in.readInt());
+        for (int i = 0; i < o.getAttributeCount(); i++) {
+            o.setAttribute(i, in.readLine());
+        }
+    }
+
+    /**
+     * Closes the file. The objects added to the world stay there.
+     *
+     * @throws IOException if closing the file fails.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        this.cache.clear();
+        this.file.close();
+    }
+
+    /**
+     * Reads the lines of a file, keeping track of the position in bytes of
+     * the next one. Lines end with '\n', optionally preceded by '\r'.
+     */
+    private static class LineInput {
+
+        private final InputStream in;
+        private final byte[] buffer;
+        private int start;
+        private int end;
+        /**
+         * The position in the file of buffer[0].
+         */
+        private long base;
+        private int lineNumber;
+        private byte[] line = new byte[256];
+
+        LineInput(InputStream inStream, long position, int size) {
+            this.in = inStream;
+            this.buffer = new byte[size];
+            this.base = position;
+        }
+
+        long getPosition() {
+            return this.base + this.start;
+        }
+
+        int getLineNumber() {
+            return this.lineNumber;
+        }
+
+        /**
+         * Reads a line, which must be there.
+         *
+         * @throws EOFException if the stream ends.
+         */
+        String readLine() throws IOException {
+            int n = 0;
+            while (true) {
+                if ((this.start == this.end) && !this.fill()) {
+                    if (n == 0) {
+                        throw new EOFException();
+                    }
+                    break;
+                }
+                byte b = this.buffer[this.start++];
+                if (b == '\n') {
+                    break;
+                }
+                if (n == this.line.length) {
+                    this.line = Arrays.copyOf(this.line, n * 2);
+                }
+                this.line[n++] = b;
+            }
+            this.lineNumber++;
+            if ((n > 0) && (this.line[n - 1] == '\r')) {
+                n--;
+            }
+            return new String(this.line, 0, n, UTF8);
+        }
+
+        /**
+         * Skips a line, which must be there, without decoding it.
+         *
+         * @throws EOFException if the stream ends.
+         */
+        void skipLine() throws IOException {
+            boolean empty = true;
+            while (true) {
+                if ((this.start == this.end) && !this.fill()) {
+                    if (empty) {
+                        throw new EOFException();
+                    }
+                    break;
+                }
+                empty = false;
+                if (this.buffer[this.start++] == '\n') {
+                    break;
+                }
+            }
+            this.lineNumber++;
+        }
+
+        int readInt() throws IOException {
+            return Integer.parseInt(this.readLine().trim());
+        }
+
+        int readCount() throws IOException {
+            int n = this.readInt();
+            if (n < 0) {
+                throw new NumberFormatException(Integer.toString(n));
+            }
+            return n;
+        }
+
+        double readDouble() throws IOException {
+            return Double.parseDouble(this.readLine().trim());
+        }
+
+        private boolean fill() throws IOException {
+            this.base += this.end;
+            this.start = 0;
+            this.end = 0;
+            int n = this.in.read(this.buffer);
+            if (n <= 0) {
+                return false;
+            }
+            this.end = n;
+            return true;
+        }
+
+        void close() throws IOException {
+            this.in.close();
+        }
+    }
+    private static final Logger LOG = Logger.getLogger(NssIndex.class.getName());
+}
@@ -0,0 +1,394 @@
+/*
+ * This source file is part of NScript, released under BSD-modern.
+ *
+ * Copyright (C) 2000-2001 Enrique Campos-Nanez
+ * Copyright (C) 2012 Stefano Sanfilippo
+ *
+ * See README.* at top level for copying, contacts, history and notes.
+ */
+package org.esseks.nscript;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads a model in the text format using all the processors. The file is
+ * first scanned to find where each record starts, which only requires the
+ * snippet of each record (to know how many lines it takes); the records are
+ * then parsed in parallel, leaving the ends of the relations as names. At
+ * last the relations are linked, and the objects added to the world, in the
+ * order of the file: the model is the same that NssReader reads.
+ *
+ * The snippets are all found while scanning, on the calling thread, so that
+ * the resolver may ask the user for the missing libraries.
+ */
+public final class NssParallelReader extends Object {
+
+    /**
+     * Number of records parsed by a single task.
+     */
+    private static final int PARALLEL_BLOCK = 2048;
+    /**
+     * The largest number of records the tables are sized for in advance.
+     */
+    private static final int MAX_CAPACITY = 1 << 20;
+    /**
+     * The encoding of the files saved by NScript.
+     */
+    private static final Charset UTF8 = Charset.forName("utf-8");
+    /**
+     * The pool used to parse the records, created on first use.
+     */
+    private static ForkJoinPool parsePool;
+
+    private NssParallelReader() {
+    }
+
+    /**
+     * Reads a model from a file into a world, which must hold only its
+     * environment. The file is mapped in memory rather than read; files too
+     * large to be mapped at once are read by NssReader.
+     *
+     * @param f the file, in the text format and not compressed.
+     * @param w the world.
+     * @param lib finds the snippets of the objects.
+     * @return true if the model was read, false if it is not valid or a
+     * snippet could not be found.
+     * @throws IOException if the file cannot be read.
+     */
+    public static boolean read(File f, NSWorld w, SnippetResolver lib) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                return new NssReader(Channels.newInputStream(channel), lib).readInto(w);
+            }
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), w, lib,
+                    NssParallelReader.getParsePool());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads a model into a world, which must hold only its environment.
+     *
+     * @param b the content of a file, from its current position.
+     * @param w the world.
+     * @param lib finds the snippets of the objects.
+     * @param pool the threads that parse the records.
+     * @return true if the model was read, false if it is not valid or a
+     * snippet could not be found.
+     */
+    static boolean read(ByteBuffer b, NSWorld w, SnippetResolver lib, ForkJoinPool pool) {
+        Lines in = new Lines(b);
+        try {
+            int nA = in.readCount();
+            for (int i = 0; i < nA; i++) {
+                w.addArray(in.readLine(), in.readInt());
+            }
+            int nO = in.readCount();
+            if (nO == 0) {
+                return true;
+            }
+            in.readLine(); // Skip snippet and name information
+            NSObject env = w.getEnvironment();
+            env.setName(in.readLine());
+            env.setArrayIndex(in.readInt());
+            for (int i = 0; i < env.getAttributeCount(); i++) {
+                env.setAttribute(i, in.readLine());
+            }
+            if (env instanceof NSEntity) {
+                ((NSEntity) env).moveTo(in.readDouble(), in.readDouble());
+            }
+
+            // Find the records
+            int capacity = Math.min(nO, MAX_CAPACITY);
+            int[] starts = new int[capacity];
+            // The lines before each block of PARALLEL_BLOCK records
+            int[] lines = new int[capacity / PARALLEL_BLOCK + 1];
+            TclSnippet[] snippets = new TclSnippet[capacity];
+            HashMap<String, TclSnippet> resolved = new HashMap<String, TclSnippet>();
+            int n = 0;
+            for (int i = 1; i < nO; i++) {
+                if (n == starts.length) {
+                    starts = Arrays.copyOf(starts, n * 2);
+                    snippets = Arrays.copyOf(snippets, n * 2);
+                    lines = Arrays.copyOf(lines, n * 2 / PARALLEL_BLOCK + 1);
+                }
+                if (n % PARALLEL_BLOCK == 0) {
+                    lines[n / PARALLEL_BLOCK] = in.getLineNumber();
+                }
+                starts[n] = in.getPosition();
+                String sName = in.readLine();
+                TclSnippet s = resolved.get(sName);
+                if (s == null) {
+                    s = lib.getSnippet(sName);
+                    if (s == null) {
+                        LOG.log(Level.SEVERE, "{0} {1}", new Object[]{
+                                    Messages.tr("library_not_found"), sName});
+                        return false;
+                    }
+                    resolved.put(sName, s);
+                }
+                snippets[n++] = s;
+                // Name, array index, attributes, and coordinates or ends
+                in.skipLines(s.getAttributeCount() + 4);
+            }
+
+            // Parse them
+            NSObject[] objects = new NSObject[n];
+            String[] ends = new String[2 * n];
+            pool.invoke(new ParseRecords(b, starts, lines, in.getPosition(), snippets, objects, ends, 0, n));
+
+            // Link the relations, as NssReader does
+            HashMap<String, NSObject> names = new HashMap<String, NSObject>(n * 2);
+            names.put(env.getName(), env);
+            for (NSObject o : objects) {
+                if (!names.containsKey(o.getName())) {
+                    names.put(o.getName(), o);
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                if (objects[i] instanceof NSRelation) {
+                    ((NSRelation) objects[i]).link(NssReader.asEntity(names.get(ends[2 * i])),
+                            NssReader.asEntity(names.get(ends[2 * i + 1])));
+                }
+            }
+            w.addObjects(Arrays.asList(objects));
+            return true;
+        } catch (EOFException e) {
+            LOG.log(Level.SEVERE, "{0} {1}", new Object[]{
+                        Messages.tr("file_format_error"), in.getLineNumber()});
+        } catch (NumberFormatException e) {
+            // Also thrown by the tasks, through invoke
+            LOG.log(Level.SEVERE, "{0} {1}", new Object[]{
+                        Messages.tr("file_format_error"), e.getMessage()});
+        } catch (TruncatedRecordException e) {
+            LOG.log(Level.SEVERE, "{0} {1}", new Object[]{
+                        Messages.tr("file_format_error"), e.getMessage()});
+        }
+        return false;
+    }
+
+    /**
+     * Returns the pool used to parse the records, creating it if needed.
+     *
+     * @return the pool.
+     */
+    private static synchronized ForkJoinPool getParsePool() {
+        if (parsePool == null) {
+            parsePool = new ForkJoinPool();
+        }
+        return parsePool;
+    }
+
+    /**
+     * Parses a range of records, splitting it in blocks of PARALLEL_BLOCK
+     * records. Each record is stored at its index in objects; the ends of a
+     * relation at twice its index in ends.
+     */
+    private static class ParseRecords extends RecursiveAction {
+
+        static final long serialVersionUID = 42L;
+        /**
+         * The content of the file, shared by the tasks: only its absolute
+         * methods are used.
+         */
+        private final ByteBuffer b;
+        /**
+         * Where each record starts, and where the last one ends.
+         */
+        private final int[] starts;
+        /**
+         * The number of the line before each block, for error messages.
+         */
+        private final int[] lines;
+        private final int end;
+        /**
+         * The snippet of each record.
+         */
+        private final TclSnippet[] snippets;
+        /**
+         * Receive the objects, and the names of the ends of the relations.
+         */
+        private final NSObject[] objects;
+        private final String[] ends;
+        /**
+         * The range of records to parse.
+         */
+        private final int lo, hi;
+
+        ParseRecords(ByteBuffer inB, int[] inStarts, int[] inLines, int inEnd, TclSnippet[] inSnippets,
+                NSObject[] inObjects, String[] inEnds, int inLo, int inHi) {
+            this.b = inB;
+            this.starts = inStarts;
+            this.lines = inLines;
+            this.end = inEnd;
+            this.snippets = inSnippets;
+            this.objects = inObjects;
+            this.ends = inEnds;
+            this.lo = inLo;
+            this.hi = inHi;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.hi - this.lo > PARALLEL_BLOCK) {
+                int blocksInRange = (this.hi - this.lo + PARALLEL_BLOCK - 1) / PARALLEL_BLOCK;
+                int mid = this.lo + (blocksInRange / 2) * PARALLEL_BLOCK;
+                invokeAll(new ParseRecords(this.b, this.starts, this.lines, this.end, this.snippets,
+                        this.objects, this.ends, this.lo, mid),
+                        new ParseRecords(this.b, this.starts, this.lines, this.end, this.snippets,
+                        this.objects, this.ends, mid, this.hi));
+                return;
+            }
+            int from = this.starts[this.lo];
+            int to = (this.hi < this.objects.length) ? this.starts[this.hi] : this.end;
+            byte[] block = new byte[to - from];
+            ByteBuffer d = this.b.duplicate();
+            d.position(from);
+            d.get(block);
+            Lines in = new Lines(ByteBuffer.wrap(block));
+            // Most values repeat: look them up here rather than in the
+            // dictionary, which would make the tasks wait for each other
+            HashMap<String, String> codes = new HashMap<String, String>();
+            try {
+                for (int i = this.lo; i < this.hi; i++) {
+                    TclSnippet s = this.snippets[i];
+                    in.readLine(); // Snippet, already known
+                    NSObject o;
+                    if (s.isRelation()) {
+                        o = new NSRelation(s, in.readLine(), null, null);
+                    } else {
+                        o = new NSEntity(s, in.readLine(), 0.0, 0.0);
+                    }
+                    s.instantiateNSObject(o);
+                    o.setArrayIndex(in.readInt());
+                    for (int a = 0; a < o.getAttributeCount(); a++) {
+                        String value = in.readLine();
+                        String code = codes.get(value);
+                        if (code == null) {
+                            code = ValueDictionary.encode(value);
+                            codes.put(value, code);
+                        }
+                        o.loadAttributeCode(a, code);
+                    }
+                    if (s.isRelation()) {
+                        this.ends[2 * i] = in.readLine();
+                        this.ends[2 * i + 1] = in.readLine();
+                    } else {
+                        ((NSEntity) o).moveTo(in.readDouble(), in.readDouble());
+                    }
+                    this.objects[i] = o;
+                }
+            } catch (EOFException e) {
+                // The record has fewer lines than the scan counted
+                throw new TruncatedRecordException(this.lines[this.lo / PARALLEL_BLOCK] + in.getLineNumber());
+            }
+        }
+    }
+
+    /**
+     * Thrown by a task that reaches the end of its block inside a record, to
+     * be reported by read as a format error.
+     */
+    private static class TruncatedRecordException extends RuntimeException {
+
+        static final long serialVersionUID = 42L;
+
+        TruncatedRecordException(int line) {
+            super(Integer.toString(line));
+        }
+    }
+
+    /**
+     * Reads the lines of a buffer, by absolute position. Lines end with '\n',
+     * optionally preceded by '\r'; the last one may end with the buffer.
+     */
+    private static class Lines {
+
+        private final ByteBuffer b;
+        private final int limit;
+        private int position;
+        private int lineNumber;
+        private byte[] line = new byte[256];
+
+        Lines(ByteBuffer inB) {
+            this.b = inB;
+            this.position = inB.position();
+            this.limit = inB.limit();
+        }
+
+        int getPosition() {
+            return this.position;
+        }
+
+        int getLineNumber() {
+            return this.lineNumber;
+        }
+
+        String readLine() throws EOFException {
+            if (this.position == this.limit) {
+                throw new EOFException();
+            }
+            int n = 0;
+            while (this.position < this.limit) {
+                byte c = this.b.get(this.position++);
+                if (c == '\n') {
+                    break;
+                }
+                if (n == this.line.length) {
+                    this.line = Arrays.copyOf(this.line, n * 2);
+                }
+                this.line[n++] = c;
+            }
+            this.lineNumber++;
+            if ((n > 0) && (this.line[n - 1] == '\r')) {
+                n--;
+            }
+            return new String(this.line, 0, n, UTF8);
+        }
+
+        void skipLines(int count) throws EOFException {
+            for (int i = 0; i < count; i++) {
+                if (this.position == this.limit) {
+                    throw new EOFException();
+                }
+                while ((this.position < this.limit) && (this.b.get(this.position++) != '\n')) {
+                    // Skip the content of the line
+                }
+                this.lineNumber++;
+            }
+        }
+
+        int readInt() throws EOFException {
+            return Integer.parseInt(this.readLine().trim());
+        }
+
+        int readCount() throws EOFException {
+            int n = this.readInt();
+            if (n < 0) {
+                throw new NumberFormatException(Integer.toString(n));
+            }
+            return n;
+        }
+
+        double readDouble() throws EOFException {
+            return Double.parseDouble(this.readLine().trim());
+        }
+    }
+    private static final Logger LOG = Logger.getLogger(NssParallelReader.class.getName());
+}
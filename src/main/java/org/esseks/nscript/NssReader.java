@@ -0,0 +1,237 @@
+/*
+ * This source file is part of NScript, released under BSD-modern.
+ *
+ * Copyright (C) 2000-2001 Enrique Campos-Nanez
+ * Copyright (C) 2012 Stefano Sanfilippo
+ *
+ * See README.* at top level for copying, contacts, history and notes.
+ */
+package org.esseks.nscript;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.LineNumberReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads a model in the text format written by NSModel.toString, one record
+ * at a time, from any stream. The ends of the relations are looked up in a
+ * table of the names read so far, and linked once the whole model is read:
+ * a relation may refer to an object stored after it. The objects are then
+ * added to the world at once, so that its indices are built in a single pass
+ * and loading takes time linear in the size of the model.
+ *
+ * As when a model is edited, an end is the first object stored with its
+ * name; the environment comes before all the others.
+ */
+public final class NssReader extends Object implements Closeable {
+
+    /**
+     * The size of the read buffer.
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+    /**
+     * The encoding of the files saved by NScript.
+     */
+    private static final Charset UTF8 = Charset.forName("utf-8");
+    /**
+     * The largest number of objects the tables are sized for in advance.
+     */
+    private static final int MAX_CAPACITY = 1 << 20;
+
+    /**
+     * The model being read, which counts its lines for error messages.
+     */
+    private final LineNumberReader in;
+    /**
+     * Finds the snippets of the objects.
+     */
+    private final SnippetResolver lib;
+
+    /**
+     * Creates a reader.
+     *
+     * @param inReader the model in the text format.
+     * @param inLib finds the snippets of the objects.
+     */
+    public NssReader(Reader inReader, SnippetResolver inLib) {
+        this.in = new LineNumberReader(inReader, NssReader.BUFFER_SIZE);
+        this.lib = inLib;
+    }
+
+    /**
+     * Creates a reader of a model stored in UTF-8, as NScript saves it.
+     *
+     * @param inStream the model in the text format.
+     * @param inLib finds the snippets of the objects.
+     */
+    public NssReader(InputStream inStream, SnippetResolver inLib) {
+        this(new InputStreamReader(inStream, NssReader.UTF8), inLib);
+    }
+
+    /**
+     * Reads the model into a world, which must hold only its environment.
+     * Nothing but the arrays and the environment is changed unless the whole
+     * model is read.
+     *
+     * @param w the world.
+     * @return true if the model was read, false if it is not valid or a
+     * snippet could not be found.
+     * @throws IOException if reading from the stream fails.
+     */
+    public boolean readInto(NSWorld w) throws IOException {
+        try {
+            int nA = this.readCount();
+            for (int i = 0; i < nA; i++) {
+                w.addArray(this.readLine(), this.readInt());
+            }
+            int nO = this.readCount();
+            if (nO == 0) {
+                return true;
+            }
+            this.readLine(); // Skip snippet and name information
+            NSObject env = w.getEnvironment();
+            env.setName(this.readLine());
+            this.readAttributes(env);
+            if (env instanceof NSEntity) {
+                ((NSEntity) env).moveTo(this.readDouble(), this.readDouble());
+            }
+
+            // The count is not trusted to size the tables of a damaged file
+            int capacity = Math.min(nO, NssReader.MAX_CAPACITY);
+            HashMap<String, NSObject> names = new HashMap<String, NSObject>(capacity * 2);
+            names.put(env.getName(), env);
+            List<NSObject> objects = new ArrayList<NSObject>(capacity);
+            List<NSRelation> relations = new ArrayList<NSRelation>();
+            List<String> ends = new ArrayList<String>();
+            for (int i = 1; i < nO; i++) {
+                NSObject o = this.readRecord(relations, ends);
+                if (o == null) {
+                    return false;
+                }
+                if (!names.containsKey(o.getName())) {
+                    names.put(o.getName(), o);
+                }
+                objects.add(o);
+            }
+            for (int i = 0; i < relations.size(); i++) {
+                relations.get(i).link(NssReader.asEntity(names.get(ends.get(2 * i))),
+                        NssReader.asEntity(names.get(ends.get(2 * i + 1))));
+            }
+            w.addObjects(objects);
+            return true;
+        } catch (EOFException e) {
+            LOG.log(Level.SEVERE, "{0} {1}", new Object[]{
+                        Messages.tr("file_format_error"), this.in.getLineNumber()});
+        } catch (NumberFormatException e) {
+            LOG.log(Level.SEVERE, "{0} {1}", new Object[]{
+                        Messages.tr("file_format_error"), this.in.getLineNumber()});
+        }
+        return false;
+    }
+
+    /**
+     * Reads the record of an object other than the environment. The names of
+     * the ends of a relation are queued, rather than looked up.
+     *
+     * @param relations receives the relation read, if any.
+     * @param ends receives the names of its origin and destination.
+     * @return the object, or null if its snippet could not be found.
+     */
+    private NSObject readRecord(List<NSRelation> relations, List<String> ends) throws IOException {
+        String sName = this.readLine();
+        TclSnippet s = this.lib.getSnippet(sName);
+        if (s == null) {
+            LOG.log(Level.SEVERE, "{0} {1}", new Object[]{
+                        Messages.tr("library_not_found"), sName});
+            return null;
+        }
+        if (s.isRelation()) {
+            NSRelation r = new NSRelation(s, this.readLine(), null, null);
+            s.instantiateNSObject(r);
+            this.readAttributes(r);
+            relations.add(r);
+            ends.add(this.readLine());
+            ends.add(this.readLine());
+            return r;
+        }
+        NSEntity e = new NSEntity(s, this.readLine(), 0.0, 0.0);
+        s.instantiateNSObject(e);
+        this.readAttributes(e);
+        e.moveTo(this.readDouble(), this.readDouble());
+        return e;
+    }
+
+    /**
+     * Reads the array index and the attributes of an object, one per line, as
+     * many as its snippet defines.
+     */
+    private void readAttributes(NSObject o) throws IOException {
+        o.setArrayIndex(this.readInt());
+        for (int i = 0; i < o.getAttributeCount(); i++) {
+            o.setAttribute(i, this.readLine());
+        }
+    }
+
+    /**
+     * Reads a line, which must be there.
+     *
+     * @return the line, without its terminator.
+     * @throws EOFException if the stream ends.
+     */
+    private String readLine() throws IOException {
+        String line = this.in.readLine();
+        if (line == null) {
+            throw new EOFException();
+        }
+        return line;
+    }
+
+    private int readInt() throws IOException {
+        return Integer.parseInt(this.readLine().trim());
+    }
+
+    /**
+     * Reads a number of records, which cannot be negative.
+     */
+    private int readCount() throws IOException {
+        int n = this.readInt();
+        if (n < 0) {
+            throw new NumberFormatException(Integer.toString(n));
+        }
+        return n;
+    }
+
+    private double readDouble() throws IOException {
+        return Double.parseDouble(this.readLine().trim());
+    }
+
+    /**
+     * Returns an object as the end of a relation.
+     *
+     * @return the object, or null if it is not an entity.
+     */
+    static NSEntity asEntity(NSObject o) {
+        return (o instanceof NSEntity) ? (NSEntity) o : null;
+    }
+
+    /**
+     * Closes the stream.
+     *
+     * @throws IOException if closing the stream fails.
+     */
+    @Override
+    public void close() throws IOException {
+        this.in.close();
+    }
+    private static final Logger LOG = Logger.getLogger(NssReader.class.getName());
+}
@@ -95,9 +95,9 @@ public class SArrayTableModel extends AbstractTableModel {
         }
 
         if (column == 0) {
-            this.M.getArray(row).setName(value.toString());
+            this.M.renameArray(row, value.toString());
         } else {
-            this.M.getArray(row).setSize(Integer.parseInt(value.toString()));
+            this.M.resizeArray(row, Integer.parseInt(value.toString()));
         }
     }
 
@@ -123,14 +123,9 @@ public class SObjectBrowser extends JPanel implements ActionListener {
         int i, oc;
 
         SObjectTableModel tm;
-        oc = 0;
-        for (i = 0; i < this.M.getSize(); i++) {
-            if (this.M.getObjectAt(i).isSelected()) {
-                oc++;
-                this.o = (NSObject) this.M.getObjectAt(i);
-            }
-        }
+        oc = this.M.getSelectedCount();
         if (oc == 1) {
+            this.o = (NSObject) this.M.getSelectedAt(0);
             this.nameField.setText(this.o.getName());
             if (this.o.getSnippet().isRelation()) {
                 or = (NSRelation) this.o;
@@ -181,12 +176,12 @@ public class SObjectBrowser extends JPanel implements ActionListener {
 
         if (ae.getSource() == this.defaultBtn) {
             this.o.getSnippet().instantiateNSObject(this.o);
+            this.selectionChanged();
         }
         else if (ae.getSource() == this.nameField) {
             this.o.setName(this.nameField.getText());
         }
 
-        this.M.updateAllViews(false);
         this.M.setDirty(true);
     }
 
@@ -195,10 +190,14 @@ public class SObjectBrowser extends JPanel implements ActionListener {
         @Override
         public void valueChanged(ListSelectionEvent e) {
             if (!e.getValueIsAdjusting() && (SObjectBrowser.this.o != null)) {
-                for (int i = e.getFirstIndex(); i <= e.getLastIndex(); ++i) {
-                    SObjectBrowser.this.o.setAttribute(i, (String) SObjectBrowser.this.attrTable.getValueAt(i, 1));
+                SObjectBrowser.this.M.beginBatch();
+                try {
+                    for (int i = e.getFirstIndex(); i <= e.getLastIndex(); ++i) {
+                        SObjectBrowser.this.o.setAttribute(i, (String) SObjectBrowser.this.attrTable.getValueAt(i, 1));
+                    }
+                } finally {
+                    SObjectBrowser.this.M.endBatch();
                 }
-                SObjectBrowser.this.M.updateAllViews(true);
                 SObjectBrowser.this.M.setDirty(true);
             }
         }
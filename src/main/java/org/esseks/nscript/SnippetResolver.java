@@ -0,0 +1,25 @@
+/*
+ * This source file is part of NScript, released under BSD-modern.
+ *
+ * Copyright (C) 2000-2001 Enrique Campos-Nanez
+ * Copyright (C) 2012 Stefano Sanfilippo
+ *
+ * See README.* at top level for copying, contacts, history and notes.
+ */
+package org.esseks.nscript;
+
+/**
+ * Finds the snippets (classes) of the objects of a model being read from a
+ * file. Implemented by TclLibraryManager; the editor also asks the user to
+ * locate the libraries that are missing.
+ */
+public interface SnippetResolver {
+
+    /**
+     * Obtains a snippet by its name.
+     *
+     * @param sName the name of the snippet.
+     * @return the snippet, or null if it cannot be found.
+     */
+    public TclSnippet getSnippet(String sName);
+}
@@ -0,0 +1,34 @@
+/*
+ * This source file is part of NScript, released under BSD-modern.
+ *
+ * Copyright (C) 2000-2001 Enrique Campos-Nanez
+ * Copyright (C) 2012 Stefano Sanfilippo
+ *
+ * See README.* at top level for copying, contacts, history and notes.
+ */
+package org.esseks.nscript;
+
+/**
+ * Defines an interface to be implemented by objects that follow a long
+ * running operation on the model, such as exporting a large script. The
+ * operation reports its progress and polls the monitor to know whether it
+ * should stop.
+ */
+public interface TaskMonitor {
+
+    /**
+     * Called periodically by the operation to report its progress.
+     *
+     * @param done the number of items processed so far.
+     * @param total the total number of items to process.
+     */
+    public void progress(int done, int total);
+
+    /**
+     * Polled periodically by the operation. If it returns true, the operation
+     * stops as soon as possible.
+     *
+     * @return true if the operation should be abandoned, false otherwise.
+     */
+    public boolean isCancelled();
+}
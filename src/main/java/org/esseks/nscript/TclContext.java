@@ -0,0 +1,33 @@
+/*
+ * This source file is part of NScript, released under BSD-modern.
+ *
+ * Copyright (C) 2000-2001 Enrique Campos-Nanez
+ * Copyright (C) 2012 Stefano Sanfilippo
+ *
+ * See README.* at top level for copying, contacts, history and notes.
+ */
+package org.esseks.nscript;
+
+/**
+ * Defines what the Tcl code of an object may refer to besides the object
+ * itself: the index arrays and the ns environment. Implemented by NSWorld, and
+ * by its snapshots (see NSSnapshot), so that the Tcl code can be generated
+ * from either.
+ */
+public interface TclContext {
+
+    /**
+     * Returns the array stored at a given position.
+     *
+     * @param inIndex the 0-based position of the array.
+     * @return the array, or null if the position is not valid.
+     */
+    public NSArray getArray(int inIndex);
+
+    /**
+     * Returns the ns environment.
+     *
+     * @return the ns environment object.
+     */
+    public NSObject getEnvironment();
+}
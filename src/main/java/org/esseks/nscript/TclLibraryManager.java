@@ -26,7 +26,7 @@ import java.util.logging.Logger;
  * prevent naming conflicts, verify uniqueness of library names, find a
  * reference, and finding a snippet, either by name or entry number.
  */
-public class TclLibraryManager extends Object implements Serializable {
+public class TclLibraryManager extends Object implements Serializable, SnippetResolver {
 
     /**
      *      */
@@ -206,6 +206,7 @@ public class TclLibraryManager extends Object implements Serializable {
      * @param sName the name of the requested snippet.
      * @return a reference to the snippet if the name is found, NULL otherwise.
      */
+    @Override
     public TclSnippet getSnippet(String sName) {
         Iterator<TclLibrary> i = this.libraries.iterator();
         TclLibrary l;
@@ -9,6 +9,7 @@
 package org.esseks.nscript;
 
 import java.io.Serializable;
+import java.util.Set;
 import java.util.logging.Logger;
 
 /**
@@ -47,6 +48,23 @@ public class TclPattern extends Object implements Serializable {
      * The value of the attribute that triggers the use of the default pattern.
      */
     private String attributeValue;
+    /**
+     * The code (see ValueDictionary) of attributeValue, set when the pattern is
+     * compiled.
+     */
+    private transient String attributeValueCode;
+    /**
+     * The pattern compiled against the attributes of the snippet.
+     */
+    private transient TclTemplate template;
+    /**
+     * The alternative pattern compiled against the attributes of the snippet.
+     */
+    private transient TclTemplate alternativeTemplate;
+    /**
+     * The compiled reference to the attribute tested by a conditional pattern.
+     */
+    private transient TclTemplate condition;
 
     /**
      * Constructor requires a string from which the pattern is parsed.
@@ -80,6 +98,65 @@ public class TclPattern extends Object implements Serializable {
         }
     }
 
+    /**
+     * Compiles the pattern (and, for conditional patterns, the alternative
+     * pattern and the tested attribute) against the attributes of a snippet.
+     * Called once when the snippet is parsed, and again lazily whenever the
+     * pattern is modified.
+     *
+     * @param owner the snippet this pattern belongs to.
+     */
+    public void compile(TclSnippet owner) {
+        if (this.conditional) {
+            this.alternativeTemplate = new TclTemplate(this.alternativePattern, owner, TclTemplate.SEPARATOR);
+            this.condition = TclTemplate.reference(this.attribute, owner);
+            this.attributeValueCode = ValueDictionary.encode(this.attributeValue);
+        } else {
+            this.alternativeTemplate = null;
+            this.condition = null;
+        }
+        // Set last, as a non-null template marks the pattern as compiled
+        this.template = new TclTemplate(this.pattern, owner, TclTemplate.SEPARATOR);
+    }
+
+    /**
+     * Collects the names of the environment attributes the pattern refers to.
+     *
+     * @param owner the snippet this pattern belongs to.
+     * @param names the set where the names are added.
+     */
+    public void collectEnvironmentReferences(TclSnippet owner, Set<String> names) {
+        if (this.template == null) {
+            this.compile(owner);
+        }
+        this.template.collectEnvironmentReferences(names);
+        if (this.conditional) {
+            this.alternativeTemplate.collectEnvironmentReferences(names);
+            this.condition.collectEnvironmentReferences(names);
+        }
+    }
+
+    /**
+     * Selects the template to use for a given object. This is the pattern,
+     * unless the pattern is conditional and the tested attribute does not
+     * have the triggering value.
+     *
+     * @param owner the snippet this pattern belongs to.
+     * @param w a reference to the simulation model.
+     * @param o the object being translated.
+     * @return the compiled template to run.
+     */
+    public TclTemplate select(TclSnippet owner, TclContext w, NSObject o) {
+        if (this.template == null) {
+            this.compile(owner);
+        }
+        if (this.conditional
+                && !this.condition.hasValue(w, o, this.attributeValueCode)) {
+            return this.alternativeTemplate;
+        }
+        return this.template;
+    }
+
     /**
      *
      * @return
@@ -94,6 +171,7 @@ public class TclPattern extends Object implements Serializable {
      */
     public void setConditional(boolean isConditional) {
         this.conditional = isConditional;
+        this.template = null;
     }
 
     /**
@@ -110,6 +188,7 @@ public class TclPattern extends Object implements Serializable {
      */
     public void setPattern(String pattern) {
         this.pattern = pattern;
+        this.template = null;
     }
 
     /**
@@ -126,6 +205,7 @@ public class TclPattern extends Object implements Serializable {
      */
     public void setAlternativePattern(String alternativePattern) {
         this.alternativePattern = alternativePattern;
+        this.template = null;
     }
 
     /**
@@ -142,6 +222,7 @@ public class TclPattern extends Object implements Serializable {
      */
     public void setAttribute(String attribute) {
         this.attribute = attribute;
+        this.template = null;
     }
 
     /**
@@ -158,6 +239,7 @@ public class TclPattern extends Object implements Serializable {
      */
     public void setAttributeValue(String attributeValue) {
         this.attributeValue = attributeValue;
+        this.template = null;
     }
 
     /**
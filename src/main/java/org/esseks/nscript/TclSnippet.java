@@ -11,7 +11,9 @@ package org.esseks.nscript;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.StringTokenizer;
 import java.util.logging.Level;
@@ -99,10 +101,25 @@ public class TclSnippet extends Object implements Serializable {
      * The collection of attributes of the snippet.
      */
     private ArrayList<TclAttribute> attributes;
+    /**
+     * The position of each attribute in attributes, by name. Built once the
+     * attributes are parsed, and never modified afterwards.
+     */
+    private Map<String, Integer> attributeIndex;
+    /**
+     * The codes (see ValueDictionary) of the default values of the attributes,
+     * built on first use. Codes are only canonical within the running program.
+     */
+    private transient String[] defaultCodes;
     /**
      * The collection of patterns of the snippet.
      */
     private ArrayList<TclPattern> patterns;
+    /**
+     * The names of the environment attributes referenced by the patterns
+     * (through env.* in-lines).
+     */
+    private HashSet<String> environmentReferences;
     /**
      * Constant indicating a SOLID line style (for relation objects, only).
      */
@@ -125,7 +142,9 @@ public class TclSnippet extends Object implements Serializable {
      */
     private TclSnippet() {
         this.attributes = new ArrayList<TclAttribute>();
+        this.attributeIndex = Collections.emptyMap();
         this.patterns = new ArrayList<TclPattern>();
+        this.environmentReferences = new HashSet<String>();
     }
 
     /**
@@ -204,6 +223,15 @@ public class TclSnippet extends Object implements Serializable {
         for (; iEnd >= 0; iStart = iEnd + 1, iEnd = attr.indexOf(';', iStart)) {
             this.attributes.add(new TclAttribute(attr.substring(iStart, iEnd)));
         }
+        Map<String, Integer> index = new HashMap<String, Integer>(this.attributes.size() * 2);
+        for (int i = 0; i < this.attributes.size(); i++) {
+            // On duplicate names, the first attribute wins
+            String attrName = this.attributes.get(i).getName();
+            if (!index.containsKey(attrName)) {
+                index.put(attrName, i);
+            }
+        }
+        this.attributeIndex = Collections.unmodifiableMap(index);
 
         // Finally, read the patterns.
         iStart = 0;
@@ -211,6 +239,10 @@ public class TclSnippet extends Object implements Serializable {
         for (; iEnd >= 0; iStart = iEnd + 1, iEnd = patt.indexOf(';', iStart)) {
             this.patterns.add(new TclPattern(patt.substring(iStart, iEnd)));
         }
+        for (TclPattern p : this.patterns) {
+            p.compile(this);
+            p.collectEnvironmentReferences(this, this.environmentReferences);
+        }
     }
 
     // Gets & sets for all members
@@ -406,6 +438,67 @@ public class TclSnippet extends Object implements Serializable {
         }
     }
 
+    /**
+     * Finds the position of an attribute given its name.
+     *
+     * @param attrName the name of the attribute.
+     * @return the index of the attribute, or -1 if the snippet has no
+     * attribute with that name.
+     */
+    public int indexOf(String attrName) {
+        Integer i = this.attributeIndex.get(attrName);
+        return (i == null) ? -1 : i;
+    }
+
+    /**
+     * Returns the default value of an attribute. Objects share these values
+     * until their attributes are set.
+     *
+     * @param inIndex the position of the attribute.
+     * @return the default value, or an empty String if the index is not valid.
+     */
+    public String getDefaultValue(int inIndex) {
+        if ((inIndex >= 0) && (inIndex < this.attributes.size())) {
+            return this.attributes.get(inIndex).getDefaultValue();
+        }
+        return "";
+    }
+
+    /**
+     * Returns the code (see ValueDictionary) of the default value of an
+     * attribute.
+     *
+     * @param inIndex the position of the attribute.
+     * @return the code of the default value, or ValueDictionary.EMPTY if the
+     * index is not valid.
+     */
+    String getDefaultCode(int inIndex) {
+        String[] codes = this.defaultCodes;
+        if (codes == null) {
+            codes = new String[this.attributes.size()];
+            for (int i = 0; i < codes.length; i++) {
+                codes[i] = ValueDictionary.encode(this.attributes.get(i).getDefaultValue());
+            }
+            this.defaultCodes = codes;
+        }
+        if ((inIndex >= 0) && (inIndex < codes.length)) {
+            return codes[inIndex];
+        }
+        return ValueDictionary.EMPTY;
+    }
+
+    /**
+     * Tells if the Tcl code of the objects of this class depends on a given
+     * attribute of the environment.
+     *
+     * @param attrName the name of the environment attribute, or "name" for
+     * the name of the environment object.
+     * @return true if any pattern refers to env.attrName.
+     */
+    public boolean usesEnvironment(String attrName) {
+        return this.environmentReferences.contains(attrName);
+    }
+
     /**
      *
      * @return
@@ -465,42 +558,52 @@ public class TclSnippet extends Object implements Serializable {
      * @param o a reference to the object to be initialized.
      */
     public void instantiateNSObject(NSObject o) {
-        int i;
-
-        for (i = 0; i < this.attributes.size(); i++) {
-            o.setAttribute(i, this.attributes.get(i).getDefaultValue());
-        }
+        o.resetAttributes(this.attributes.size());
     }
 
     /**
      * Converts an object to Tcl.
      *
-     * @param w a reference to the world object. This reference is provided in
-     * case the object requires context information to resolve its translation.
+     * @param w a reference to the model, or to a snapshot of it. This
+     * reference is provided in case the object requires context information
+     * to resolve its translation.
      * @param o the object to be rendered to Tcl.
      * @param sep a character that separates the inline expressions in the
      * patterns.
      * @return the Tcl code as a String.
      */
-    public String toTcl(NSWorld w, NSObject o, char sep) {
-        String preamble = "";
-        String epilogue = "";
-        String aname;
-        TclPattern p;
+    public String toTcl(TclContext w, NSObject o, char sep) {
+        StringBuilder s = new StringBuilder(BASE_PATTERN_SIZE * this.patterns.size());
+        this.appendTcl(s, w, o, sep);
+        return s.toString();
+    }
+
+    /**
+     * Converts an object to Tcl, appending the code to a buffer. The buffer
+     * can be reused across objects, so that exporting a whole model does not
+     * allocate a String per object.
+     *
+     * @param s the buffer where the Tcl code is appended.
+     * @param w a reference to the model, or to a snapshot of it.
+     * @param o the object to be rendered to Tcl.
+     * @param sep a character that separates the inline expressions in the
+     * patterns.
+     * @return true if any code was appended, false if the object translates
+     * to an empty string.
+     */
+    public boolean appendTcl(StringBuilder s, TclContext w, NSObject o, char sep) {
         NSRelation ro;
-        NSArray a;
-        int i, i2, asize;
+        int i, i2;
+        int mark = s.length();
+        int loops = 0;
         if(this.name.equals("Colors")){
-            this.fixColors(o);
+            o = this.withFixedColors(o);
         }
         
-        // Get the preamble and epilogue for the snippet.
+        // Write the preamble for the snippet.
         if (o.getArrayIndex() >= 0) {
-            a = w.getArray(o.getArrayIndex());
-            aname = a.getName();
-            asize = a.getSize();
-            preamble = "for {set " + aname + " 0} {$" + aname + "<" + Integer.toString(asize) + "} {incr " + aname + "} {\n";
-            epilogue = "}\n";
+            this.appendLoop(s, w.getArray(o.getArrayIndex()), "");
+            loops = 1;
         } else {
             if (this.isRelation) {
                 ro = (NSRelation) o;
@@ -508,54 +611,121 @@ public class TclSnippet extends Object implements Serializable {
                 i2 = ro.getTo().getArrayIndex();
                 if ((i >= 0) || (i2 >= 0)) {
                     if (i == i2) {
-                        aname = w.getArray(i).getName();
-                        asize = w.getArray(i).getSize();
-                        preamble = "for {set " + aname + " 0} {$" + aname + "<" + Integer.toString(asize) + "} {incr " + aname + "} {\n";
-                        epilogue = "}\n";
+                        this.appendLoop(s, w.getArray(i), "");
+                        loops = 1;
                     } else {
                         if (i >= 0) {
-                            aname = w.getArray(i).getName();
-                            asize = w.getArray(i).getSize();
-                            preamble = "for {set " + aname + " 0} {$" + aname + "<" + Integer.toString(asize) + "} {incr " + aname + "} {\n";
-                            epilogue = "}\n";
+                            this.appendLoop(s, w.getArray(i), "");
+                            loops = 1;
                         }
                         if (i2 >= 0) {
-                            aname = w.getArray(i2).getName();
-                            asize = w.getArray(i2).getSize();
-                            preamble = preamble + "  for {set " + aname + " 0} {$" + aname + "<" + Integer.toString(asize) + "} {incr " + aname + "} {\n";
-                            epilogue += "  }\n";
+                            this.appendLoop(s, w.getArray(i2), "  ");
+                            loops = (loops == 1) ? 3 : 2;
                         }
                     }
                 }
             }
         }
 
-        String sApp;
-        StringBuilder s = new StringBuilder(this.patterns.size());
+        int start = s.length();
         // Now pattern substitution
         for (i = 0; i < this.patterns.size(); i++) {
-            p = this.patterns.get(i);
-            if (p.isConditional()) {
-                if (p.getAttributeValue().equals(this.valueOf(w, o, p.getAttribute()))) {
-                    sApp = this.patternToTcl(p.getPattern(), w, o, sep);
-                } else {
-                    sApp = this.patternToTcl(p.getAlternativePattern(), w, o, sep);
-                }
+            TclPattern p = this.patterns.get(i);
+            int line = s.length();
+            if (sep == TclTemplate.SEPARATOR) {
+                p.select(this, w, o).appendTo(s, w, o);
             } else {
-                sApp = this.patternToTcl(p.getPattern(), w, o, sep);
+                s.append(this.patternToTcl(p, w, o, sep));
             }
-            if (sApp.trim().length() != 0) {
-                s.append(sApp).append("\n");
+            // Blank lines are dropped
+            if (isBlank(s, line, s.length())) {
+                s.setLength(line);
+            } else {
+                s.append('\n');
             }
         }
 
-        if (s.toString().trim().length() == 0) {
-            return "";
-        } else {
-            return (preamble + s + epilogue).trim();
+        if (s.length() == start) {
+            s.setLength(mark);
+            return false;
+        }
+
+        // The epilogue closes the loops opened by the preamble
+        if ((loops & 1) != 0) {
+            s.append("}\n");
         }
+        if ((loops & 2) != 0) {
+            s.append("  }\n");
+        }
+
+        // Same as String.trim(), applied to the appended code only
+        int end = s.length();
+        start = mark;
+        while ((start < end) && (s.charAt(start) <= ' ')) {
+            start++;
+        }
+        while ((end > start) && (s.charAt(end - 1) <= ' ')) {
+            end--;
+        }
+        s.setLength(end);
+        s.delete(mark, start);
+        return true;
+    }
+
+    /**
+     * Writes the header of the Tcl loop that iterates over an array.
+     *
+     * @param s the buffer where the Tcl code is appended.
+     * @param a the array.
+     * @param indent the indentation of the loop.
+     */
+    private void appendLoop(StringBuilder s, NSArray a, String indent) {
+        String aname = a.getName();
+        s.append(indent).append("for {set ").append(aname).append(" 0} {$")
+                .append(aname).append('<').append(a.getSize())
+                .append("} {incr ").append(aname).append("} {\n");
+    }
+
+    /**
+     * Checks whether a region of a buffer contains only blanks, with the same
+     * definition of blank used by String.trim().
+     */
+    private static boolean isBlank(CharSequence s, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (s.charAt(i) > ' ') {
+                return false;
+            }
+        }
+        return true;
     }
     
+    /**
+     * Applies to a frozen copy of an object the corrections made while
+     * translating it (see withFixedColors), so that the snapshots hold the
+     * values that are exported.
+     *
+     * @param o the frozen copy.
+     */
+    void prepareFrozen(NSObject o) {
+        if (this.name.equals("Colors")) {
+            this.fixColors(o);
+        }
+    }
+
+    /**
+     * Returns the object to translate in place of a Colors object: a copy of
+     * it where the repeated colors are switched (see fixColors). The object
+     * itself is not modified, so that it can be translated from any thread.
+     *
+     * @param o the Colors object.
+     * @return the corrected copy.
+     */
+    private NSObject withFixedColors(NSObject o) {
+        NSObject c = o.detachedCopy();
+        this.fixColors(c);
+        return c;
+    }
+
     /**
      * Switches color chosen more than one time with one not selected
      * @param o	    NSObject to fix
@@ -585,10 +755,10 @@ public class TclSnippet extends Object implements Serializable {
             }
         }
         
-        for(int i=o.getAttributeCount(); i>=0;i--){
+        for(int i=o.getAttributeCount()-1; i>=0;i--){
             try{
                 key = o.getAttribute(i);
-                if( colors.get(key) > 1 ){
+                if( colors.containsKey(key) && colors.get(key) > 1 ){
                     this.changeMapValue(colors, key, -1);
                     o.setAttribute(i,this.getUnusedColor(colors));
                 }
@@ -628,31 +798,22 @@ public class TclSnippet extends Object implements Serializable {
     }
 
     /**
-     * Converts a pattern to Tcl code.
+     * Converts a pattern to Tcl code, using a separator other than the default
+     * one the patterns are compiled with. The pattern is compiled on the fly.
      *
-     * @param pattern a string with the pattern.
+     * @param p the pattern.
      * @param w a reference to the simulation model.
      * @param o a reference to the object being translated to Tcl.
      * @param sep a character that marks the inline tags in the patterns.
      * @return a string with Tcl code corresponding to the pattern.
      */
-    String patternToTcl(String pattern, NSWorld w, NSObject o, char sep) {
-        StringBuilder sNew = new StringBuilder(BASE_PATTERN_SIZE);
-
-        int iLast = 0;
-        int i = pattern.indexOf(sep, iLast);
-        for (; i >= 0; iLast++, i = pattern.indexOf(sep, iLast)) {
-            sNew.append(pattern.substring(iLast, i));
-            iLast = pattern.indexOf(sep, i + 1);
-            if (iLast < 0) {
-                return Messages.tr("bad_formed_pattern");
-            }
-            sNew.append(this.valueOf(w, o, pattern.substring(i + 1, iLast)));
-        }
-        if (iLast < pattern.length()) {
-            sNew.append(pattern.substring(iLast));
+    String patternToTcl(TclPattern p, TclContext w, NSObject o, char sep) {
+        String pattern = p.getPattern();
+        if (p.isConditional()
+                && !p.getAttributeValue().equals(this.valueOf(w, o, p.getAttribute()))) {
+            pattern = p.getAlternativePattern();
         }
-        return sNew.toString();
+        return new TclTemplate(pattern, this, sep).valueOf(w, o);
     }
 
     /**
@@ -663,7 +824,7 @@ public class TclSnippet extends Object implements Serializable {
      * @param attrName the name of the attribute whose value is wanted.
      * @return the value of the attribute as a String.
      */
-    String valueOf(NSWorld w, NSObject o, String attrName) {
+    String valueOf(TclContext w, NSObject o, String attrName) {
         int i;
 
         // Special field values
@@ -685,10 +846,9 @@ public class TclSnippet extends Object implements Serializable {
         }
 
         // Variable attributes
-        for (i = 0; i < this.attributes.size(); i++) {
-            if (this.attributes.get(i).getName().equals(attrName)) {
-                return o.getAttribute(i);
-            }
+        i = this.indexOf(attrName);
+        if (i >= 0) {
+            return o.getAttribute(i);
         }
 
         return attrName + ".NotFound";
@@ -701,7 +861,7 @@ public class TclSnippet extends Object implements Serializable {
      * @param w a reference to the simulation model.
      * @return the name of the object as a String.
      */
-    public String arrayedName(NSObject o, NSWorld w) {
+    public String arrayedName(NSObject o, TclContext w) {
         if (o.getArrayIndex() >= 0) {
             return o.getName() + "($" + w.getArray(o.getArrayIndex()).getName() + ")";
         } else {
@@ -0,0 +1,265 @@
+/*
+ * This source file is part of NScript, released under BSD-modern.
+ *
+ * Copyright (C) 2000-2001 Enrique Campos-Nanez
+ * Copyright (C) 2012 Stefano Sanfilippo
+ *
+ * See README.* at top level for copying, contacts, history and notes.
+ */
+package org.esseks.nscript;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * A pattern string compiled against the attributes of its snippet. The
+ * pattern is scanned only once, when the library is loaded, and is stored as a
+ * sequence of literal segments and in-line references. References are
+ * resolved to the index of the attribute in the snippet, or to one of the
+ * special slots (name, from, to, env.*), so that translating an object to Tcl
+ * requires no parsing and no attribute lookup by name.
+ */
+public class TclTemplate extends Object implements Serializable {
+
+    /**
+     *      */
+    private static final long serialVersionUID = 42L;
+    /**
+     * The default character that marks in-lines in a pattern.
+     */
+    public static final char SEPARATOR = '#';
+    /**
+     * Slot of a literal segment, stored in texts.
+     */
+    private static final int LITERAL = -1;
+    /**
+     * Slot of the (arrayed) name of the object.
+     */
+    private static final int NAME = -2;
+    /**
+     * Slot of the (arrayed) name of the object where a relation starts.
+     */
+    private static final int FROM = -3;
+    /**
+     * Slot of the (arrayed) name of the object where a relation ends.
+     */
+    private static final int TO = -4;
+    /**
+     * Slot of an attribute of the environment. The attribute name is stored
+     * in texts.
+     */
+    private static final int ENV = -5;
+    /**
+     * For every segment, either the index of an attribute, or one of the slot
+     * constants above.
+     */
+    private int[] slots;
+    /**
+     * For every segment, the literal text or the environment attribute name.
+     * Unused (null) for the other slots.
+     */
+    private String[] texts;
+
+    /**
+     * Compiles a pattern against the attributes of a snippet.
+     *
+     * @param pattern the pattern string, with in-lines marked by sep.
+     * @param owner the snippet whose attributes the in-lines refer to.
+     * @param sep the character that marks the in-lines.
+     */
+    public TclTemplate(String pattern, TclSnippet owner, char sep) {
+        this.compile(pattern, owner, sep);
+    }
+
+    /**
+     * Compiles a single in-line reference, as used in conditional patterns.
+     *
+     * @param attrName the name of the referenced attribute or special field.
+     * @param owner the snippet whose attributes the reference refers to.
+     * @return a template that produces the value of the reference.
+     */
+    public static TclTemplate reference(String attrName, TclSnippet owner) {
+        TclTemplate t = new TclTemplate();
+        ArrayList<Integer> slots = new ArrayList<Integer>(1);
+        ArrayList<String> texts = new ArrayList<String>(1);
+        t.addReference(attrName, owner, slots, texts);
+        t.store(slots, texts);
+        return t;
+    }
+
+    /**
+     * Constructor for the reference() factory.
+     */
+    private TclTemplate() {
+    }
+
+    /**
+     * Scans the pattern, splitting it in literal segments and references.
+     * A pattern with an unterminated in-line compiles to the "bad formed
+     * pattern" message, as the interpreted version used to produce.
+     */
+    private void compile(String pattern, TclSnippet owner, char sep) {
+        ArrayList<Integer> slots = new ArrayList<Integer>();
+        ArrayList<String> texts = new ArrayList<String>();
+
+        int iLast = 0;
+        int i = pattern.indexOf(sep, iLast);
+        for (; i >= 0; iLast++, i = pattern.indexOf(sep, iLast)) {
+            if (i > iLast) {
+                slots.add(LITERAL);
+                texts.add(pattern.substring(iLast, i));
+            }
+            iLast = pattern.indexOf(sep, i + 1);
+            if (iLast < 0) {
+                slots.clear();
+                texts.clear();
+                slots.add(LITERAL);
+                texts.add(Messages.tr("bad_formed_pattern"));
+                this.store(slots, texts);
+                return;
+            }
+            this.addReference(pattern.substring(i + 1, iLast), owner, slots, texts);
+        }
+        if (iLast < pattern.length()) {
+            slots.add(LITERAL);
+            texts.add(pattern.substring(iLast));
+        }
+        this.store(slots, texts);
+    }
+
+    /**
+     * Resolves an in-line reference to its slot. Unknown attributes become the
+     * literal "name.NotFound".
+     */
+    private void addReference(String attrName, TclSnippet owner,
+            ArrayList<Integer> slots, ArrayList<String> texts) {
+        int i = attrName.indexOf("env");
+        if (i >= 0) {
+            slots.add(ENV);
+            texts.add(attrName.substring(Math.min(i + 4, attrName.length())));
+            return;
+        }
+        if (attrName.equals("from")) {
+            slots.add(FROM);
+            texts.add(null);
+            return;
+        }
+        if (attrName.equals("to")) {
+            slots.add(TO);
+            texts.add(null);
+            return;
+        }
+        if (attrName.equals("name")) {
+            slots.add(NAME);
+            texts.add(null);
+            return;
+        }
+        i = owner.indexOf(attrName);
+        if (i >= 0) {
+            slots.add(i);
+            texts.add(null);
+            return;
+        }
+        slots.add(LITERAL);
+        texts.add(attrName + ".NotFound");
+    }
+
+    /**
+     * Moves the compiled program into compact arrays.
+     */
+    private void store(ArrayList<Integer> slots, ArrayList<String> texts) {
+        this.slots = new int[slots.size()];
+        this.texts = new String[texts.size()];
+        for (int i = 0; i < this.slots.length; i++) {
+            this.slots[i] = slots.get(i);
+            this.texts[i] = texts.get(i);
+        }
+    }
+
+    /**
+     * Collects the names of the environment attributes this template refers
+     * to, so that only the objects that depend on an environment attribute
+     * are regenerated when it changes.
+     *
+     * @param names the set where the names are added.
+     */
+    public void collectEnvironmentReferences(Set<String> names) {
+        for (int i = 0; i < this.slots.length; i++) {
+            if (this.slots[i] == ENV) {
+                names.add(this.texts[i]);
+            }
+        }
+    }
+
+    /**
+     * Runs the program for a given object, appending the result to a buffer.
+     *
+     * @param out the buffer where the Tcl code is appended.
+     * @param w a reference to the simulation model.
+     * @param o the object being translated.
+     */
+    public void appendTo(StringBuilder out, TclContext w, NSObject o) {
+        TclSnippet s = o.getSnippet();
+        NSObject env;
+
+        for (int i = 0; i < this.slots.length; i++) {
+            switch (this.slots[i]) {
+                case LITERAL:
+                    out.append(this.texts[i]);
+                    break;
+                case NAME:
+                    out.append(s.arrayedName(o, w));
+                    break;
+                case FROM:
+                    out.append(s.arrayedName(((NSRelation) o).getFrom(), w));
+                    break;
+                case TO:
+                    out.append(s.arrayedName(((NSRelation) o).getTo(), w));
+                    break;
+                case ENV:
+                    env = w.getEnvironment();
+                    out.append(env.getSnippet().valueOf(w, env, this.texts[i]));
+                    break;
+                default:
+                    out.append(o.getAttribute(this.slots[i]));
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Runs the program for a given object, returning the result as a String.
+     *
+     * @param w a reference to the simulation model.
+     * @param o the object being translated.
+     * @return the Tcl code produced by the template.
+     */
+    public String valueOf(TclContext w, NSObject o) {
+        if ((this.slots.length == 1) && (this.slots[0] >= 0)) {
+            return o.getAttribute(this.slots[0]);
+        }
+        StringBuilder s = new StringBuilder();
+        this.appendTo(s, w, o);
+        return s.toString();
+    }
+
+    /**
+     * Tells if the program produces a given value for an object. When the
+     * program is a single attribute reference, as in conditional patterns,
+     * only the codes of the values are compared.
+     *
+     * @param w a reference to the simulation model.
+     * @param o the object being translated.
+     * @param code the code of the value in ValueDictionary.
+     * @return true if the result of the program is the value.
+     */
+    public boolean hasValue(TclContext w, NSObject o, String code) {
+        if ((this.slots.length == 1) && (this.slots[0] >= 0)) {
+            return o.getAttributeCode(this.slots[0]) == code;
+        }
+        return code.equals(this.valueOf(w, o));
+    }
+    private static final Logger LOG = Logger.getLogger(TclTemplate.class.getName());
+}
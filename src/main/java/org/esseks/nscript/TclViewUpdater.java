@@ -0,0 +1,302 @@
+/*
+ * This source file is part of NScript, released under BSD-modern.
+ *
+ * Copyright (C) 2000-2001 Enrique Campos-Nanez
+ * Copyright (C) 2012 Stefano Sanfilippo
+ *
+ * See README.* at top level for copying, contacts, history and notes.
+ */
+package org.esseks.nscript;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+/**
+ * Keeps the Tcl view in sync with the model, generating the Tcl code in a
+ * background thread.
+ *
+ * Requests are coalesced: a burst of edits (e.g. dragging or typing) triggers
+ * a single generation once the model has been quiet for a short while, and a
+ * request made while a generation is running is served when it ends. The
+ * background thread only reads a snapshot of the model. Its results are applied in the
+ * event dispatch thread, and only if the model did not change in the meantime;
+ * otherwise they are dropped and the current version is generated instead.
+ *
+ * All the methods must be called from the event dispatch thread.
+ */
+public class TclViewUpdater extends Object {
+
+    /**
+     * How long the model has to be quiet before the Tcl code is generated
+     * again, in milliseconds.
+     */
+    private static final int DELAY = 150;
+    /**
+     * The model being translated.
+     */
+    private final NSModel model;
+    /**
+     * The text area where the Tcl code is shown.
+     */
+    private final JTextArea view;
+    /**
+     * Restarted at every request, fires once the model is quiet.
+     */
+    private final Timer timer;
+    /**
+     * The thread where the Tcl code is generated.
+     */
+    private final ExecutorService worker;
+    /**
+     * True while a generation is running in the background.
+     */
+    private boolean running;
+    /**
+     * True if an update was requested while a generation was running.
+     */
+    private boolean pending;
+    /**
+     * The version of the model currently shown, or -1 if nothing is shown.
+     */
+    private int shownVersion;
+    /**
+     * The Tcl code of each object, as currently shown, in the order the
+     * objects are stored.
+     */
+    private String[] shown;
+    /**
+     * The position of each object in shown.
+     */
+    private IdentityHashMap<NSObject, Integer> positions;
+
+    /**
+     * Creates an updater for a model and a view.
+     *
+     * @param inModel the model to translate.
+     * @param inView the text area showing the Tcl code.
+     */
+    public TclViewUpdater(NSModel inModel, JTextArea inView) {
+        this.model = inModel;
+        this.view = inView;
+        this.shownVersion = -1;
+        this.timer = new Timer(DELAY, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent ae) {
+                TclViewUpdater.this.start();
+            }
+        });
+        this.timer.setRepeats(false);
+        this.worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Tcl view updater");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Requests the Tcl view to be updated. Returns immediately: the update
+     * is performed after the model has been quiet for a while.
+     */
+    public void update() {
+        this.timer.restart();
+    }
+
+    /**
+     * Starts generating the current version of the model in background, unless
+     * a generation is already running or the view is up to date. The objects
+     * are translated from a snapshot of the model, taken here, so that the
+     * background thread never reads the objects being edited.
+     */
+    private void start() {
+        if (this.running) {
+            this.pending = true;
+            return;
+        }
+        final int version = this.model.getTclVersion();
+        if (version == this.shownVersion) {
+            return;
+        }
+
+        final boolean full = this.model.isTclStale() || (this.shown == null);
+        final NSObject[] objects;
+        if (full) {
+            objects = this.model.toObjectArray();
+        } else {
+            List<NSObject> dirty = this.model.getTclDirty();
+            objects = dirty.toArray(new NSObject[dirty.size()]);
+        }
+        final NSSnapshot snapshot = this.model.snapshot();
+        final NSObject[] frozen = new NSObject[objects.length];
+        final String[] cached = new String[objects.length];
+        for (int i = 0; i < objects.length; i++) {
+            frozen[i] = objects[i].freeze();
+            cached[i] = objects[i].getCachedTcl();
+        }
+
+        this.running = true;
+        this.worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                String[] fragments = null;
+                String text = null;
+                RuntimeException failure = null;
+                try {
+                    fragments = TclViewUpdater.this.generate(snapshot, frozen, cached);
+                    if (full) {
+                        text = TclViewUpdater.this.join(fragments, frozen[0].getName());
+                    }
+                } catch (RuntimeException re) {
+                    // Reported in the event dispatch thread, see finish
+                    failure = re;
+                }
+                final String[] result = fragments;
+                final String resultText = text;
+                final RuntimeException resultFailure = failure;
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        TclViewUpdater.this.finish(version, full, objects, result, resultText,
+                                resultFailure);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Generates the Tcl code of some objects, from their frozen copies. Runs
+     * in the background thread.
+     *
+     * @param snapshot the snapshot holding the copies.
+     * @param frozen the frozen copies of the objects.
+     * @param cached the code cached by each object when the snapshot was
+     * taken, or null where there is none.
+     */
+    private String[] generate(NSSnapshot snapshot, NSObject[] frozen, String[] cached) {
+        String[] fragments = new String[frozen.length];
+        for (int i = 0; i < frozen.length; i++) {
+            fragments[i] = (cached[i] != null) ? cached[i]
+                    : frozen[i].getSnippet().toTcl(snapshot, frozen[i], TclTemplate.SEPARATOR);
+        }
+        return fragments;
+    }
+
+    /**
+     * Joins the Tcl code of all the objects into a script. Runs in the
+     * background thread.
+     */
+    private String join(String[] fragments, String envName) {
+        StringBuilder s = new StringBuilder(fragments.length * NSModel.TCL_LINE_SIZE);
+        for (String f : fragments) {
+            s.append(f).append('\n');
+        }
+        s.append("$").append(envName).append(" run");
+        return s.toString();
+    }
+
+    /**
+     * Applies the result of a generation to the view, if the model did not
+     * change since it was started. A failure of the generation is thrown
+     * again here, once the updater is ready for the next request, so that it
+     * reaches the handler of the event dispatch thread.
+     */
+    private void finish(int version, boolean full, NSObject[] objects, String[] fragments, String text,
+            RuntimeException failure) {
+        boolean requested = this.pending;
+        this.running = false;
+        this.pending = false;
+        if (version != this.model.getTclVersion()) {
+            // Outdated: wait for the model to be quiet again
+            this.update();
+        } else {
+            if (fragments != null) {
+                this.show(version, full, objects, fragments, text);
+            }
+            // A generation that failed is retried only if another was requested
+            if (requested) {
+                this.start();
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Shows the Tcl code generated for some objects, and caches it in them.
+     */
+    private void show(int version, boolean full, NSObject[] objects, String[] fragments, String text) {
+        for (int i = 0; i < objects.length; i++) {
+            objects[i].setCachedTcl(fragments[i]);
+        }
+        this.model.drainTclDirty();
+        this.shownVersion = version;
+
+        if (full) {
+            this.shown = fragments;
+            this.positions = new IdentityHashMap<NSObject, Integer>(objects.length);
+            for (int i = 0; i < objects.length; i++) {
+                this.positions.put(objects[i], i);
+            }
+            this.view.setText(text);
+        } else {
+            this.replace(objects, fragments);
+        }
+    }
+
+    /**
+     * Replaces the Tcl code of some objects in the view.
+     */
+    private void replace(NSObject[] objects, String[] fragments) {
+        // Sort the changes by position: {position, index in objects}
+        int[][] changes = new int[objects.length][];
+        int n = 0;
+        for (int k = 0; k < objects.length; k++) {
+            Integer position = this.positions.get(objects[k]);
+            if (position != null) {
+                changes[n++] = new int[]{position, k};
+            }
+        }
+        Arrays.sort(changes, 0, n, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                return (a[0] < b[0]) ? -1 : ((a[0] == b[0]) ? 0 : 1);
+            }
+        });
+
+        // Offsets of the changed objects in the view
+        int[] offsets = new int[n];
+        int offset = 0;
+        for (int i = 0, k = 0; k < n; i++) {
+            while ((k < n) && (changes[k][0] == i)) {
+                offsets[k++] = offset;
+            }
+            offset += this.shown[i].length() + 1;
+        }
+        // Replace from the bottom up, so that offsets stay valid
+        for (int k = n - 1; k >= 0; k--) {
+            int i = changes[k][0];
+            String now = fragments[changes[k][1]];
+            if (!now.equals(this.shown[i])) {
+                this.view.replaceRange(now, offsets[k], offsets[k] + this.shown[i].length());
+                this.shown[i] = now;
+            }
+        }
+    }
+    private static final Logger LOG = Logger.getLogger(TclViewUpdater.class.getName());
+}
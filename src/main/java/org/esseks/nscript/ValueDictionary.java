@@ -0,0 +1,113 @@
+/*
+ * This source file is part of NScript, released under BSD-modern.
+ *
+ * Copyright (C) 2000-2001 Enrique Campos-Nanez
+ * Copyright (C) 2012 Stefano Sanfilippo
+ *
+ * See README.* at top level for copying, contacts, history and notes.
+ */
+package org.esseks.nscript;
+
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Interns attribute values into codes. Values such as "10Mb" or "DropTail"
+ * repeat across thousands of objects: objects store the code, so that each
+ * distinct value is kept in memory only once, and comparing two values only
+ * requires comparing their codes.
+ *
+ * The code of a value is its canonical String instance: two values are equal
+ * if and only if their codes are the same instance. The dictionary holds the
+ * codes weakly, so that a value is released as soon as no object, snippet or
+ * undoable edit uses it any more: the dictionary only grows with the values
+ * in use, not with every value ever typed or loaded. Codes are only
+ * canonical within the running program, and are encoded again when an object
+ * is deserialized.
+ *
+ * The dictionary is split in segments, each locked on its own, so that the
+ * threads reading a model in parallel seldom wait for each other. Decoding is
+ * free: the code is the value.
+ */
+public final class ValueDictionary extends Object {
+
+    /**
+     * The code of the empty String.
+     */
+    public static final String EMPTY = "";
+    /**
+     * The number of segments, a power of 2.
+     */
+    private static final int SEGMENT_COUNT = 16;
+    /**
+     * The segments, chosen by the hash code of the values.
+     */
+    private static final Segment[] SEGMENTS = new Segment[SEGMENT_COUNT];
+
+    static {
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            SEGMENTS[i] = new Segment();
+        }
+    }
+
+    /**
+     * No instances.
+     */
+    private ValueDictionary() {
+    }
+
+    /**
+     * Returns the code of a value, adding it to the dictionary if needed.
+     *
+     * @param value the value; null is encoded as the empty String.
+     * @return the code of the value, equal to it.
+     */
+    public static String encode(String value) {
+        if ((value == null) || value.isEmpty()) {
+            return EMPTY;
+        }
+        int h = value.hashCode();
+        return SEGMENTS[(h ^ (h >>> 16)) & (SEGMENT_COUNT - 1)].encode(value);
+    }
+
+    /**
+     * Returns the number of distinct values in the dictionary, including
+     * those no longer used but not yet released.
+     *
+     * @return the number of values.
+     */
+    public static int size() {
+        int n = 1;
+        for (Segment s : SEGMENTS) {
+            n += s.size();
+        }
+        return n;
+    }
+
+    /**
+     * A part of the dictionary. Maps each value to a weak reference to its
+     * code: the key and the code are the same instance, which is released
+     * with the entry when nothing else refers to it.
+     */
+    private static class Segment {
+
+        private final WeakHashMap<String, WeakReference<String>> codes =
+                new WeakHashMap<String, WeakReference<String>>();
+
+        synchronized String encode(String value) {
+            WeakReference<String> ref = this.codes.get(value);
+            String code = (ref == null) ? null : ref.get();
+            if (code == null) {
+                code = value;
+                this.codes.put(code, new WeakReference<String>(code));
+            }
+            return code;
+        }
+
+        synchronized int size() {
+            return this.codes.size();
+        }
+    }
+    private static final Logger LOG = Logger.getLogger(ValueDictionary.class.getName());
+}